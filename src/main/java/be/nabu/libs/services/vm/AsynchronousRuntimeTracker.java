@@ -0,0 +1,261 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
+
+/**
+ * Decouples the tracking of a service from its execution
+ * Events are written into a preallocated ring buffer that is shared by all the executing threads, a single background thread drains it and calls the actual tracker
+ * If the buffer is full, the event is dropped rather than slowing down the service, the dropped events are counted and logged
+ *
+ * Note that the actual tracker is called on another thread, so it can not rely on the service runtime (or any other thread local) and it can not influence the execution (e.g. breakpoints)
+ * The data reported to the tracker must not be modified after reporting
+ */
+public class AsynchronousRuntimeTracker implements ServiceRuntimeTracker {
+
+	// the amount of events the buffer can hold, this is rounded up to a power of two
+	private static int BUFFER_SIZE = Integer.parseInt(System.getProperty("be.nabu.libs.services.vm.tracker.bufferSize", "65536"));
+
+	private static Logger logger = LoggerFactory.getLogger(AsynchronousRuntimeTracker.class);
+
+	private static volatile RingBuffer buffer;
+
+	private ServiceRuntimeTracker parent;
+
+	public static ServiceRuntimeTracker wrap(ServiceRuntimeTracker parent) {
+		// trace mode must run on the executing thread to be able to pause it
+		if (parent == null || parent instanceof AsynchronousRuntimeTracker || parent instanceof TraceModeRuntimeTracker) {
+			return parent;
+		}
+		return new AsynchronousRuntimeTracker(parent);
+	}
+
+	public AsynchronousRuntimeTracker(ServiceRuntimeTracker parent) {
+		this.parent = parent;
+	}
+
+	private static RingBuffer getBuffer() {
+		if (buffer == null) {
+			synchronized(AsynchronousRuntimeTracker.class) {
+				if (buffer == null) {
+					RingBuffer buffer = new RingBuffer(BUFFER_SIZE);
+					Thread thread = new Thread(buffer, "vm-tracker");
+					thread.setDaemon(true);
+					thread.start();
+					AsynchronousRuntimeTracker.buffer = buffer;
+				}
+			}
+		}
+		return buffer;
+	}
+
+	@Override
+	public void start(Service service) {
+		getBuffer().publish(parent, EventType.START, service, null);
+	}
+
+	@Override
+	public void stop(Service service) {
+		getBuffer().publish(parent, EventType.STOP, service, null);
+	}
+
+	@Override
+	public void error(Service service, Exception exception) {
+		getBuffer().publish(parent, EventType.SERVICE_ERROR, service, exception);
+	}
+
+	@Override
+	public void before(Object step) {
+		getBuffer().publish(parent, EventType.BEFORE, step, null);
+	}
+
+	@Override
+	public void after(Object step) {
+		getBuffer().publish(parent, EventType.AFTER, step, null);
+	}
+
+	@Override
+	public void error(Object step, Exception exception) {
+		getBuffer().publish(parent, EventType.ERROR, step, exception);
+	}
+
+	@Override
+	public void report(Object object) {
+		getBuffer().publish(parent, EventType.REPORT, object, null);
+	}
+
+	@Override
+	public void describe(Object object) {
+		getBuffer().publish(parent, EventType.DESCRIBE, object, null);
+	}
+
+	public ServiceRuntimeTracker getParent() {
+		return parent;
+	}
+
+	/**
+	 * The time (in ms) at which the event that is currently being delivered was published
+	 * Only meaningful when called by a tracker from within one of its callbacks
+	 */
+	public static long getEventTimestamp() {
+		return buffer == null ? 0 : buffer.current;
+	}
+
+	public static long getPublished() {
+		return buffer == null ? 0 : buffer.head.get();
+	}
+
+	public static long getDelivered() {
+		return buffer == null ? 0 : buffer.tail;
+	}
+
+	public static long getDropped() {
+		return buffer == null ? 0 : buffer.dropped.get();
+	}
+
+	private enum EventType {
+		START, STOP, SERVICE_ERROR, BEFORE, AFTER, ERROR, REPORT, DESCRIBE
+	}
+
+	private static class Event {
+		// the sequence that was published in this slot, the consumer waits for it to match
+		private volatile long sequence = -1;
+		private ServiceRuntimeTracker tracker;
+		private EventType type;
+		private Object subject;
+		private Exception exception;
+		private long timestamp;
+	}
+
+	/**
+	 * A multi producer, single consumer ring buffer
+	 * A producer claims a sequence, fills in the preallocated event and publishes it by setting its sequence
+	 */
+	private static class RingBuffer implements Runnable {
+		private Event [] events;
+		private int mask;
+		// the next sequence to claim, dropped events never claim one
+		private AtomicLong head = new AtomicLong();
+		// the next sequence to deliver
+		private volatile long tail;
+		private AtomicLong dropped = new AtomicLong();
+		private volatile long current;
+
+		private RingBuffer(int size) {
+			int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+			events = new Event[capacity];
+			for (int i = 0; i < capacity; i++) {
+				events[i] = new Event();
+			}
+			mask = capacity - 1;
+		}
+
+		private void publish(ServiceRuntimeTracker tracker, EventType type, Object subject, Exception exception) {
+			long claimed;
+			do {
+				claimed = head.get();
+				if (claimed - tail >= events.length) {
+					dropped.incrementAndGet();
+					return;
+				}
+			}
+			while (!head.compareAndSet(claimed, claimed + 1));
+			Event event = events[(int) (claimed & mask)];
+			event.tracker = tracker;
+			event.type = type;
+			event.subject = subject;
+			event.exception = exception;
+			event.timestamp = System.currentTimeMillis();
+			event.sequence = claimed;
+		}
+
+		@Override
+		public void run() {
+			long reportedDrops = 0;
+			int idle = 0;
+			while (true) {
+				Event event = events[(int) (tail & mask)];
+				if (event.sequence != tail) {
+					// nothing to do (or the producer is still filling in the event), let the world know if we lost something
+					long drops = dropped.get();
+					if (drops > reportedDrops) {
+						logger.warn("Dropped " + (drops - reportedDrops) + " tracker event(s) because the buffer was full, " + drops + " in total");
+						reportedDrops = drops;
+					}
+					if (idle++ < 100) {
+						Thread.yield();
+					}
+					else {
+						LockSupport.parkNanos(1000000);
+					}
+					continue;
+				}
+				idle = 0;
+				current = event.timestamp;
+				try {
+					deliver(event);
+				}
+				catch (Throwable e) {
+					logger.debug("Tracker failed to process " + event.type + " event", e);
+				}
+				// release the references so we don't keep the data alive
+				event.tracker = null;
+				event.subject = null;
+				event.exception = null;
+				tail = tail + 1;
+			}
+		}
+
+		private void deliver(Event event) {
+			switch(event.type) {
+				case START:
+					event.tracker.start((Service) event.subject);
+				break;
+				case STOP:
+					event.tracker.stop((Service) event.subject);
+				break;
+				case SERVICE_ERROR:
+					event.tracker.error((Service) event.subject, event.exception);
+				break;
+				case BEFORE:
+					event.tracker.before(event.subject);
+				break;
+				case AFTER:
+					event.tracker.after(event.subject);
+				break;
+				case ERROR:
+					event.tracker.error(event.subject, event.exception);
+				break;
+				case REPORT:
+					event.tracker.report(event.subject);
+				break;
+				case DESCRIBE:
+					event.tracker.describe(event.subject);
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the batch size of a loop based on how previous batches performed
+ * The time and the memory allocated per element are tracked as a moving average, the next batch size is derived from them:
+ * - if there is a target latency, we aim for batches that take that long
+ * - otherwise we look for the batch size with the highest throughput by gradually moving up or down
+ * If there is a memory limit, the batch size is capped so a batch is not expected to allocate more than that
+ * The tuner is shared by all executions of the same loop so what we learn is not lost when the service stops
+ */
+public class BatchTuner {
+
+	// the weight of the latest measurement in the moving averages
+	private static double SMOOTHING = Double.parseDouble(System.getProperty("be.nabu.libs.services.vm.batch.smoothing", "0.3"));
+	// how much the batch size changes at most per step
+	private static double STEP = Double.parseDouble(System.getProperty("be.nabu.libs.services.vm.batch.step", "2"));
+	
+	private static Map<String, BatchTuner> tuners = new ConcurrentHashMap<String, BatchTuner>();
+	
+	private static com.sun.management.ThreadMXBean threadBean;
+	
+	static {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			threadBean = (com.sun.management.ThreadMXBean) bean;
+			if (!threadBean.isThreadAllocatedMemoryEnabled()) {
+				threadBean = null;
+			}
+		}
+	}
+	
+	private int minimum = 1, maximum = Integer.MAX_VALUE;
+	private long targetLatency, maxMemory;
+	
+	private volatile int batchSize;
+	private volatile long batches;
+	// per element
+	private volatile double latency, memory;
+	// for the throughput search
+	private double lastThroughput;
+	private boolean growing = true;
+	
+	public static BatchTuner getTuner(String id) {
+		BatchTuner tuner = tuners.get(id);
+		if (tuner == null) {
+			synchronized(tuners) {
+				tuner = tuners.get(id);
+				if (tuner == null) {
+					tuner = new BatchTuner();
+					tuners.put(id, tuner);
+				}
+			}
+		}
+		return tuner;
+	}
+	
+	public static Map<String, BatchTuner> getTuners() {
+		return Collections.unmodifiableMap(tuners);
+	}
+	
+	/**
+	 * The amount of bytes allocated by the current thread so far, -1 if the jvm can't tell us
+	 */
+	public static long getAllocatedBytes() {
+		return threadBean == null ? -1 : threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Sets the bounds, the initial size is only used if we have not measured anything yet
+	 */
+	public synchronized void configure(int minimum, int maximum, long targetLatency, long maxMemory, int initial) {
+		this.minimum = Math.max(1, minimum);
+		this.maximum = Math.max(this.minimum, maximum);
+		this.targetLatency = targetLatency;
+		this.maxMemory = maxMemory;
+		batchSize = clamp(batches == 0 ? initial : batchSize);
+	}
+	
+	/**
+	 * Registers how long a batch of the given size took (in ns) and how much it allocated (-1 if unknown)
+	 */
+	public synchronized void measured(int elements, long duration, long allocated) {
+		if (elements <= 0) {
+			return;
+		}
+		double elementLatency = (double) duration / elements;
+		latency = batches == 0 ? elementLatency : (SMOOTHING * elementLatency) + ((1 - SMOOTHING) * latency);
+		if (allocated >= 0) {
+			double elementMemory = (double) allocated / elements;
+			memory = memory == 0 ? elementMemory : (SMOOTHING * elementMemory) + ((1 - SMOOTHING) * memory);
+		}
+		batches++;
+		double next;
+		if (targetLatency > 0) {
+			next = latency <= 0 ? batchSize * STEP : (targetLatency * 1000000d) / latency;
+		}
+		else {
+			// elements per ns, if the last move made it worse, we turn around
+			double throughput = elements / (double) Math.max(1, duration);
+			if (lastThroughput > 0 && throughput < lastThroughput) {
+				growing = !growing;
+			}
+			lastThroughput = throughput;
+			// we move in smaller steps than when we have a target as we are searching
+			double factor = 1 + ((STEP - 1) / 4);
+			next = growing ? Math.max(batchSize + 1, batchSize * factor) : Math.min(batchSize - 1, batchSize / factor);
+		}
+		// don't jump around too much on a single measurement
+		next = Math.max(batchSize / STEP, Math.min(batchSize * STEP, next));
+		if (maxMemory > 0 && memory > 0) {
+			next = Math.min(next, maxMemory / memory);
+		}
+		batchSize = clamp((long) Math.max(1, Math.round(next)));
+	}
+	
+	private int clamp(long size) {
+		return (int) Math.max(minimum, Math.min(maximum, size));
+	}
+	
+	/**
+	 * The batch size that should be used for the next batch
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public long getBatches() {
+		return batches;
+	}
+	/**
+	 * The average time (in ns) spent per element
+	 */
+	public double getLatency() {
+		return latency;
+	}
+	/**
+	 * The average amount of bytes allocated per element, 0 if unknown
+	 */
+	public double getMemory() {
+		return memory;
+	}
+}
@@ -0,0 +1,527 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.types.CollectionHandlerFactory;
+import be.nabu.libs.types.ComplexContentWrapperFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.CollectionHandlerProvider;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+
+/**
+ * A compact binary encoding for complex content that is driven by the type definition
+ * Because both sides know the type, we don't need to send field names: each field is identified by its index in the type (as a varint)
+ * Numbers are sent as (zigzag) varints, a single byte identifies the kind of a simple value so we can fall back to a string representation for anything exotic
+ * Fields that are not part of the type are not encoded
+ *
+ * The layout of an encoded content is [flags][fields] where the fields are a sequence of [index + 1][value] terminated by a 0
+ *
+ * The codec encodes into and decodes from byte buffers, encoding returns a buffer that can be written to a channel as-is and decoding reads from the buffer directly (heap or direct)
+ * When compression is enabled the payload is deflated if it is larger than the threshold, note that this does require an intermediate array
+ */
+public class BinaryContentCodec {
+
+	private static final byte FLAG_COMPRESSED = 1;
+
+	private static final byte KIND_NULL = 0, KIND_STRING = 1, KIND_INTEGER = 2, KIND_LONG = 3, KIND_TRUE = 4, KIND_FALSE = 5, KIND_DOUBLE = 6, KIND_FLOAT = 7,
+		KIND_DATE = 8, KIND_DECIMAL = 9, KIND_BIG_INTEGER = 10, KIND_UUID = 11, KIND_BYTES = 12, KIND_SHORT = 13, KIND_BYTE = 14, KIND_OTHER = 15;
+
+	private static final byte RESULT_OUTPUT = 0, RESULT_EXCEPTION = 1;
+
+	private static Charset UTF8 = Charset.forName("UTF-8");
+
+	private ComplexType type;
+	private boolean compress;
+	private int compressionThreshold = 1024;
+	private Map<Type, Element<?>[]> children = new ConcurrentHashMap<Type, Element<?>[]>();
+
+	public BinaryContentCodec(ComplexType type) {
+		this(type, false);
+	}
+
+	public BinaryContentCodec(ComplexType type, boolean compress) {
+		this.type = type;
+		this.compress = compress;
+	}
+
+	public ByteBuffer encode(ComplexContent content) {
+		Output output = new Output(256);
+		output.put((byte) 0);
+		writeContent(output, type, content);
+		return finish(output);
+	}
+
+	public ComplexContent decode(ByteBuffer buffer) {
+		return readContent(unwrap(buffer), type);
+	}
+
+	/**
+	 * Encodes a service result, the codec must be created for the output definition of the service
+	 */
+	public ByteBuffer encode(ServiceResult result) {
+		Output output = new Output(256);
+		output.put((byte) 0);
+		if (result.getException() != null) {
+			output.put(RESULT_EXCEPTION);
+			Exception exception = result.getException();
+			writeString(output, exception instanceof ServiceException ? ((ServiceException) exception).getCode() : null);
+			writeString(output, exception.getMessage());
+		}
+		else {
+			output.put(RESULT_OUTPUT);
+			writeContent(output, type, result.getOutput());
+		}
+		return finish(output);
+	}
+
+	public ServiceResult decodeResult(ByteBuffer buffer) {
+		ByteBuffer input = unwrap(buffer);
+		if (input.get() == RESULT_EXCEPTION) {
+			String code = readString(input);
+			String message = readString(input);
+			return new DecodedServiceResult(null, new ServiceException(code, message));
+		}
+		else {
+			return new DecodedServiceResult(readContent(input, type), null);
+		}
+	}
+
+	private ByteBuffer finish(Output output) {
+		ByteBuffer buffer = output.buffer;
+		buffer.flip();
+		if (compress && buffer.remaining() > compressionThreshold) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(buffer.array(), 1, buffer.limit() - 1);
+				deflater.finish();
+				Output compressed = new Output(buffer.limit() / 2 + 16);
+				compressed.put(FLAG_COMPRESSED);
+				writeVarint(compressed, buffer.limit() - 1);
+				byte [] chunk = new byte[8192];
+				while (!deflater.finished()) {
+					int length = deflater.deflate(chunk);
+					compressed.put(chunk, 0, length);
+				}
+				buffer = compressed.buffer;
+				buffer.flip();
+			}
+			finally {
+				deflater.end();
+			}
+		}
+		return buffer;
+	}
+
+	private ByteBuffer unwrap(ByteBuffer buffer) {
+		// we don't want to modify the position of the original buffer
+		ByteBuffer input = buffer.duplicate();
+		byte flags = input.get();
+		if ((flags & FLAG_COMPRESSED) != 0) {
+			int length = (int) readVarint(input);
+			byte [] compressed = new byte[input.remaining()];
+			input.get(compressed);
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(compressed);
+				byte [] result = new byte[length];
+				int offset = 0;
+				while (offset < length && !inflater.finished()) {
+					offset += inflater.inflate(result, offset, length - offset);
+				}
+				return ByteBuffer.wrap(result);
+			}
+			catch (DataFormatException e) {
+				throw new IllegalArgumentException("Invalid compressed content", e);
+			}
+			finally {
+				inflater.end();
+			}
+		}
+		return input;
+	}
+
+	private Element<?>[] getChildren(ComplexType type) {
+		Element<?>[] elements = children.get(type);
+		if (elements == null) {
+			List<Element<?>> list = new ArrayList<Element<?>>();
+			for (Element<?> child : TypeUtils.getAllChildren(type)) {
+				list.add(child);
+			}
+			elements = list.toArray(new Element<?>[list.size()]);
+			children.put(type, elements);
+		}
+		return elements;
+	}
+
+	private static boolean isList(Element<?> element) {
+		Value<Integer> property = element.getProperty(MaxOccursProperty.getInstance());
+		return property != null && property.getValue() != null && property.getValue() != 1;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void writeContent(Output output, ComplexType type, Object value) {
+		ComplexContent content = toContent(value);
+		if (content != null) {
+			Element<?>[] elements = getChildren(type);
+			for (int i = 0; i < elements.length; i++) {
+				Object child = content.get(elements[i].getName());
+				if (child == null) {
+					continue;
+				}
+				writeVarint(output, i + 1);
+				if (isList(elements[i])) {
+					Iterable iterable;
+					if (child instanceof Iterable) {
+						iterable = (Iterable) child;
+					}
+					else {
+						CollectionHandlerProvider handler = CollectionHandlerFactory.getInstance().getHandler().getHandler(child.getClass());
+						iterable = handler == null ? java.util.Arrays.asList(child) : handler.getAsIterable(child);
+					}
+					List items = new ArrayList();
+					for (Object item : iterable) {
+						items.add(item);
+					}
+					writeVarint(output, items.size());
+					for (Object item : items) {
+						writeValue(output, elements[i].getType(), item);
+					}
+				}
+				else {
+					writeValue(output, elements[i].getType(), child);
+				}
+			}
+		}
+		writeVarint(output, 0);
+	}
+
+	private ComplexContent readContent(ByteBuffer input, ComplexType type) {
+		ComplexContent content = type.newInstance();
+		Element<?>[] elements = getChildren(type);
+		long index;
+		while ((index = readVarint(input)) != 0) {
+			Element<?> element = elements[(int) index - 1];
+			if (isList(element)) {
+				int size = (int) readVarint(input);
+				for (int i = 0; i < size; i++) {
+					Object value = readValue(input, element.getType());
+					if (value != null) {
+						content.set(element.getName() + "[" + i + "]", value);
+					}
+				}
+			}
+			else {
+				content.set(element.getName(), readValue(input, element.getType()));
+			}
+		}
+		return content;
+	}
+
+	private ComplexContent toContent(Object value) {
+		if (value == null || value instanceof ComplexContent) {
+			return (ComplexContent) value;
+		}
+		ComplexContent wrapped = ComplexContentWrapperFactory.getInstance().getWrapper().wrap(value);
+		if (wrapped == null) {
+			throw new IllegalArgumentException("Can not convert to complex content: " + value.getClass());
+		}
+		return wrapped;
+	}
+
+	/**
+	 * Writes a single value of the given type, this can also be used to encode standalone values
+	 */
+	public void writeValue(Output output, Type type, Object value) {
+		if (type instanceof ComplexType) {
+			output.put(value == null ? (byte) 0 : (byte) 1);
+			if (value != null) {
+				writeContent(output, (ComplexType) type, value);
+			}
+		}
+		else {
+			writeSimple(output, value);
+		}
+	}
+
+	public Object readValue(ByteBuffer input, Type type) {
+		if (type instanceof ComplexType) {
+			return input.get() == 0 ? null : readContent(input, (ComplexType) type);
+		}
+		else {
+			return readSimple(input, type instanceof SimpleType ? ((SimpleType<?>) type).getInstanceClass() : null);
+		}
+	}
+
+	private void writeSimple(Output output, Object value) {
+		if (value == null) {
+			output.put(KIND_NULL);
+		}
+		else if (value instanceof String) {
+			output.put(KIND_STRING);
+			writeString(output, (String) value);
+		}
+		else if (value instanceof Integer) {
+			output.put(KIND_INTEGER);
+			writeVarint(output, zigzag((Integer) value));
+		}
+		else if (value instanceof Long) {
+			output.put(KIND_LONG);
+			writeVarint(output, zigzag((Long) value));
+		}
+		else if (value instanceof Boolean) {
+			output.put((Boolean) value ? KIND_TRUE : KIND_FALSE);
+		}
+		else if (value instanceof Double) {
+			output.put(KIND_DOUBLE);
+			output.ensure(8);
+			output.buffer.putDouble((Double) value);
+		}
+		else if (value instanceof Float) {
+			output.put(KIND_FLOAT);
+			output.ensure(4);
+			output.buffer.putFloat((Float) value);
+		}
+		else if (value instanceof Date) {
+			output.put(KIND_DATE);
+			writeVarint(output, zigzag(((Date) value).getTime()));
+		}
+		else if (value instanceof BigDecimal) {
+			output.put(KIND_DECIMAL);
+			writeString(output, ((BigDecimal) value).toString());
+		}
+		else if (value instanceof BigInteger) {
+			output.put(KIND_BIG_INTEGER);
+			writeBytes(output, ((BigInteger) value).toByteArray());
+		}
+		else if (value instanceof UUID) {
+			output.put(KIND_UUID);
+			output.ensure(16);
+			output.buffer.putLong(((UUID) value).getMostSignificantBits());
+			output.buffer.putLong(((UUID) value).getLeastSignificantBits());
+		}
+		else if (value instanceof byte[]) {
+			output.put(KIND_BYTES);
+			writeBytes(output, (byte[]) value);
+		}
+		else if (value instanceof Short) {
+			output.put(KIND_SHORT);
+			writeVarint(output, zigzag((Short) value));
+		}
+		else if (value instanceof Byte) {
+			output.put(KIND_BYTE);
+			output.put((Byte) value);
+		}
+		else {
+			String converted = ConverterFactory.getInstance().getConverter().convert(value, String.class);
+			output.put(KIND_OTHER);
+			writeString(output, converted == null ? value.toString() : converted);
+		}
+	}
+
+	private Object readSimple(ByteBuffer input, Class<?> instanceClass) {
+		byte kind = input.get();
+		switch(kind) {
+			case KIND_NULL: return null;
+			case KIND_STRING: return readString(input);
+			case KIND_INTEGER: return (int) unzigzag(readVarint(input));
+			case KIND_LONG: return unzigzag(readVarint(input));
+			case KIND_TRUE: return true;
+			case KIND_FALSE: return false;
+			case KIND_DOUBLE: return input.getDouble();
+			case KIND_FLOAT: return input.getFloat();
+			case KIND_DATE: return new Date(unzigzag(readVarint(input)));
+			case KIND_DECIMAL: return new BigDecimal(readString(input));
+			case KIND_BIG_INTEGER: return new BigInteger(readBytes(input));
+			case KIND_UUID: return new UUID(input.getLong(), input.getLong());
+			case KIND_BYTES: return readBytes(input);
+			case KIND_SHORT: return (short) unzigzag(readVarint(input));
+			case KIND_BYTE: return input.get();
+			case KIND_OTHER:
+				String value = readString(input);
+				if (instanceClass != null && !String.class.equals(instanceClass) && !Object.class.equals(instanceClass)) {
+					Object converted = ConverterFactory.getInstance().getConverter().convert(value, instanceClass);
+					if (converted != null) {
+						return converted;
+					}
+				}
+				return value;
+			default:
+				throw new IllegalArgumentException("Unknown value kind: " + kind);
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarint(Output output, long value) {
+		output.ensure(10);
+		while ((value & ~0x7FL) != 0) {
+			output.buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.buffer.put((byte) value);
+	}
+
+	private static long readVarint(ByteBuffer input) {
+		long value = 0;
+		int shift = 0;
+		while (true) {
+			byte single = input.get();
+			value |= (long) (single & 0x7F) << shift;
+			if ((single & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	private static void writeString(Output output, String value) {
+		if (value == null) {
+			writeVarint(output, 0);
+		}
+		else {
+			byte [] bytes = value.getBytes(UTF8);
+			writeVarint(output, bytes.length + 1);
+			output.put(bytes, 0, bytes.length);
+		}
+	}
+
+	private static String readString(ByteBuffer input) {
+		int length = (int) readVarint(input);
+		if (length == 0) {
+			return null;
+		}
+		length--;
+		if (input.hasArray()) {
+			String value = new String(input.array(), input.arrayOffset() + input.position(), length, UTF8);
+			input.position(input.position() + length);
+			return value;
+		}
+		byte [] bytes = new byte[length];
+		input.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeBytes(Output output, byte [] bytes) {
+		writeVarint(output, bytes.length);
+		output.put(bytes, 0, bytes.length);
+	}
+
+	private static byte [] readBytes(ByteBuffer input) {
+		byte [] bytes = new byte[(int) readVarint(input)];
+		input.get(bytes);
+		return bytes;
+	}
+
+	public ComplexType getType() {
+		return type;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * A growing heap buffer to encode into
+	 */
+	public static class Output {
+		private ByteBuffer buffer;
+
+		public Output(int initialSize) {
+			buffer = ByteBuffer.allocate(Math.max(16, initialSize));
+		}
+
+		private void ensure(int size) {
+			if (buffer.remaining() < size) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+		}
+
+		private void put(byte value) {
+			ensure(1);
+			buffer.put(value);
+		}
+
+		private void put(byte [] bytes, int offset, int length) {
+			ensure(length);
+			buffer.put(bytes, offset, length);
+		}
+
+		/**
+		 * Returns a read-only view on the encoded bytes so far
+		 */
+		public ByteBuffer toBuffer() {
+			ByteBuffer duplicate = buffer.duplicate();
+			duplicate.flip();
+			return duplicate.asReadOnlyBuffer();
+		}
+	}
+
+	public static class DecodedServiceResult implements ServiceResult {
+		private ComplexContent output;
+		private ServiceException exception;
+
+		public DecodedServiceResult(ComplexContent output, ServiceException exception) {
+			this.output = output;
+			this.exception = exception;
+		}
+
+		@Override
+		public ComplexContent getOutput() {
+			return output;
+		}
+		@Override
+		public ServiceException getException() {
+			return exception;
+		}
+	}
+}
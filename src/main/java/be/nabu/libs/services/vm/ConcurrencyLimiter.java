@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bulkhead that caps the amount of concurrent calls towards a single service (or service/target combination)
+ * The limit is adaptive (AIMD): as long as the observed latency stays close to the best latency we have seen, the limit grows additively up to the configured maximum
+ * Once the latency exceeds the tolerated multiple of that baseline, the limit is decreased multiplicatively
+ * This means a slow backend will automatically get less threads, leaving room for the rest of the flows on the same node
+ */
+public class ConcurrencyLimiter {
+
+	public enum Rejection {
+		// fail immediately if no slot is available
+		FAIL,
+		// queue up and wait (up to the timeout if one is given) for a slot to free up
+		WAIT
+	}
+
+	private static Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+
+	private static int MAX_QUEUE = Integer.parseInt(System.getProperty("be.nabu.libs.services.vm.concurrency.maxQueue", "" + Integer.MAX_VALUE));
+	private static double TOLERANCE = Double.parseDouble(System.getProperty("be.nabu.libs.services.vm.concurrency.tolerance", "2"));
+	private static double BACKOFF = Double.parseDouble(System.getProperty("be.nabu.libs.services.vm.concurrency.backoff", "0.9"));
+	// the baseline latency is reset after this amount of samples, otherwise a single very fast call would skew it forever
+	private static long BASELINE_WINDOW = Long.parseLong(System.getProperty("be.nabu.libs.services.vm.concurrency.baselineWindow", "1000"));
+
+	private String key;
+	private int maxLimit;
+	private double limit;
+	private int inFlight, queued;
+	private long rejected, completed;
+	private long minLatency = Long.MAX_VALUE;
+
+	public static ConcurrencyLimiter getLimiter(String key, int maxLimit) {
+		ConcurrencyLimiter limiter = limiters.get(key);
+		if (limiter == null) {
+			synchronized(limiters) {
+				limiter = limiters.get(key);
+				if (limiter == null) {
+					limiter = new ConcurrencyLimiter(key, maxLimit);
+					limiters.put(key, limiter);
+				}
+			}
+		}
+		// the configuration may have been updated
+		else if (limiter.maxLimit != maxLimit) {
+			limiter.setMaxLimit(maxLimit);
+		}
+		return limiter;
+	}
+
+	public static Map<String, ConcurrencyLimiter> getLimiters() {
+		return Collections.unmodifiableMap(limiters);
+	}
+
+	public ConcurrencyLimiter(String key, int maxLimit) {
+		this.key = key;
+		this.maxLimit = Math.max(1, maxLimit);
+		// we start fully open, the limit only comes down once the backend shows signs of stress
+		this.limit = this.maxLimit;
+	}
+
+	/**
+	 * Tries to claim a slot, returns false if the call was rejected
+	 */
+	public synchronized boolean acquire(Rejection rejection, Long timeout) throws InterruptedException {
+		if (inFlight < getLimit()) {
+			inFlight++;
+			return true;
+		}
+		if (rejection == Rejection.FAIL || queued >= MAX_QUEUE) {
+			rejected++;
+			return false;
+		}
+		queued++;
+		try {
+			long deadline = timeout == null || timeout <= 0 ? 0 : System.currentTimeMillis() + timeout;
+			while (inFlight >= getLimit()) {
+				if (deadline == 0) {
+					wait();
+				}
+				else {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						rejected++;
+						return false;
+					}
+					wait(remaining);
+				}
+			}
+			inFlight++;
+			return true;
+		}
+		finally {
+			queued--;
+		}
+	}
+
+	/**
+	 * Releases a slot and feeds the observed latency (in nanoseconds) back into the limit
+	 */
+	public synchronized void release(long latency) {
+		inFlight--;
+		completed++;
+		if (completed % BASELINE_WINDOW == 0) {
+			minLatency = latency;
+		}
+		else if (latency < minLatency) {
+			minLatency = latency;
+		}
+		if (latency > minLatency * TOLERANCE) {
+			limit = Math.max(1, limit * BACKOFF);
+		}
+		// only grow if we are actually using the limit, otherwise it would drift to the maximum during quiet periods
+		else if (inFlight + 1 >= limit / 2) {
+			limit = Math.min(maxLimit, limit + (1 / limit));
+		}
+		notifyAll();
+	}
+
+	private synchronized void setMaxLimit(int maxLimit) {
+		this.maxLimit = Math.max(1, maxLimit);
+		if (limit > this.maxLimit) {
+			limit = this.maxLimit;
+		}
+		notifyAll();
+	}
+
+	public String getKey() {
+		return key;
+	}
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+	public synchronized int getMaxLimit() {
+		return maxLimit;
+	}
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	public synchronized int getQueued() {
+		return queued;
+	}
+	public synchronized long getRejected() {
+		return rejected;
+	}
+	public synchronized long getCompleted() {
+		return completed;
+	}
+}
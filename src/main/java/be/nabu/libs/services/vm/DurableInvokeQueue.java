@@ -0,0 +1,255 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ForkableExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.base.RootElement;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.xml.XMLBinding;
+import be.nabu.libs.types.binding.xml.XMLMarshaller;
+
+/**
+ * Fire-and-forget invokes that are marked as durable are not run in a new thread but appended to a local file-backed queue (one per service)
+ * A bounded set of workers drains that queue at a configurable rate, this smooths out bursts towards the target service
+ * Anything that was still pending when the node went down is replayed once replay() is called with the context to run it in, this should be done at startup
+ * The original execution context (and its principal) can not be persisted, so replayed entries run with (a fork of) that dedicated context instead
+ */
+public class DurableInvokeQueue {
+
+	private static Map<String, DurableInvokeQueue> queues = new ConcurrentHashMap<String, DurableInvokeQueue>();
+
+	private static String DIRECTORY = System.getProperty("be.nabu.libs.services.vm.durable.directory", new File(System.getProperty("java.io.tmpdir"), "nabu-vm-queues").getAbsolutePath());
+	private static int WORKERS = Integer.parseInt(System.getProperty("be.nabu.libs.services.vm.durable.workers", "2"));
+	// the maximum amount of executions per second, 0 means unlimited
+	private static double RATE = Double.parseDouble(System.getProperty("be.nabu.libs.services.vm.durable.rate", "0"));
+	private static long SEGMENT_SIZE = Long.parseLong(System.getProperty("be.nabu.libs.services.vm.durable.segmentSize", "" + (16 * 1024 * 1024)));
+	// the file in the queue directory that holds the id of the service, so the directory name never has to be decoded
+	private static final String SERVICE_ID = "service.id";
+	
+	// the execution context used for entries that were replayed from disk
+	private static volatile ExecutionContext systemContext;
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private Charset charset = Charset.forName("UTF-8");
+
+	private String serviceId;
+	private DurableQueue queue;
+	private volatile Service service;
+	// the execution context of entries that were queued in this jvm
+	private Map<DurableQueue.Entry, ExecutionContext> contexts = new IdentityHashMap<DurableQueue.Entry, ExecutionContext>();
+	private long nextSlot;
+
+	public static DurableInvokeQueue getQueue(String serviceId, Service service) throws ServiceException {
+		DurableInvokeQueue queue = queues.get(serviceId);
+		if (queue == null) {
+			synchronized(queues) {
+				queue = queues.get(serviceId);
+				if (queue == null) {
+					try {
+						queue = new DurableInvokeQueue(serviceId, service);
+					}
+					catch (IOException e) {
+						throw new ServiceException("VM-15", "Could not open the durable queue for: " + serviceId, e);
+					}
+					queues.put(serviceId, queue);
+				}
+			}
+		}
+		// always use the latest version of the service
+		queue.service = service;
+		return queue;
+	}
+
+	private DurableInvokeQueue(String serviceId, Service service) throws IOException {
+		this.serviceId = serviceId;
+		this.service = service;
+		File directory = new File(DIRECTORY, getDirectoryName(serviceId));
+		// entries from a previous run can only be replayed once we know which context to run them in
+		this.queue = new DurableQueue(directory, SEGMENT_SIZE, systemContext != null);
+		File id = new File(directory, SERVICE_ID);
+		if (!id.exists()) {
+			Files.write(id.toPath(), serviceId.getBytes(charset));
+		}
+		for (int i = 0; i < Math.max(1, WORKERS); i++) {
+			Thread thread = new Thread(new Worker(), "durable-invoke-" + serviceId + "-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Letters, digits, dots and dashes are kept, anything else (including the underscore itself) is written as an underscore followed by the hex value of each utf-8 byte
+	 * This keeps the usual service ids readable while no two ids can end up in the same directory
+	 */
+	static String getDirectoryName(String serviceId) {
+		StringBuilder builder = new StringBuilder();
+		byte [] bytes = serviceId.getBytes(Charset.forName("UTF-8"));
+		for (int i = 0; i < bytes.length; i++) {
+			char character = (char) (bytes[i] & 0xff);
+			// a leading dot would make for a hidden (or relative) directory
+			if ((character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z') || (character >= '0' && character <= '9') || character == '-' || (character == '.' && i > 0)) {
+				builder.append(character);
+			}
+			else {
+				builder.append('_').append(String.format("%02x", bytes[i] & 0xff));
+			}
+		}
+		return builder.toString();
+	}
+
+	private static ExecutionContext fork(ExecutionContext executionContext) {
+		// fork the execution context if possible, we don't want to asynchronously share an execution context
+		return executionContext instanceof ForkableExecutionContext
+			? ((ForkableExecutionContext) executionContext).fork()
+			: executionContext;
+	}
+
+	public void submit(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+		try {
+			StringWriter writer = new StringWriter();
+			XMLMarshaller marshaller = new XMLMarshaller(new RootElement(service.getServiceInterface().getInputDefinition()));
+			marshaller.setNamespaceAware(false);
+			marshaller.marshal(writer, input);
+			byte [] payload = writer.toString().getBytes(charset);
+			// we register the context before a worker can resolve it
+			synchronized(contexts) {
+				contexts.put(queue.offer(payload), fork(executionContext));
+			}
+		}
+		catch (Exception e) {
+			throw new ServiceException("VM-15", "Could not queue the durable invoke for: " + serviceId, e);
+		}
+	}
+
+	private ExecutionContext getContext(DurableQueue.Entry entry) {
+		synchronized(contexts) {
+			ExecutionContext context = contexts.remove(entry);
+			// only replayed entries have no context of their own, they are not handed out before the system context is set
+			return context == null ? fork(systemContext) : context;
+		}
+	}
+
+	/**
+	 * Sets the context that replayed entries run with and replays all the queues that have entries left from a previous run
+	 * This should be called at startup with a dedicated (system) context: the replayed services run with its identity
+	 */
+	public static void replay(ExecutionContext systemContext) throws ServiceException {
+		DurableInvokeQueue.systemContext = systemContext;
+		File[] directories = new File(DIRECTORY).listFiles();
+		if (directories != null) {
+			for (File directory : directories) {
+				File id = new File(directory, SERVICE_ID);
+				if (!id.isFile()) {
+					continue;
+				}
+				String serviceId;
+				try {
+					serviceId = new String(Files.readAllBytes(id.toPath()), Charset.forName("UTF-8"));
+				}
+				catch (IOException e) {
+					throw new ServiceException("VM-15", "Could not read the service of the durable queue: " + directory, e);
+				}
+				if (!queues.containsKey(serviceId)) {
+					DefinedService service = systemContext.getServiceContext().getResolver(DefinedService.class).resolve(serviceId);
+					if (service == null) {
+						LoggerFactory.getLogger(DurableInvokeQueue.class).warn("Could not find service '" + serviceId + "' to replay its durable queue");
+						continue;
+					}
+					getQueue(serviceId, service);
+				}
+			}
+		}
+		// the queues that were opened before we had a context
+		for (DurableInvokeQueue queue : queues.values()) {
+			queue.queue.replay();
+		}
+	}
+
+	private void throttle() throws InterruptedException {
+		if (RATE > 0) {
+			long wait;
+			synchronized(this) {
+				long now = System.nanoTime();
+				long slot = Math.max(now, nextSlot);
+				nextSlot = slot + (long) (1000000000l / RATE);
+				wait = slot - now;
+			}
+			if (wait > 0) {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+		}
+	}
+
+	public int getPending() {
+		return queue.size();
+	}
+
+	public static Map<String, DurableInvokeQueue> getQueues() {
+		return queues;
+	}
+
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				DurableQueue.Entry entry;
+				try {
+					entry = queue.take();
+					if (entry == null) {
+						break;
+					}
+					throttle();
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+				try {
+					XMLBinding binding = new XMLBinding(service.getServiceInterface().getInputDefinition(), charset);
+					ComplexContent input = binding.unmarshal(new ByteArrayInputStream(entry.getPayload()), new Window[0]);
+					ServiceRuntime serviceRuntime = new ServiceRuntime(service, getContext(entry));
+					serviceRuntime.run(input);
+				}
+				catch (Exception e) {
+					logger.error("Durable asynchronous execution exception occurred for: " + serviceId, e);
+				}
+				finally {
+					queue.acknowledge(entry);
+				}
+			}
+		}
+	}
+}
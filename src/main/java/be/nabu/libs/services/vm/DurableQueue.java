@@ -0,0 +1,266 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A simple append-only queue that is backed by memory mapped segment files in a local directory
+ * Each record is laid out as [int length][byte state][payload], the length is written last so a half written record is never picked up
+ * Records are marked as done once processed, a segment is unmapped and deleted once all its records are done
+ * When the queue is opened, all records that are still pending are replayed, either immediately or once replay() is called
+ */
+public class DurableQueue implements Closeable {
+
+	private static final byte PENDING = 1, DONE = 2;
+	private static final int HEADER = 5;
+
+	private File directory;
+	private long segmentSize;
+	private List<Segment> segments = new ArrayList<Segment>();
+	private Deque<Entry> pending = new ArrayDeque<Entry>();
+	// the records that were pending when the queue was opened and are not yet handed out
+	private Deque<Entry> recovered = new ArrayDeque<Entry>();
+	private long sequence;
+	private boolean closed;
+
+	public DurableQueue(File directory, long segmentSize) throws IOException {
+		this(directory, segmentSize, true);
+	}
+	
+	public DurableQueue(File directory, long segmentSize, boolean replay) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Could not create queue directory: " + directory);
+		}
+		open();
+		if (replay) {
+			replay();
+		}
+	}
+
+	private void open() throws IOException {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				if (file.getName().startsWith("segment-") && file.getName().endsWith(".dat")) {
+					long number = Long.parseLong(file.getName().substring("segment-".length(), file.getName().length() - ".dat".length()));
+					sequence = Math.max(sequence, number + 1);
+					Segment segment = new Segment(file, file.length());
+					// scan the records
+					while (segment.position + HEADER <= segment.buffer.capacity()) {
+						int length = segment.buffer.getInt(segment.position);
+						if (length <= 0) {
+							break;
+						}
+						segment.count++;
+						if (segment.buffer.get(segment.position + 4) == PENDING) {
+							recovered.add(new Entry(segment, segment.position, length));
+						}
+						else {
+							segment.done++;
+						}
+						segment.position += HEADER + length;
+					}
+					if (segment.count == segment.done) {
+						segment.delete();
+					}
+					else {
+						segments.add(segment);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends a record to the queue, once this method returns the record is persisted
+	 */
+	public synchronized Entry offer(byte[] payload) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("The queue is closed");
+		}
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || segment.position + HEADER + payload.length > segment.buffer.capacity()) {
+			// the segment we were writing to may already be done, it was not deleted as long as it was the last one
+			if (segment != null && segment.count == segment.done) {
+				segments.remove(segment);
+				segment.delete();
+			}
+			segment = new Segment(new File(directory, String.format("segment-%019d.dat", sequence++)), Math.max(segmentSize, HEADER + payload.length));
+			segments.add(segment);
+		}
+		int position = segment.position;
+		ByteBuffer target = segment.buffer.duplicate();
+		target.position(position + HEADER);
+		target.put(payload);
+		segment.buffer.put(position + 4, PENDING);
+		// the length acts as the commit marker
+		segment.buffer.putInt(position, payload.length);
+		segment.buffer.force();
+		segment.position += HEADER + payload.length;
+		segment.count++;
+		Entry entry = new Entry(segment, position, payload.length);
+		pending.add(entry);
+		notifyAll();
+		return entry;
+	}
+
+	/**
+	 * Waits until a record is available, returns null if the queue was closed
+	 */
+	public synchronized Entry take() throws InterruptedException {
+		while (pending.isEmpty() && !closed) {
+			wait();
+		}
+		return closed ? null : pending.poll();
+	}
+
+	/**
+	 * Marks the record as done, once this method returns the record will not be replayed
+	 */
+	public synchronized void acknowledge(Entry entry) {
+		if (entry.segment.buffer == null) {
+			throw new IllegalStateException("The record was already acknowledged");
+		}
+		entry.segment.buffer.put(entry.position + 4, DONE);
+		entry.segment.done++;
+		// we never delete the segment we are writing to, it is checked again when we move on to the next segment
+		if (entry.segment.count == entry.segment.done && entry.segment != segments.get(segments.size() - 1)) {
+			segments.remove(entry.segment);
+			entry.segment.delete();
+		}
+		// if the mark is not on disk, a crash would replay the record
+		else {
+			entry.segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Hands out the records that were still pending when the queue was opened, before anything that was offered since
+	 */
+	public synchronized void replay() {
+		while (!recovered.isEmpty()) {
+			pending.addFirst(recovered.removeLast());
+		}
+		notifyAll();
+	}
+
+	public synchronized int size() {
+		return pending.size() + recovered.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	public static class Entry {
+		private Segment segment;
+		private int position, length;
+
+		private Entry(Segment segment, int position, int length) {
+			this.segment = segment;
+			this.position = position;
+			this.length = length;
+		}
+
+		/**
+		 * The payload can only be read as long as the segment exists, once all its records are acknowledged it is unmapped
+		 */
+		public byte[] getPayload() {
+			synchronized(segment) {
+				if (segment.buffer == null) {
+					throw new IllegalStateException("The record was acknowledged and is no longer available");
+				}
+				byte [] payload = new byte[length];
+				ByteBuffer source = segment.buffer.duplicate();
+				source.position(position + HEADER);
+				source.get(payload);
+				return payload;
+			}
+		}
+	}
+
+	private static class Segment {
+		private File file;
+		private MappedByteBuffer buffer;
+		private int position, count, done;
+
+		private Segment(File file, long size) throws IOException {
+			this.file = file;
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+				buffer = randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, Math.min(size, Integer.MAX_VALUE));
+			}
+		}
+
+		private void delete() {
+			synchronized(this) {
+				MappedByteBuffer buffer = this.buffer;
+				this.buffer = null;
+				// the mapping would otherwise remain until the buffer is garbage collected, keeping the file locked on some platforms
+				unmap(buffer);
+			}
+			file.delete();
+		}
+	}
+	
+	/**
+	 * There is no public api to release a mapping, we use the cleaner of the buffer if we can get to it (java 9+ and java 8 respectively)
+	 * If neither is available, the mapping is released when the buffer is garbage collected
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+			return;
+		}
+		catch (Exception e) {
+			// not java 9+
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}
+		catch (Exception e) {
+			// leave it to the garbage collector
+		}
+	}
+}
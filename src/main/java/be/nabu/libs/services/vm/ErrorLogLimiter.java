@@ -0,0 +1,215 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * Limits the exception logging of sequences so an outage does not turn into a log storm, this is disabled by default
+ * The first occurrence of a (service, step, code) combination in a summary window is always logged with its stack trace, repeats are logged as a single line
+ * The repeats are limited by a token bucket on the total amount of log lines per second, anything over the limit is only counted
+ * At the end of each window a background thread logs a summary of the repeats to the logger of the service
+ * No locks are taken so concurrent failures do not queue up behind the logging
+ */
+public class ErrorLogLimiter {
+
+	// whether the logging is limited at all, if not every exception is logged with its stack trace
+	private static volatile boolean limited = Boolean.parseBoolean(System.getProperty("be.nabu.libs.services.vm.logErrors.limit", "false"));
+	// the amount of log lines per second
+	private static double RATE = Double.parseDouble(System.getProperty("be.nabu.libs.services.vm.logErrors.rate", "10"));
+	// the amount of log lines we can burst
+	private static double BURST = Double.parseDouble(System.getProperty("be.nabu.libs.services.vm.logErrors.burst", "50"));
+	// how often (in ms) we log a summary of the repeated and suppressed exceptions
+	private static long SUMMARY_INTERVAL = Long.parseLong(System.getProperty("be.nabu.libs.services.vm.logErrors.summaryInterval", "60000"));
+
+	// the bucket is kept as the (nano) time at which it is full again, every log line pushes that time forward by the cost of a single token
+	private static AtomicLong full = new AtomicLong(System.nanoTime());
+	private static AtomicLong windowStart = new AtomicLong(System.currentTimeMillis());
+	private static Map<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	// the summaries are written by a timer, we don't want to depend on another exception to come along
+	private static volatile ScheduledExecutorService timer;
+
+	public static void log(Logger target, String serviceId, String stepId, Exception exception) {
+		if (limited) {
+			startTimer();
+			String key = serviceId + ", " + stepId + ", " + getCode(exception);
+			while (true) {
+				Counter counter = counters.get(key);
+				if (counter == null) {
+					counter = new Counter(target);
+					Counter existing = counters.putIfAbsent(key, counter);
+					if (existing != null) {
+						counter = existing;
+					}
+				}
+				long previous = counter.occurrences.getAndIncrement();
+				// the counter was retired by the summary, it is (being) removed so we start a new one
+				if (previous < 0) {
+					counters.remove(key, counter);
+					continue;
+				}
+				// the first occurrence is always logged in full, it is the one you need to find the cause
+				if (previous > 0) {
+					if (acquire()) {
+						target.error("Sequence '" + stepId + "' exited with exception (repeated): " + exception.getMessage());
+					}
+					else {
+						suppress(key, counter, target);
+					}
+					return;
+				}
+				break;
+			}
+		}
+		StacklessServiceException.materialize(exception);
+		target.error("Sequence '" + stepId + "' exited with exception", exception);
+	}
+
+	private static void suppress(String key, Counter counter, Logger target) {
+		counter.suppressed.incrementAndGet();
+		// if the counter was retired since, we take the count back unless the summary already has it
+		while (counter.occurrences.get() < 0 && counter.suppressed.decrementAndGet() >= 0) {
+			counters.remove(key, counter);
+			counter = counters.get(key);
+			if (counter == null) {
+				counter = new Counter(target);
+				Counter existing = counters.putIfAbsent(key, counter);
+				if (existing != null) {
+					counter = existing;
+				}
+			}
+			counter.suppressed.incrementAndGet();
+		}
+	}
+	
+	public static boolean isLimited() {
+		return limited;
+	}
+
+	public static void setLimited(boolean limited) {
+		ErrorLogLimiter.limited = limited;
+	}
+
+	/**
+	 * Logs the summary of the current window and starts a new one, this is done regularly by a timer but can be triggered (e.g. at shutdown)
+	 */
+	public static synchronized void flush() {
+		long now = System.currentTimeMillis();
+		long start = windowStart.getAndSet(now);
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			Counter counter = entry.getValue();
+			long occurrences, suppressed;
+			// a counter that saw nothing in the last window is retired: anyone that still increments it sees a negative value and starts a new one
+			if (counter.occurrences.compareAndSet(0, Long.MIN_VALUE)) {
+				counters.remove(entry.getKey(), counter);
+				occurrences = 0;
+				// a repeat from the previous window can still be counting itself as suppressed
+				suppressed = counter.suppressed.getAndSet(0);
+			}
+			// the counts are swapped for zero, anything that comes in while we summarize counts towards the next window
+			else {
+				occurrences = counter.occurrences.getAndSet(0);
+				suppressed = counter.suppressed.getAndSet(0);
+			}
+			if (occurrences > 1 || suppressed > 0) {
+				counter.target.warn("Exception summary for [" + entry.getKey() + "]: " + occurrences + " occurrence(s), " + suppressed + " not logged in the last " + ((now - start) / 1000) + "s");
+			}
+		}
+	}
+	
+	private static void startTimer() {
+		if (timer == null) {
+			synchronized(ErrorLogLimiter.class) {
+				if (timer == null) {
+					ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "vm-error-summary");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+					timer.scheduleAtFixedRate(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								flush();
+							}
+							catch (Exception e) {
+								// a failing logger should not stop the summaries
+							}
+						}
+					}, SUMMARY_INTERVAL, SUMMARY_INTERVAL, TimeUnit.MILLISECONDS);
+					ErrorLogLimiter.timer = timer;
+				}
+			}
+		}
+	}
+
+	private static boolean acquire() {
+		if (RATE <= 0) {
+			return true;
+		}
+		long cost = (long) (1000000000d / RATE);
+		long capacity = (long) (BURST * cost);
+		while (true) {
+			long now = System.nanoTime();
+			long current = full.get();
+			// an empty bucket is full again at now + capacity, we do not track further back than that
+			long next = Math.max(current, now) + cost;
+			if (next - now > capacity) {
+				return false;
+			}
+			if (full.compareAndSet(current, next)) {
+				return true;
+			}
+		}
+	}
+
+	private static String getCode(Throwable throwable) {
+		String code = null;
+		// the deepest service exception (if there are multiple) is what we are interested in
+		while (throwable != null) {
+			if (throwable instanceof ServiceException && ((ServiceException) throwable).getCode() != null) {
+				code = ((ServiceException) throwable).getCode();
+			}
+			throwable = throwable.getCause();
+		}
+		return code;
+	}
+
+	private static class Counter {
+		// the summary goes to the same logger as the exceptions
+		private Logger target;
+		private AtomicLong occurrences = new AtomicLong(), suppressed = new AtomicLong();
+		
+		private Counter(Logger target) {
+			this.target = target;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.services.impl.TransactionReport;
+
+/**
+ * A transaction that is shared by multiple iterations of a loop, it is committed in chunks rather than once per iteration
+ * Sequences with a transaction variable that run while a group commit is active use the shared transaction instead of starting their own
+ * The loop that owns the group commit decides when to commit, a sequence can only roll it back
+ */
+public class GroupCommit {
+
+	private Object owner;
+	// the amount of iterations per chunk
+	private Integer size;
+	// the maximum amount of milliseconds a chunk can stay open
+	private Long interval;
+	private String transactionId;
+	private long started;
+	private boolean rolledBack;
+	// the elements that were processed in the current chunk, each element is [variable, index]
+	private List<Object[]> pending = new ArrayList<Object[]>();
+	// the size of the result list at the start of the current chunk
+	private int mark;
+
+	public GroupCommit(Object owner, Integer size, Long interval) {
+		this.owner = owner;
+		this.size = size;
+		this.interval = interval;
+	}
+
+	/**
+	 * Returns the shared transaction, it is started on first use
+	 */
+	public String getTransactionId(VMContext context) {
+		if (transactionId == null) {
+			transactionId = context.getExecutionContext().getTransactionContext().start();
+			started = System.currentTimeMillis();
+		}
+		return transactionId;
+	}
+
+	public void add(Object variable, Object index) {
+		pending.add(new Object[] { variable, index });
+	}
+
+	public boolean isDue() {
+		return (size != null && pending.size() >= size)
+			|| (interval != null && transactionId != null && System.currentTimeMillis() - started >= interval);
+	}
+
+	public void commit(VMContext context) {
+		if (transactionId != null) {
+			context.getExecutionContext().getTransactionContext().commit(transactionId);
+			report(context, new TransactionReport(transactionId, "commit"));
+		}
+		reset();
+	}
+
+	/**
+	 * Rolls back the current chunk, this can be called multiple times
+	 */
+	public void rollback(VMContext context) {
+		if (transactionId != null) {
+			String transactionId = this.transactionId;
+			// any work after the rollback will start a new transaction
+			this.transactionId = null;
+			rolledBack = true;
+			context.getExecutionContext().getTransactionContext().rollback(transactionId);
+			report(context, new TransactionReport(transactionId, "rollback"));
+		}
+	}
+
+	public void reset() {
+		transactionId = null;
+		rolledBack = false;
+		pending.clear();
+	}
+
+	private void report(VMContext context, Object data) {
+		if (context.getRuntimeTracker() != null) {
+			context.getRuntimeTracker().report(data);
+		}
+	}
+
+	public Object getOwner() {
+		return owner;
+	}
+	public boolean isRolledBack() {
+		return rolledBack;
+	}
+	public List<Object[]> getPending() {
+		return pending;
+	}
+	public int getMark() {
+		return mark;
+	}
+	public void setMark(int mark) {
+		this.mark = mark;
+	}
+}
@@ -0,0 +1,184 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import be.nabu.libs.cluster.api.ClusterInstance;
+import be.nabu.libs.cluster.api.ClusterLock;
+import be.nabu.libs.cluster.local.LocalInstance;
+
+/**
+ * The locks used by synchronized sequences
+ * If we are not in a cluster, we use an in-process lock per name, it is kept as long as someone holds or waits for it
+ * In a cluster the lock handles are cached so we don't have to create a new one for each execution
+ * The wait time and contention are tracked per sequence
+ */
+public class SequenceLocks {
+
+	// the maximum amount of cluster lock handles we keep around
+	private static int CACHE_SIZE = Integer.parseInt(System.getProperty("be.nabu.libs.services.vm.lock.cacheSize", "1024"));
+	// if acquiring a cluster lock takes longer than this (in ms), we consider it contended
+	private static long CONTENTION_THRESHOLD = Long.parseLong(System.getProperty("be.nabu.libs.services.vm.lock.contentionThreshold", "1"));
+
+	// the local locks that are in use, a lock is removed once the last user releases it
+	private static Map<String, LocalLock> locks = new HashMap<String, LocalLock>();
+
+	private static Map<String, LockMetrics> metrics = new ConcurrentHashMap<String, LockMetrics>();
+
+	private static Map<ClusterInstance, Map<String, ClusterLock>> handles = Collections.synchronizedMap(new LinkedHashMap<ClusterInstance, Map<String, ClusterLock>>());
+
+	/**
+	 * Acquires the lock for the given sequence and (optional) key, the returned runnable releases it
+	 */
+	public static Runnable lock(ClusterInstance cluster, String id, String key) {
+		final String name = key == null ? id : id + ":" + key;
+		LockMetrics lockMetrics = getMetrics(id);
+		if (cluster == null || cluster instanceof LocalInstance) {
+			final LocalLock lock = getLocal(name);
+			if (!lock.tryLock()) {
+				long started = System.nanoTime();
+				lock.lock();
+				lockMetrics.contended(System.nanoTime() - started);
+			}
+			lockMetrics.acquired();
+			return new Runnable() {
+				@Override
+				public void run() {
+					lock.unlock();
+					releaseLocal(name, lock);
+				}
+			};
+		}
+		else {
+			final ClusterLock lock = getHandle(cluster, name);
+			long started = System.nanoTime();
+			lock.lock();
+			long waited = System.nanoTime() - started;
+			if (waited >= CONTENTION_THRESHOLD * 1000000l) {
+				lockMetrics.contended(waited);
+			}
+			lockMetrics.acquired();
+			return new Runnable() {
+				@Override
+				public void run() {
+					lock.unlock();
+				}
+			};
+		}
+	}
+
+	private static LocalLock getLocal(String name) {
+		synchronized(locks) {
+			LocalLock lock = locks.get(name);
+			if (lock == null) {
+				lock = new LocalLock();
+				locks.put(name, lock);
+			}
+			lock.users++;
+			return lock;
+		}
+	}
+
+	private static void releaseLocal(String name, LocalLock lock) {
+		synchronized(locks) {
+			if (--lock.users == 0) {
+				locks.remove(name);
+			}
+		}
+	}
+
+	private static ClusterLock getHandle(ClusterInstance cluster, String name) {
+		Map<String, ClusterLock> locks;
+		synchronized(handles) {
+			locks = handles.get(cluster);
+			if (locks == null) {
+				locks = new LinkedHashMap<String, ClusterLock>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, ClusterLock> eldest) {
+						return size() > CACHE_SIZE;
+					}
+				};
+				handles.put(cluster, locks);
+			}
+		}
+		synchronized(locks) {
+			ClusterLock lock = locks.get(name);
+			if (lock == null) {
+				lock = cluster.lock(name);
+				locks.put(name, lock);
+			}
+			return lock;
+		}
+	}
+
+	private static LockMetrics getMetrics(String id) {
+		LockMetrics lockMetrics = metrics.get(id);
+		if (lockMetrics == null) {
+			synchronized(metrics) {
+				lockMetrics = metrics.get(id);
+				if (lockMetrics == null) {
+					lockMetrics = new LockMetrics();
+					metrics.put(id, lockMetrics);
+				}
+			}
+		}
+		return lockMetrics;
+	}
+
+	public static Map<String, LockMetrics> getMetrics() {
+		return Collections.unmodifiableMap(metrics);
+	}
+
+	private static class LocalLock extends ReentrantLock {
+		private static final long serialVersionUID = 1L;
+		// the amount of threads that hold or wait for this lock, guarded by the locks map
+		private int users;
+	}
+
+	public static class LockMetrics {
+		private AtomicLong acquisitions = new AtomicLong(), contentions = new AtomicLong(), waitTime = new AtomicLong();
+
+		private void acquired() {
+			acquisitions.incrementAndGet();
+		}
+		private void contended(long waited) {
+			contentions.incrementAndGet();
+			waitTime.addAndGet(waited);
+		}
+		public long getAcquisitions() {
+			return acquisitions.get();
+		}
+		public long getContentions() {
+			return contentions.get();
+		}
+		/**
+		 * The total time (in milliseconds) spent waiting for the lock
+		 */
+		public long getWaitTime() {
+			return waitTime.get() / 1000000;
+		}
+	}
+}
@@ -342,6 +342,11 @@ public class SimpleVMServiceDefinition implements VMService, ArtifactWithExcepti
 		descriptions.add(new ExceptionDescriptionImpl("VM-9", "VM-9", "Invalid target environment", "The configured execution target could not be found", ExceptionType.DESIGN));
 		descriptions.add(new ExceptionDescriptionImpl("VM-10", "VM-10", "Link is missing 'to'", "The link does not have a to value", ExceptionType.DESIGN));
 		descriptions.add(new ExceptionDescriptionImpl("VM-11", "VM-11", "Batch size is not a number", "The configured batch size is not a number or does not resolve to a number", ExceptionType.DESIGN));
+		descriptions.add(new ExceptionDescriptionImpl("VM-14", "VM-14", "Concurrency limit reached", "The invoked service has reached its concurrency limit and the call was rejected"));
+		descriptions.add(new ExceptionDescriptionImpl("VM-15", "VM-15", "Durable queue failure", "The asynchronous invoke could not be persisted in the local durable queue"));
+		descriptions.add(new ExceptionDescriptionImpl("VM-16", "VM-16", "Pool saturated", "The thread pool for the execution target can not accept any more runs"));
+		descriptions.add(new ExceptionDescriptionImpl("VM-17", "VM-17", "No list input to stream into", "The service the loop streams its results into does not have a list input", ExceptionType.DESIGN));
+		descriptions.add(new ExceptionDescriptionImpl("VM-18", "VM-18", "No page token input", "A paged loop has no input to pass the page token to the page service", ExceptionType.DESIGN));
 		return descriptions;
 	}
 
@@ -0,0 +1,282 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+import be.nabu.libs.types.ComplexContentWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * A list that keeps the first elements in memory and writes the rest to memory mapped files on local disk
+ * Spilled elements are encoded with the binary content codec and decoded again each time they are requested, this means:
+ * - changing a spilled element that you retrieved does not change the element in the list, use set() instead
+ * - java beans are returned as complex content
+ * Only complex content (or beans that can be wrapped as such) and the simple values the codec supports natively are written to disk
+ * Other elements (like enums, lists or maps) would not come back as the same type, so they are always kept in memory
+ * Elements can only be removed at the end of the list, which is enough for accumulating results
+ * The list must be closed to remove the files
+ */
+public class SpillingList extends AbstractList<Object> implements RandomAccess, Closeable {
+
+	// the size of a single file
+	private static long SEGMENT_SIZE = Long.parseLong(System.getProperty("be.nabu.libs.services.vm.spill.segmentSize", "67108864"));
+	// where the files are written, by default the temporary directory
+	private static String DIRECTORY = System.getProperty("be.nabu.libs.services.vm.spill.directory", System.getProperty("java.io.tmpdir"));
+
+	// length and type
+	private static final int HEADER = 8;
+
+	private int threshold;
+	private List<Object> memory;
+	private List<Segment> segments = new ArrayList<Segment>();
+	// the location of each spilled element: the segment in the high bits, the position in the low bits
+	// a negative offset refers to an element that could not be written to disk and was kept in memory instead
+	private long [] offsets = new long[0];
+	private int spilled;
+	private List<Object> kept = new ArrayList<Object>();
+
+	// the complex types we encountered, the header refers to them by index (0 is a simple value)
+	private List<ComplexType> types = new ArrayList<ComplexType>();
+	private IdentityHashMap<ComplexType, Integer> typeIndexes = new IdentityHashMap<ComplexType, Integer>();
+	private BinaryContentCodec codec = new BinaryContentCodec(null);
+
+	/**
+	 * Once the list contains more than the threshold amount of elements, any additional elements are written to disk
+	 */
+	public SpillingList(int threshold) {
+		this.threshold = Math.max(0, threshold);
+		this.memory = new ArrayList<Object>(Math.min(this.threshold, 1024));
+	}
+
+	@Override
+	public Object get(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+		}
+		if (index < memory.size()) {
+			return memory.get(index);
+		}
+		long offset = offsets[index - memory.size()];
+		if (offset < 0) {
+			return kept.get((int) (-offset - 1));
+		}
+		Segment segment = segments.get((int) (offset >>> 32));
+		int position = (int) offset;
+		int length = segment.buffer.getInt(position);
+		int type = segment.buffer.getInt(position + 4);
+		ByteBuffer view = segment.buffer.duplicate();
+		view.position(position + HEADER);
+		view.limit(position + HEADER + length);
+		return codec.readValue(view, type == 0 ? null : types.get(type - 1));
+	}
+
+	@Override
+	public int size() {
+		return memory.size() + spilled;
+	}
+
+	@Override
+	public boolean add(Object element) {
+		if (spilled == 0 && memory.size() < threshold) {
+			memory.add(element);
+		}
+		else {
+			spill(element);
+		}
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public void add(int index, Object element) {
+		if (index != size()) {
+			throw new UnsupportedOperationException("Elements can only be added at the end of a spilling list");
+		}
+		add(element);
+	}
+
+	@Override
+	public Object set(int index, Object element) {
+		if (index < memory.size()) {
+			return memory.set(index, element);
+		}
+		Object previous = get(index);
+		// the new value is appended to the last segment, the old one is simply abandoned
+		offsets[index - memory.size()] = write(element);
+		return previous;
+	}
+
+	@Override
+	public Object remove(int index) {
+		if (index != size() - 1) {
+			throw new UnsupportedOperationException("Elements can only be removed at the end of a spilling list");
+		}
+		Object previous = get(index);
+		removeRange(index, index + 1);
+		return previous;
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if (toIndex != size()) {
+			throw new UnsupportedOperationException("Elements can only be removed at the end of a spilling list");
+		}
+		if (fromIndex < memory.size()) {
+			memory.subList(fromIndex, memory.size()).clear();
+			spilled = 0;
+		}
+		else {
+			spilled = fromIndex - memory.size();
+		}
+		// we don't reclaim the space on disk, it is released when the list is closed
+		modCount++;
+	}
+
+	@Override
+	public void clear() {
+		memory.clear();
+		kept.clear();
+		spilled = 0;
+		modCount++;
+	}
+
+	private void spill(Object element) {
+		if (spilled == offsets.length) {
+			offsets = Arrays.copyOf(offsets, Math.max(1024, offsets.length * 2));
+		}
+		offsets[spilled++] = write(element);
+	}
+
+	private long write(Object element) {
+		ComplexType type = null;
+		if (element instanceof ComplexContent) {
+			type = ((ComplexContent) element).getType();
+		}
+		else if (element != null && !isSimple(element)) {
+			ComplexContent wrapped = isBean(element) ? ComplexContentWrapperFactory.getInstance().getWrapper().wrap(element) : null;
+			if (wrapped == null) {
+				return keep(element);
+			}
+			element = wrapped;
+			type = wrapped.getType();
+		}
+		int typeIndex = 0;
+		if (type != null) {
+			Integer existing = typeIndexes.get(type);
+			if (existing == null) {
+				types.add(type);
+				existing = types.size();
+				typeIndexes.put(type, existing);
+			}
+			typeIndex = existing;
+		}
+		BinaryContentCodec.Output output = new BinaryContentCodec.Output(256);
+		codec.writeValue(output, type, element);
+		ByteBuffer encoded = output.toBuffer();
+		int length = encoded.remaining();
+		try {
+			Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if (segment == null || segment.position + HEADER + length > segment.buffer.capacity()) {
+				segment = new Segment(Math.max(SEGMENT_SIZE, HEADER + length));
+				segments.add(segment);
+			}
+			int position = segment.position;
+			segment.buffer.putInt(position, length);
+			segment.buffer.putInt(position + 4, typeIndex);
+			ByteBuffer target = segment.buffer.duplicate();
+			target.position(position + HEADER);
+			target.put(encoded);
+			segment.position += HEADER + length;
+			return ((long) (segments.size() - 1) << 32) | (position & 0xffffffffL);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not spill to disk", e);
+		}
+	}
+
+	private long keep(Object element) {
+		kept.add(element);
+		return -kept.size();
+	}
+
+	/**
+	 * Whether the element can be written as complex content, other types (e.g. collections or enums) would come back as something else
+	 */
+	private static boolean isBean(Object element) {
+		return !(element instanceof Enum) && !(element instanceof Iterable) && !(element instanceof java.util.Map) && !element.getClass().isArray()
+			&& !element.getClass().getName().startsWith("java.");
+	}
+
+	/**
+	 * Whether the codec can write the value and read it back as the same type without knowing the type up front
+	 */
+	private static boolean isSimple(Object element) {
+		return element instanceof String || element instanceof Integer || element instanceof Long || element instanceof Boolean || element instanceof Double
+			|| element instanceof Float || (element != null && element.getClass().equals(java.util.Date.class)) || element instanceof java.math.BigDecimal || element instanceof java.math.BigInteger
+			|| element instanceof java.util.UUID || element instanceof byte[] || element instanceof Short || element instanceof Byte;
+	}
+
+	/**
+	 * Whether any elements have been written to disk
+	 */
+	public boolean isSpilled() {
+		return !segments.isEmpty();
+	}
+
+	/**
+	 * Removes the files, the mapped data remains readable until the list is garbage collected so the list can still be used (e.g. as output of the service)
+	 */
+	@Override
+	public void close() {
+		for (Segment segment : segments) {
+			segment.delete();
+		}
+	}
+
+	private static class Segment {
+		private File file;
+		private MappedByteBuffer buffer;
+		private int position;
+
+		private Segment(long size) throws IOException {
+			file = File.createTempFile("vm-spill-", ".dat", new File(DIRECTORY));
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+				buffer = randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, Math.min(size, Integer.MAX_VALUE));
+			}
+		}
+
+		private void delete() {
+			// the mapping remains valid until garbage collected, but we no longer need the file
+			file.delete();
+		}
+	}
+}
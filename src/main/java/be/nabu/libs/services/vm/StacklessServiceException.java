@@ -0,0 +1,84 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * A service exception that does not capture a stack trace when it is created
+ * The java stack of a vm step is mostly interpreter frames, the source id of the exception already tells you where in the flow it was thrown
+ * If the exception is caught within the service, we never pay for the stack trace
+ * If it escapes the service or is logged, it is materialized: the stack trace at that point is captured
+ */
+public class StacklessServiceException extends ServiceException {
+
+	private static final long serialVersionUID = 1L;
+
+	// whether the exceptions the vm throws itself are stackless (unless set explicitly on a throw step)
+	private static volatile boolean enabled = Boolean.parseBoolean(System.getProperty("be.nabu.libs.services.vm.stacklessThrow", "false"));
+	
+	private volatile boolean materialized;
+
+	public StacklessServiceException(String code, String message) {
+		super(code, message);
+	}
+
+	public StacklessServiceException(String code, String message, Exception cause) {
+		super(code, message, cause);
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		// during construction we don't capture anything
+		return materialized ? super.fillInStackTrace() : this;
+	}
+
+	public void materialize() {
+		if (!materialized) {
+			materialized = true;
+			fillInStackTrace();
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		StacklessServiceException.enabled = enabled;
+	}
+	
+	/**
+	 * Creates a stackless exception if they are enabled, a regular one otherwise
+	 */
+	public static ServiceException newServiceException(String code, String message, Exception cause) {
+		return enabled ? new StacklessServiceException(code, message, cause) : new ServiceException(code, message, cause);
+	}
+
+	/**
+	 * Materializes all the stackless exceptions in the chain
+	 */
+	public static void materialize(Throwable throwable) {
+		while (throwable != null) {
+			if (throwable instanceof StacklessServiceException) {
+				((StacklessServiceException) throwable).materialize();
+			}
+			throwable = throwable.getCause();
+		}
+	}
+}
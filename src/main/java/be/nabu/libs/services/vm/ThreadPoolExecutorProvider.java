@@ -0,0 +1,295 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.property.api.Property;
+import be.nabu.libs.services.CombinedServiceRunner;
+import be.nabu.libs.services.ServiceRunnable;
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.NamedServiceRunner;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.services.api.ServiceRunnableObserver;
+import be.nabu.libs.services.api.ServiceRunner;
+import be.nabu.libs.services.vm.api.ExecutorProvider;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * An executor provider where each target is a dedicated local thread pool, for example "io" and "cpu"
+ * This allows you to isolate heavy invokes from the rest of the flows by simply setting a target on the invoke
+ * Batch targets combine multiple pools, the service is run on each of them and the results are returned as a combined result
+ *
+ * Pools can be configured programmatically or using the system property "be.nabu.libs.services.vm.pools" which takes a comma separated list of name=threads[/queueSize]
+ * Invokes without a target are run in the calling thread
+ * A service that runs on a pool and invokes a service on the same pool, runs that service in its own thread (even if the invoke is asynchronous): waiting for another thread of the pool could deadlock
+ */
+public class ThreadPoolExecutorProvider implements ExecutorProvider, Closeable {
+
+	private Map<String, Pool> pools = new LinkedHashMap<String, Pool>();
+	private Map<String, List<String>> batches = new LinkedHashMap<String, List<String>>();
+
+	public ThreadPoolExecutorProvider() {
+		this(System.getProperty("be.nabu.libs.services.vm.pools"));
+	}
+
+	public ThreadPoolExecutorProvider(String configuration) {
+		if (configuration != null && !configuration.trim().isEmpty()) {
+			for (String part : configuration.split("[\\s]*,[\\s]*")) {
+				String [] nameAndSize = part.split("[\\s]*=[\\s]*");
+				if (nameAndSize.length != 2) {
+					throw new IllegalArgumentException("Invalid pool configuration: " + part);
+				}
+				String [] sizes = nameAndSize[1].split("/");
+				addPool(nameAndSize[0].trim(), Integer.parseInt(sizes[0].trim()), sizes.length > 1 ? Integer.parseInt(sizes[1].trim()) : 0);
+			}
+		}
+	}
+
+	/**
+	 * Adds a dedicated pool with a fixed amount of threads, if the queue size is 0 or less the queue is unbounded
+	 */
+	public synchronized Pool addPool(String name, int threads, int queueSize) {
+		if (pools.containsKey(name) || batches.containsKey(name)) {
+			throw new IllegalArgumentException("A target with the name '" + name + "' already exists");
+		}
+		Pool pool = new Pool(name, threads, queueSize);
+		pools.put(name, pool);
+		return pool;
+	}
+
+	/**
+	 * Adds a batch target that runs the service on each of the given pools
+	 */
+	public synchronized void addBatch(String name, String...poolNames) {
+		if (pools.containsKey(name) || batches.containsKey(name)) {
+			throw new IllegalArgumentException("A target with the name '" + name + "' already exists");
+		}
+		for (String poolName : poolNames) {
+			if (!pools.containsKey(poolName)) {
+				throw new IllegalArgumentException("Unknown pool: " + poolName);
+			}
+		}
+		List<String> list = new ArrayList<String>();
+		Collections.addAll(list, poolNames);
+		batches.put(name, list);
+	}
+
+	public synchronized Pool getPool(String name) {
+		return pools.get(name);
+	}
+
+	public synchronized List<Pool> getPools() {
+		return new ArrayList<Pool>(pools.values());
+	}
+
+	@Override
+	public synchronized ServiceRunner getRunner(String target, Map<String, ?> properties) {
+		if (target == null) {
+			return InlineRunner.INSTANCE;
+		}
+		if (batches.containsKey(target)) {
+			List<ServiceRunner> runners = new ArrayList<ServiceRunner>();
+			for (String poolName : batches.get(target)) {
+				runners.add(pools.get(poolName));
+			}
+			return new CombinedServiceRunner(runners.toArray(new ServiceRunner[runners.size()]));
+		}
+		return pools.get(target);
+	}
+
+	@Override
+	public List<Property<?>> getTargetProperties(String target) {
+		return new ArrayList<Property<?>>();
+	}
+
+	@Override
+	public synchronized List<String> getTargets() {
+		List<String> targets = new ArrayList<String>(pools.keySet());
+		targets.addAll(batches.keySet());
+		return targets;
+	}
+
+	@Override
+	public synchronized boolean isBatch(String target) {
+		return target != null && batches.containsKey(target);
+	}
+
+	@Override
+	public boolean isAsynchronous(String target) {
+		return false;
+	}
+
+	@Override
+	public synchronized void close() {
+		for (Pool pool : pools.values()) {
+			pool.executor.shutdown();
+		}
+	}
+
+	private static Future<ServiceResult> run(ServiceRunnable runnable) {
+		try {
+			return CompletableFuture.completedFuture(runnable.call());
+		}
+		catch (Exception e) {
+			CompletableFuture<ServiceResult> future = new CompletableFuture<ServiceResult>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	/**
+	 * Runs the service in the calling thread
+	 */
+	private static class InlineRunner implements ServiceRunner {
+		private static final InlineRunner INSTANCE = new InlineRunner();
+
+		@Override
+		public Future<ServiceResult> run(Service service, ExecutionContext executionContext, ComplexContent input, ServiceRunnableObserver...observers) {
+			return ThreadPoolExecutorProvider.run(new ServiceRunnable(new ServiceRuntime(service, executionContext), input, observers));
+		}
+	}
+
+	public static class Pool implements NamedServiceRunner {
+		// the pool whose thread we are running on (if any)
+		private static ThreadLocal<Pool> current = new ThreadLocal<Pool>();
+		private String name;
+		private ThreadPoolExecutor executor;
+		private AtomicLong rejected = new AtomicLong(), submitted = new AtomicLong(), queueTime = new AtomicLong(), inline = new AtomicLong();
+
+		private Pool(final String name, int threads, int queueSize) {
+			this.name = name;
+			BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new LinkedBlockingQueue<Runnable>();
+			this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+				private AtomicInteger counter = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "vm-pool-" + name + "-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		@Override
+		public Future<ServiceResult> run(Service service, ExecutionContext executionContext, ComplexContent input, ServiceRunnableObserver...observers) {
+			final ServiceRunnable runnable = new ServiceRunnable(new ServiceRuntime(service, executionContext), input, observers);
+			// a service that runs on this pool and calls the pool again would wait for a thread that may never come (it could be holding the last one)
+			if (current.get() == this) {
+				inline.incrementAndGet();
+				return ThreadPoolExecutorProvider.run(runnable);
+			}
+			final long queued = System.nanoTime();
+			try {
+				Future<ServiceResult> future = executor.submit(new Callable<ServiceResult>() {
+					@Override
+					public ServiceResult call() throws Exception {
+						queueTime.addAndGet(System.nanoTime() - queued);
+						current.set(Pool.this);
+						try {
+							return runnable.call();
+						}
+						finally {
+							current.remove();
+						}
+					}
+				});
+				submitted.incrementAndGet();
+				return future;
+			}
+			catch (RejectedExecutionException e) {
+				rejected.incrementAndGet();
+				CompletableFuture<ServiceResult> future = new CompletableFuture<ServiceResult>();
+				future.complete(new RejectedResult(new ServiceException("VM-16", "The pool '" + name + "' is saturated", e)));
+				return future;
+			}
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+		public int getThreads() {
+			return executor.getMaximumPoolSize();
+		}
+		public int getActive() {
+			return executor.getActiveCount();
+		}
+		public int getQueued() {
+			return executor.getQueue().size();
+		}
+		public long getSubmitted() {
+			return submitted.get();
+		}
+		public long getCompleted() {
+			return executor.getCompletedTaskCount();
+		}
+		public long getRejected() {
+			return rejected.get();
+		}
+		/**
+		 * The amount of runs that came from a thread of this pool and were run on that thread
+		 */
+		public long getInline() {
+			return inline.get();
+		}
+		/**
+		 * The average time (in milliseconds) that a run spent waiting in the queue
+		 */
+		public double getAverageQueueTime() {
+			long started = executor.getCompletedTaskCount() + executor.getActiveCount();
+			return started == 0 ? 0 : (queueTime.get() / 1000000d) / started;
+		}
+	}
+
+	private static class RejectedResult implements ServiceResult {
+		private ServiceException exception;
+
+		private RejectedResult(ServiceException exception) {
+			this.exception = exception;
+		}
+		@Override
+		public ComplexContent getOutput() {
+			return null;
+		}
+		@Override
+		public ServiceException getException() {
+			return exception;
+		}
+	}
+}
@@ -19,10 +19,20 @@ package be.nabu.libs.services.vm;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 import be.nabu.libs.cluster.api.ClusterInstance;
+import be.nabu.libs.services.ServiceRuntime;
 import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.FeaturedExecutionContext;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
 import be.nabu.libs.services.vm.ManagedCloseable.Scope;
 
 public class VMContext {
@@ -46,9 +56,38 @@ public class VMContext {
 	
 	private ClusterInstance cluster;
 	
+	// the group commit of the loop we are currently in (if any)
+	private GroupCommit groupCommit;
+	
+	// the exceptions that have already been logged in this execution
+	private Set<Throwable> loggedExceptions;
+	
+	// the enabled features as a set, this is rebuilt if the features the execution context returns change
+	// we keep our own copy of the list, the list of the context can be changed in place
+	private List<String> enabledFeatureList;
+	private Set<String> enabledFeatures;
+	
+	// whether the step events are delivered to the tracker on a separate thread
+	private static boolean ASYNCHRONOUS_TRACKING = Boolean.parseBoolean(System.getProperty("be.nabu.libs.services.vm.tracker.asynchronous", "false"));
+	
+	// the loop invariant evaluations of the loops that are running, from the outer to the inner loop
+	private List<Invariants> invariants;
+	
+	// the results of invokes that were started ahead of their iteration by a prefetching loop
+	private Map<Object, Future<?>> prefetched;
+	
+	// the runtime is resolved once per execution instead of once (or more) per step
+	private ServiceRuntime runtime;
+	// a tracker can be attached to the runtime while we are running (e.g. by a debugger), unless a tracker is set explicitly we follow the one of the runtime
+	private ServiceRuntimeTracker runtimeTracker;
+	private boolean runtimeTrackerSet;
+	// the tracker of the runtime we last saw and the (possibly asynchronous) tracker we use for it
+	private ServiceRuntimeTracker runtimeTrackerSource, runtimeTrackerResolved;
+	
 	public VMContext(ExecutionContext executionContext, VMServiceInstance serviceInstance) {
 		this.executionContext = executionContext;
 		this.serviceInstance = serviceInstance;
+		this.runtime = ServiceRuntime.getRuntime();
 	}
 	
 	public VMServiceInstance getServiceInstance() {
@@ -133,4 +172,128 @@ public class VMContext {
 	public void setCluster(ClusterInstance cluster) {
 		this.cluster = cluster;
 	}
-}
+
+	public Set<String> getEnabledFeatures() {
+		if (!(executionContext instanceof FeaturedExecutionContext)) {
+			return Collections.emptySet();
+		}
+		List<String> list = ((FeaturedExecutionContext) executionContext).getEnabledFeatures();
+		if (list == null) {
+			return Collections.emptySet();
+		}
+		if (enabledFeatures == null || !list.equals(enabledFeatureList)) {
+			enabledFeatures = new HashSet<String>(list);
+			enabledFeatureList = new ArrayList<String>(list);
+		}
+		return enabledFeatures;
+	}
+
+	/**
+	 * Marks the exception as logged, returns false if it (or any of its causes) was already logged
+	 */
+	public boolean markLogged(Throwable throwable) {
+		if (loggedExceptions == null) {
+			loggedExceptions = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+		}
+		for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+			if (loggedExceptions.contains(cause)) {
+				return false;
+			}
+		}
+		loggedExceptions.add(throwable);
+		return true;
+	}
+
+	public ServiceRuntime getRuntime() {
+		return runtime;
+	}
+
+	public void setRuntime(ServiceRuntime runtime) {
+		this.runtime = runtime;
+	}
+
+	/**
+	 * If this is null, no tracking is necessary
+	 */
+	public ServiceRuntimeTracker getRuntimeTracker() {
+		if (runtimeTrackerSet) {
+			return runtimeTracker;
+		}
+		ServiceRuntimeTracker tracker = runtime == null ? null : runtime.getRuntimeTracker();
+		// only wrap it again if it changed
+		if (tracker != runtimeTrackerSource) {
+			runtimeTrackerSource = tracker;
+			runtimeTrackerResolved = ASYNCHRONOUS_TRACKING ? AsynchronousRuntimeTracker.wrap(tracker) : tracker;
+		}
+		return runtimeTrackerResolved;
+	}
+
+	/**
+	 * Sets the tracker for this execution, regardless of the tracker of the runtime (a null value disables tracking)
+	 */
+	public void setRuntimeTracker(ServiceRuntimeTracker runtimeTracker) {
+		this.runtimeTracker = runtimeTracker;
+		this.runtimeTrackerSet = true;
+	}
+
+	public boolean isAborted() {
+		return runtime != null && runtime.isAborted();
+	}
+
+	public void pushInvariants(Set<Object> keys) {
+		if (invariants == null) {
+			invariants = new ArrayList<Invariants>();
+		}
+		invariants.add(new Invariants(keys));
+	}
+	
+	public void popInvariants() {
+		invariants.remove(invariants.size() - 1);
+	}
+	
+	/**
+	 * Returns the cache for the given link or label if it is invariant in one of the running loops, null otherwise
+	 * The outermost loop is used so the value is calculated as few times as possible
+	 */
+	public Map<Object, Object> getInvariants(Object key) {
+		if (invariants != null) {
+			for (int i = 0; i < invariants.size(); i++) {
+				if (invariants.get(i).keys.contains(key)) {
+					return invariants.get(i).values;
+				}
+			}
+		}
+		return null;
+	}
+	
+	public void setPrefetched(Object key, Future<?> future) {
+		if (prefetched == null) {
+			prefetched = new IdentityHashMap<Object, Future<?>>();
+		}
+		prefetched.put(key, future);
+	}
+	
+	/**
+	 * Returns (and removes) the result that was started in advance for the given step, null if there is none
+	 */
+	public Future<?> takePrefetched(Object key) {
+		return prefetched == null ? null : prefetched.remove(key);
+	}
+	
+	private static class Invariants {
+		private Set<Object> keys;
+		private Map<Object, Object> values = new HashMap<Object, Object>();
+		
+		private Invariants(Set<Object> keys) {
+			this.keys = keys;
+		}
+	}
+
+	public GroupCommit getGroupCommit() {
+		return groupCommit;
+	}
+
+	public void setGroupCommit(GroupCommit groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+}
\ No newline at end of file
@@ -46,6 +46,14 @@ public class VMServiceInstance implements ServiceInstanceWithPipeline {
 		this.definition = definition;
 	}
 	
+	/**
+	 * An instance that works on an existing pipeline, for example to run part of a service on another thread
+	 */
+	public VMServiceInstance(VMService definition, ComplexContent pipeline) {
+		this.definition = definition;
+		this.pipeline = pipeline;
+	}
+	
 	/**
 	 * The input must be of the type of service input
 	 * This check is however delegated to the runtime service engine
@@ -76,6 +84,11 @@ public class VMServiceInstance implements ServiceInstanceWithPipeline {
 			// run the service
 			getDefinition().getRoot().execute(context);
 		}
+		// the exception escapes the service, from here on out we want a stack trace
+		catch (ServiceException | RuntimeException e) {
+			StacklessServiceException.materialize(e);
+			throw e;
+		}
 		finally {
 			for (Closeable entity : context.getManaged(Scope.SERVICE)) {
 				try {
@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm.api;
+
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * If the "into" of a for loop points to a sink, the results of each iteration are pushed to it instead of being accumulated in a list
+ */
+public interface IntoSink {
+	public void add(Object element) throws ServiceException;
+	// called once the loop has finished successfully, anything that is still buffered must be pushed through
+	public void flush() throws ServiceException;
+}
@@ -37,6 +37,7 @@ import be.nabu.libs.evaluator.types.operations.TypesOperationProvider;
 import be.nabu.libs.services.ServiceRuntime;
 import be.nabu.libs.services.api.ServiceContext;
 import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
 import be.nabu.libs.services.vm.api.Step;
 import be.nabu.libs.services.vm.api.StepGroup;
 import be.nabu.libs.services.vm.api.VMService;
@@ -259,9 +260,17 @@ abstract public class BaseStep implements Step {
 		this.isDisabled = isDisabled;
 	}
 
+	protected void reportData(VMContext context, Object data) {
+		ServiceRuntimeTracker tracker = context.getRuntimeTracker();
+		if (tracker != null && data != null) {
+			tracker.report(data);
+		}
+	}
+	
 	protected void reportData(Object data) {
-		if (ServiceRuntime.getRuntime() != null && ServiceRuntime.getRuntime().getRuntimeTracker() != null && data != null) {
-			ServiceRuntime.getRuntime().getRuntimeTracker().report(data);
+		ServiceRuntime runtime = ServiceRuntime.getRuntime();
+		if (runtime != null && runtime.getRuntimeTracker() != null && data != null) {
+			runtime.getRuntimeTracker().report(data);
 		}
 	}
 	
@@ -20,8 +20,10 @@ package be.nabu.libs.services.vm.step;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlType;
@@ -37,13 +39,14 @@ import be.nabu.libs.services.ServiceRuntime;
 import be.nabu.libs.services.api.FeaturedExecutionContext;
 import be.nabu.libs.services.api.ServiceContext;
 import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
+import be.nabu.libs.services.vm.StacklessServiceException;
 import be.nabu.libs.services.vm.VMContext;
 import be.nabu.libs.services.vm.api.Step;
 import be.nabu.libs.services.vm.api.StepGroup;
 import be.nabu.libs.services.vm.api.VMService;
 import be.nabu.libs.types.SimpleTypeWrapperFactory;
 import be.nabu.libs.types.api.ComplexType;
-import be.nabu.libs.types.api.Element;
 import be.nabu.libs.types.base.SimpleElementImpl;
 import be.nabu.libs.types.structure.Structure;
 import be.nabu.libs.types.structure.StructureInstance;
@@ -53,7 +56,11 @@ import be.nabu.libs.validator.api.Validation;
 abstract public class BaseStepGroup extends BaseStep implements StepGroup {
 
 	private List<Step> children = new ArrayList<Step>();
-	private java.util.Map<String, Structure> childFeatures = new HashMap<String, Structure>();
+	private java.util.Map<String, FeaturePredicate> childFeatures = new ConcurrentHashMap<String, FeaturePredicate>();
+	// the maximum amount of feature combinations we remember the result for (per child)
+	private static int FEATURE_MEMO_SIZE = Integer.parseInt(System.getProperty("be.nabu.libs.services.vm.featureMemoSize", "1024"));
+	// predicates with up to this many features keep a table of all the combinations
+	private static final int FEATURE_TABLE_SIZE = 10;
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	
 	public BaseStepGroup(VMService definition, Step...steps) {
@@ -116,30 +123,104 @@ abstract public class BaseStepGroup extends BaseStep implements StepGroup {
 	protected boolean isOkForFeatures(Step child, VMContext context) throws ServiceException {
 		Boolean execute = true;
 		if (child.getFeatures() != null && !child.getFeatures().trim().isEmpty() && context.getExecutionContext() instanceof FeaturedExecutionContext) {
-			Structure structure = childFeatures.get(child.getId());
-			if (structure == null) {
-				structure = new Structure();
-				for (String single : getFeatures(child.getFeatures())) {
-					structure.add(new SimpleElementImpl<Boolean>(single, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Boolean.class), structure));
-				}
-				if (!childFeatures.containsKey(child.getId())) {
-					synchronized(childFeatures) {
-						if (!childFeatures.containsKey(child.getId())) {
-							childFeatures.put(child.getId(), structure);
-						}
+			String predicateKey = child.getId() == null ? child.getFeatures() : child.getId();
+			FeaturePredicate predicate = childFeatures.get(predicateKey);
+			// the features may have been updated since we compiled it
+			if (predicate == null || !child.getFeatures().equals(predicate.expression)) {
+				predicate = new FeaturePredicate(child.getFeatures());
+				childFeatures.put(predicateKey, predicate);
+			}
+			Set<String> enabled = context.getEnabledFeatures();
+			// the feature expression only depends on which of its features are enabled
+			if (predicate.table != null) {
+				// with few features the combination is a simple index, there is nothing to allocate
+				int key = 0;
+				for (int i = 0; i < predicate.features.length; i++) {
+					if (enabled.contains(predicate.features[i])) {
+						key |= 1 << i;
 					}
 				}
+				execute = predicate.table[key];
+				if (execute == null) {
+					execute = evaluate(child, predicate, BitSet.valueOf(new long[] { key }));
+					predicate.table[key] = execute;
+				}
 			}
-			List<String> enabled = ((FeaturedExecutionContext) context.getExecutionContext()).getEnabledFeatures();
-			StructureInstance instance = childFeatures.get(child.getId()).newInstance();
-			for (Element<?> feature : instance.getType()) {
-				instance.set(feature.getName(), enabled.contains(feature.getName()));
+			else {
+				BitSet key = new BitSet(predicate.features.length);
+				for (int i = 0; i < predicate.features.length; i++) {
+					if (enabled.contains(predicate.features[i])) {
+						key.set(i);
+					}
+				}
+				execute = predicate.results.get(key);
+				if (execute == null) {
+					execute = evaluate(child, predicate, key);
+					if (predicate.results.size() < FEATURE_MEMO_SIZE) {
+						predicate.results.put(key, execute);
+					}
+				}
 			}
-			execute = (Boolean) getVariable(instance, child.getFeatures());
 		}
 		return execute;
 	}
 	
+	private Boolean evaluate(Step child, FeaturePredicate predicate, BitSet key) throws ServiceException {
+		StructureInstance instance = predicate.structure.newInstance();
+		for (int i = 0; i < predicate.features.length; i++) {
+			instance.set(predicate.features[i], key.get(i));
+		}
+		Boolean execute = (Boolean) getVariable(instance, child.getFeatures());
+		return execute == null ? false : execute;
+	}
+	
+	private static class FeaturePredicate {
+		private String expression;
+		private String [] features;
+		private Structure structure;
+		// the results per combination of enabled features, a table if there are few enough features to have an entry for every combination
+		private Boolean [] table;
+		private java.util.Map<BitSet, Boolean> results = new ConcurrentHashMap<BitSet, Boolean>();
+		
+		private FeaturePredicate(String expression) {
+			this.expression = expression;
+			List<String> features = getFeatures(expression);
+			this.features = features.toArray(new String[features.size()]);
+			if (this.features.length <= FEATURE_TABLE_SIZE) {
+				this.table = new Boolean[1 << this.features.length];
+			}
+			this.structure = new Structure();
+			for (String single : this.features) {
+				if (structure.get(single) == null) {
+					structure.add(new SimpleElementImpl<Boolean>(single, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Boolean.class), structure));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Evaluates a label to a boolean
+	 */
+	protected boolean isOkForLabel(String label, VMContext context) throws ServiceException {
+		// constant labels are used to quickly toggle steps
+		if ("true".equals(label)) {
+			return true;
+		}
+		else if ("false".equals(label)) {
+			return false;
+		}
+		Object variable = getVariable(context.getServiceInstance().getPipeline(), label);
+		if (variable instanceof Boolean) {
+			return (Boolean) variable;
+		}
+		else if (variable == null) {
+			return false;
+		}
+		Boolean converted = ConverterFactory.getInstance().getConverter().convert(variable, Boolean.class);
+		// if we can not convert the variable to a boolean, we execute if it is not null, we checked for null in the above so always true at this point
+		return converted == null ? true : converted;
+	}
+	
 	/**
 	 * @2025-05-07: An often used shorthand when defining a condition on a step is for example "myDocuments".
 	 * What you actually mean is "myDocuments != null".
@@ -164,11 +245,17 @@ abstract public class BaseStepGroup extends BaseStep implements StepGroup {
 	protected boolean executeIfLabel(Step child, VMContext context) throws ServiceException {
 		Boolean execute = isOkForFeatures(child, context);
 		if (execute && child.getLabel() != null) {
-			Object variable = getVariable(context.getServiceInstance().getPipeline(), child.getLabel());
-			execute = variable != null ? ConverterFactory.getInstance().getConverter().convert(variable, Boolean.class) : false;
-			// if we can not convert the variable to a boolean, we execute if it is not null, we checked for null in the above so always true at this point
-			if (execute == null) {
-				execute = true;
+			java.util.Map<Object, Object> invariants = context.getInvariants(child.getLabel());
+			if (invariants == null) {
+				execute = isOkForLabel(child.getLabel(), context);
+			}
+			// the label is the same in every iteration of a running loop
+			else {
+				execute = (Boolean) invariants.get(child.getLabel());
+				if (execute == null) {
+					execute = isOkForLabel(child.getLabel(), context);
+					invariants.put(child.getLabel(), execute);
+				}
 			}
 		}
 		if (execute) {
@@ -188,7 +275,7 @@ abstract public class BaseStepGroup extends BaseStep implements StepGroup {
 					descriptionValue = child.getDescription();
 				}
 				if (descriptionValue != null) {
-					ServiceRuntime.getRuntime().getRuntimeTracker().describe(descriptionValue);
+					context.getRuntimeTracker().describe(descriptionValue);
 				}
 			}
 		}
@@ -199,31 +286,45 @@ abstract public class BaseStepGroup extends BaseStep implements StepGroup {
 	}
 	
 	protected void execute(Step child, VMContext context) throws ServiceException {
+		ServiceRuntimeTracker tracker = context.getRuntimeTracker();
 		try {
-			if (ServiceRuntime.getRuntime() != null && ServiceRuntime.getRuntime().getRuntimeTracker() != null) {
-				ServiceRuntime.getRuntime().getRuntimeTracker().before(child);
+			// most executions are not tracked, skip all the hooks
+			if (tracker == null) {
+				child.execute(context);
 			}
-			child.execute(context);
-			if (ServiceRuntime.getRuntime() != null && ServiceRuntime.getRuntime().getRuntimeTracker() != null) {
+			else {
+				tracker.before(child);
+				child.execute(context);
 				emitDescription(child, context);
-				ServiceRuntime.getRuntime().getRuntimeTracker().after(child);
+				tracker.after(child);
 			}
 		}
 		catch (Exception e) {
-			if (ServiceRuntime.getRuntime() != null && ServiceRuntime.getRuntime().getRuntimeTracker() != null) {
+			if (tracker != null) {
 				emitDescription(child, context);	// questionable? you likely need data gathered in this step.... unless it's a throw of course!
-				ServiceRuntime.getRuntime().getRuntimeTracker().error(child, e);
+				tracker.error(child, e);
 			}
 			if (e instanceof ServiceException) {
 				throw (ServiceException) e;
 			}
 			else {
-				throw new ServiceException("VM-6", child.getClass().getSimpleName() + ": " + child.getId(), e);
+				throw wrap(child, e);
 			}
 		}
 	}
 	
+	/**
+	 * Non-service exceptions are wrapped once, if stackless exceptions are enabled the wrapper skips its own stack trace as the cause has one
+	 */
+	static ServiceException wrap(Step step, Exception e) {
+		return StacklessServiceException.newServiceException("VM-6", step.getClass().getSimpleName() + ": " + step.getId(), e);
+	}
+	
 	protected boolean isAborted() {
 		return ServiceRuntime.getRuntime() != null && ServiceRuntime.getRuntime().isAborted();
 	}
+	
+	protected boolean isAborted(VMContext context) {
+		return context.isAborted();
+	}
 }
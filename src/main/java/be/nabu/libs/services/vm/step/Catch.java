@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlTransient;
@@ -46,6 +47,10 @@ public class Catch extends BaseStepGroup implements LimitedStepGroup {
 	// check to see if the stack trace matches a specific regex
 	private String stacktraceRegex;
 	
+	// cached versions of the codes and the regex, these are checked on every exception
+	private volatile CodeSet codeSet;
+	private volatile Pattern stacktracePattern;
+	
 	private PipelineExtension pipeline;
 
 	public Catch() {
@@ -74,6 +79,34 @@ public class Catch extends BaseStepGroup implements LimitedStepGroup {
 	}
 	public void setCodes(List<String> codes) {
 		this.codes = codes;
+		this.codeSet = null;
+	}
+	
+	@XmlTransient
+	public Set<String> getCodeSet() {
+		CodeSet codeSet = this.codeSet;
+		// the list of codes can be modified in place, the set is rebuilt if its content no longer matches
+		if (codeSet == null || !codeSet.matches(codes)) {
+			codeSet = new CodeSet(codes);
+			this.codeSet = codeSet;
+		}
+		return codeSet.set;
+	}
+	
+	@XmlTransient
+	public Pattern getStacktracePattern() {
+		if (stacktracePattern == null && stacktraceRegex != null) {
+			stacktracePattern = Pattern.compile("(?s)" + stacktraceRegex);
+		}
+		return stacktracePattern;
+	}
+	
+	/**
+	 * A catch without types, codes or regex catches everything that is not caught by another one
+	 */
+	@XmlTransient
+	public boolean isDefault() {
+		return getTypes().isEmpty() && getCodeSet().isEmpty() && stacktraceRegex == null;
 	}
 	
 	@XmlAttribute
@@ -162,7 +195,7 @@ public class Catch extends BaseStepGroup implements LimitedStepGroup {
 				continue;
 			}
 			executeIfLabel(child, context);
-			if (isAborted()) {
+			if (isAborted(context)) {
 				break;
 			}
 		}
@@ -178,6 +211,8 @@ public class Catch extends BaseStepGroup implements LimitedStepGroup {
 	@Override
 	public void refresh() {
 		pipeline = null;
+		codeSet = null;
+		stacktracePattern = null;
 	}
 	
 	@XmlAttribute
@@ -186,5 +221,20 @@ public class Catch extends BaseStepGroup implements LimitedStepGroup {
 	}
 	public void setStacktraceRegex(String stacktraceRegex) {
 		this.stacktraceRegex = stacktraceRegex;
+		this.stacktracePattern = null;
+	}
+	
+	private static class CodeSet {
+		// a copy of the codes the set was built from
+		private List<String> codes;
+		private Set<String> set;
+		
+		private CodeSet(List<String> codes) {
+			this.codes = codes == null ? null : new ArrayList<String>(codes);
+			this.set = codes == null ? new HashSet<String>() : new HashSet<String>(codes);
+		}
+		private boolean matches(List<String> codes) {
+			return this.codes == null ? codes == null : this.codes.equals(codes);
+		}
 	}
 }
@@ -42,7 +42,7 @@ public class Finally extends BaseStepGroup implements LimitedStepGroup {
 				continue;
 			}
 			executeIfLabel(child, context);
-			if (isAborted()) {
+			if (isAborted(context)) {
 				break;
 			}
 		}
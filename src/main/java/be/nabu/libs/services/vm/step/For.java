@@ -17,6 +17,8 @@
 
 package be.nabu.libs.services.vm.step;
 
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -30,17 +32,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.property.api.Value;
 import be.nabu.libs.services.ExecutionFlag;
 import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ForkableExecutionContext;
+import be.nabu.libs.services.api.Service;
 import be.nabu.libs.services.api.ServiceContext;
 import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
+import be.nabu.libs.services.vm.BatchTuner;
+import be.nabu.libs.services.vm.GroupCommit;
+import be.nabu.libs.services.vm.ManagedCloseable.Scope;
 import be.nabu.libs.services.vm.PipelineExtension;
+import be.nabu.libs.services.vm.SpillingList;
 import be.nabu.libs.services.vm.VMContext;
+import be.nabu.libs.services.vm.api.IntoSink;
 import be.nabu.libs.services.vm.api.Step;
 import be.nabu.libs.types.BaseTypeInstance;
-import be.nabu.libs.types.CollectionHandlerFactory;
 import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.CollectionHandlerProvider;
+import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.api.DefinedSimpleType;
 import be.nabu.libs.types.api.Element;
@@ -57,7 +71,7 @@ import be.nabu.libs.validator.api.Validation;
 import be.nabu.libs.validator.api.ValidationMessage;
 import be.nabu.libs.validator.api.ValidationMessage.Severity;
 
-@XmlType(propOrder = { "variable", "index", "query", "batchSize", "into" })
+@XmlType(propOrder = { "variable", "index", "query", "batchSize", "into", "commitSize", "commitInterval", "commitRetry", "streamInto", "streamIntoSize", "spillThreshold", "hoistInvariants", "minBatchSize", "maxBatchSize", "batchTargetLatency", "batchMaxMemory", "prefetch", "recordDelimiter", "charset", "pageService", "pageInput", "pageTokenInput", "pageToken", "partitionKey", "parallelism" })
 public class For extends BaseStepGroup implements LimitedStepGroup {
 
 	// the "into" field allows you to indicate a target array (which must exist on the pipeline)
@@ -69,6 +83,49 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 	// or do a 1-1 mapping
 	private String variable, indexName, query, batchSize, into;
 	
+	// instead of a transaction per iteration, sequences with a transaction variable share a transaction that is committed every x iterations and/or y milliseconds
+	private Integer commitSize;
+	private Long commitInterval;
+	// if a chunk is rolled back, the other elements in that chunk are replayed one by one, each in their own transaction
+	private Boolean commitRetry;
+	
+	// instead of accumulating the into results, they are sent in chunks to this service
+	private String streamInto;
+	private Integer streamIntoSize;
+	
+	// once the into result contains this many elements, the rest is written to disk
+	private Integer spillThreshold;
+	private static int SPILL_THRESHOLD = Integer.parseInt(System.getProperty("be.nabu.libs.services.vm.spill.threshold", "0"));
+	
+	// if a maximum batch size is set, the batch size is tuned at runtime between the bounds, the batch size expression (if any) is the starting point
+	// with a target latency (in ms) we aim for batches that take that long, otherwise we aim for the highest throughput
+	// the memory limit (in bytes) caps the batch size based on the memory allocated per element
+	private Integer minBatchSize, maxBatchSize;
+	private Long batchTargetLatency, batchMaxMemory;
+	
+	// the amount of elements we run ahead to start the invoke in the loop before its iteration is reached
+	private Integer prefetch;
+	private volatile boolean prefetchAnalyzed;
+	private Invoke prefetchable;
+	
+	// the query can also return a stream of delimited records, they are read one at a time (or one batch at a time)
+	private String recordDelimiter, charset;
+	
+	// instead of iterating something on the pipeline, we can iterate the pages of a service, the query is then evaluated against the output of each page
+	// the page input is evaluated against the pipeline and used as input for each page, the token (or offset) is set in the page token input
+	// the page token is evaluated against the output and gives the token for the next page, if there is none, we use offsets
+	private String pageService, pageInput, pageTokenInput, pageToken;
+	
+	// the iterations are run concurrently by this many workers, iterations that have the same partition key are run one after the other in the original order
+	private String partitionKey;
+	private Integer parallelism;
+	private volatile Boolean partitionable;
+	
+	// evaluations that give the same result in every iteration are only done once
+	private Boolean hoistInvariants;
+	private static boolean HOIST_INVARIANTS = Boolean.parseBoolean(System.getProperty("be.nabu.libs.services.vm.hoistInvariants", "false"));
+	private volatile Set<Object> invariants;
+	
 	private SimpleTypeWrapper simpleTypeWrapper;
 	
 	private Logger logger = LoggerFactory.getLogger(getClass());
@@ -88,17 +145,24 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 	}
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private void addInto(List into, Object result) {
+	void addInto(Object into, Object result) throws ServiceException {
 		if (result != null) {
 			if (!(result instanceof Iterable)) {
-				CollectionHandlerProvider handler = CollectionHandlerFactory.getInstance().getHandler().getHandler(result.getClass());
+				CollectionHandlerProvider handler = LoopCursor.getHandler(result.getClass());
 				if (handler == null) {
 					throw new IllegalArgumentException("Can not merge result into the requested target");
 				}
 				result = handler.getAsIterable(result);
 			}
-			for (Object single : (Iterable) result) {
-				into.add(single);
+			if (into instanceof IntoSink) {
+				for (Object single : (Iterable) result) {
+					((IntoSink) into).add(single);
+				}
+			}
+			else {
+				for (Object single : (Iterable) result) {
+					((List) into).add(single);
+				}
 			}
 		}
 	}
@@ -106,7 +170,7 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 	private void addInto(VMContext context, Object resultingInto) throws ServiceException {
 		if (into != null) {
 			Object partialResult = getVariable(context.getServiceInstance().getPipeline(), into);
-			addInto((List) resultingInto, partialResult);
+			addInto(resultingInto, partialResult);
 			// reset to null again for next iteration
 			setVariable(context.getServiceInstance().getPipeline(), into, null);
 		}
@@ -116,432 +180,497 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 	@Override
 	public void execute(VMContext context) throws ServiceException {
 		Runnable pushExecutionFlags = null;
+		PrefetchingCursor prefetching = null;
+		Partitioner partitioner = null;
+		LoopCursor cursor = null;
+		GroupCommit previousGroupCommit = context.getGroupCommit();
+		GroupCommit groupCommit = null;
+		Set<Object> invariants = isHoistInvariants() ? getInvariants() : null;
+		if (invariants != null && !invariants.isEmpty()) {
+			context.pushInvariants(invariants);
+		}
+		else {
+			invariants = null;
+		}
 		try {
-			ServiceRuntime runtime = ServiceRuntime.getRuntime();
+			ServiceRuntime runtime = context.getRuntime();
 			if (runtime != null) {
-				pushExecutionFlags = ServiceRuntime.getRuntime().pushExecutionFlags(ExecutionFlag.LOOP);
+				pushExecutionFlags = runtime.pushExecutionFlags(ExecutionFlag.LOOP);
 			}
-			Object value = getVariable(context.getServiceInstance().getPipeline(), getQuery());
-			if (value != null) {
+			// a paged loop evaluates the query against each page
+			Object value = pageService == null ? getVariable(context.getServiceInstance().getPipeline(), getQuery()) : null;
+			if (value != null || pageService != null) {
 				Object batchSize = this.batchSize == null ? null : getVariable(context.getServiceInstance().getPipeline(), this.batchSize);
 				
-				Object resultingInto = null;
+				long increment = batchSize instanceof Number ? ((Number) batchSize).longValue() : 1;
+				BatchTuner tuner = null;
+				if (isAdaptive()) {
+					tuner = BatchTuner.getTuner(getId());
+					tuner.configure(minBatchSize == null ? 1 : minBatchSize, maxBatchSize, batchTargetLatency == null ? 0 : batchTargetLatency, 
+						batchMaxMemory == null ? 0 : batchMaxMemory, batchSize instanceof Number ? (int) Math.min(increment, Integer.MAX_VALUE) : minBatchSize == null ? 1 : minBatchSize);
+					increment = tuner.getBatchSize();
+				}
+				// booleans are evaluated again for each iteration, numbers are iterated as a range and anything else must be a collection
+				cursor = pageService == null 
+					? LoopCursor.open(this, context, value, this.batchSize != null || tuner != null, increment)
+					: new PagedCursor(this, context, this.batchSize != null || tuner != null, (int) Math.max(1, Math.min(increment, Integer.MAX_VALUE)));
 				
-				if (into != null) {
-					resultingInto = getVariable(context.getServiceInstance().getPipeline(), into);
-					if (resultingInto == null) {
-						resultingInto = new ArrayList();
-					}
-					else if (!(resultingInto instanceof List)) {
-						List list = new ArrayList();
-						addInto(list, resultingInto);
-						resultingInto = list;
-					}
-					// set the into to null so we can start creating sublists
-					setVariable(context.getServiceInstance().getPipeline(), into, null);
+				Object resultingInto = openInto(context, cursor);
+				
+				// the prefetched services and the partitions run in a forked context, they can not take part in a group commit
+				boolean grouped = (commitSize != null && commitSize > 0) || (commitInterval != null && commitInterval > 0);
+				if (partitionKey != null && parallelism != null && parallelism > 1 && !grouped && !cursor.batch && !(value instanceof Boolean) 
+						&& context.getExecutionContext() instanceof ForkableExecutionContext && isPartitionable(context.getExecutionContext().getServiceContext())) {
+					// the partitions start from the pipeline as it is before the loop
+					partitioner = new Partitioner(this, context, context.getServiceInstance().getPipeline(), parallelism);
 				}
-					
-				long increment = batchSize instanceof Number ? ((Number) batchSize).longValue() : 1;
-				// if we have a boolean, we execute until it is not true
-				if (value instanceof Boolean) {
-					// if we have a batch size, we start at that point, e.g. if you set 5, you immediately start with index 4
-					long index = increment - 1;
-					while (value instanceof Boolean && (Boolean) value) {
-						context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-						
-						// now set the variables (if applicable)
-						if (indexName != null) {
-							// if the definition exists, we created a list of this
-							if (this.batchSize != null) {
-								List list = new ArrayList();
-								// if batch size is 5, the index is 4, 9,... and we want a list of [0-4], [5-9]...
-								for (long i = index - increment + 1; i <= index; i++) {
-									list.add(i);
-								}
-								setVariable(context.getServiceInstance().getPipeline(), indexName, list);
-							}
-							else {
-								setVariable(context.getServiceInstance().getPipeline(), indexName, index);
-							}
-						}
-						if (variable != null) {
-							// if the definition exists, we created a list of this
-							if (this.batchSize != null) {
-								List list = new ArrayList();
-								// if batch size is 5, the index is 4, 9,... and we want a list of [0-4], [5-9]...
-								for (long i = index - increment + 1; i <= index; i++) {
-									list.add(value);
-								}
-								setVariable(context.getServiceInstance().getPipeline(), variable, list);
-							}
-							else {
-								setVariable(context.getServiceInstance().getPipeline(), variable, value);
-							}
-						}
-						executeSteps(context);
-						// do it _before_ we check for break
-						addInto(context, resultingInto);
-						// check break count
-						if (context.mustBreak()) {
-							// if we are not the target of the break or we don't explicitly specify that we want to continue with execution, we break
-							// otherwise, we want to continue the loop, but we need to recalculate the value and update the index (see below)
-							if (context.decreaseBreakCount() != 0 || !context.isContinueExecution()) {
-								break;
-							}
-						}
-						else if (isAborted()) {
-							break;
-						}
-						// evaluate it again
-						value = getVariable(context.getServiceInstance().getPipeline(), getQuery());
-						index += increment;
+				else if (prefetch != null && prefetch > 0 && !grouped && !(value instanceof Boolean) && context.getExecutionContext() instanceof ForkableExecutionContext) {
+					Invoke invoke = getPrefetchable();
+					if (invoke != null) {
+						cursor = prefetching = new PrefetchingCursor(cursor, this, invoke, prefetch);
 					}
 				}
-				else if (value instanceof Number) {
-					long longValue = ((Number) value).longValue();
-					for (long i = increment - 1; i < longValue; i += Math.min(increment, longValue - i)) {
-						context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-						
-						// now set the variables (if applicable)
-						if (indexName != null) {
-							// if the definition exists, we created a list of this
-							if (this.batchSize != null) {
-								List list = new ArrayList();
-								// if batch size is 5, the index is 4, 9,... and we want a list of [0-4], [5-9]...
-								for (long j = i - increment + 1; j <= i; j++) {
-									list.add(j);
-								}
-								setVariable(context.getServiceInstance().getPipeline(), indexName, list);
-							}
-							else {
-								setVariable(context.getServiceInstance().getPipeline(), indexName, i);
-							}
-						}
-						if (variable != null) {
-							// if the definition exists, we created a list of this
-							if (this.batchSize != null) {
-								List list = new ArrayList();
-								// if batch size is 5, the index is 4, 9,... and we want a list of [0-4], [5-9]...
-								for (long j = i - increment + 1; j <= i; j++) {
-									list.add(j);
-								}
-								setVariable(context.getServiceInstance().getPipeline(), variable, list);
-							}
-							else {
-								setVariable(context.getServiceInstance().getPipeline(), variable, i);
-							}
-						}
-						executeSteps(context);
-						addInto(context, resultingInto);
-						// check break count
-						if (context.mustBreak()) {
-							// if we are not the target of the break or we don't explicitly specify that we want to continue with execution, we break
-							// otherwise, we want to continue the loop, but we need to recalculate the value and update the index (see below)
-							if (context.decreaseBreakCount() != 0 || !context.isContinueExecution()) {
-								break;
-							}
-						}
-						else if (isAborted()) {
-							break;
-						}
-					}
+				
+				if (grouped) {
+					groupCommit = new GroupCommit(this, commitSize != null && commitSize > 0 ? commitSize : null, commitInterval != null && commitInterval > 0 ? commitInterval : null);
+					groupCommit.setMark(resultingInto instanceof List ? ((List) resultingInto).size() : 0);
+					context.setGroupCommit(groupCommit);
 				}
-				else if (value instanceof Iterable) {
-					long index = 0;
-					if (this.batchSize == null) {
-						for (Object single : (Iterable) value) {
-							context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-							if (indexName != null) {
-								setVariable(context.getServiceInstance().getPipeline(), indexName, index++);
-							}
-							if (variable != null) {
-								setVariable(context.getServiceInstance().getPipeline(), variable, single);
-							}
-							executeSteps(context);
-							addInto(context, resultingInto);
-							// check break count
-							if (context.mustBreak()) {
-								// if we are not the target of the break or we don't explicitly specify that we want to continue with execution, we break
-								// otherwise, we want to continue the loop, but we need to recalculate the value and update the index (see below)
-								if (context.decreaseBreakCount() != 0 || !context.isContinueExecution()) {
-									break;
-								}
-							}
-							else if (isAborted()) {
-								break;
-							}
-						}
+				
+				while (cursor.next()) {
+					if (partitioner != null) {
+						partition(context, cursor, partitioner, resultingInto);
 					}
-					else {
-						List indexes = indexName != null ? new ArrayList() : null;
-						List values = variable != null ? new ArrayList() : null;
-						long batchIndex = 0;
-						for (Object single : (Iterable) value) {
-							// always add it to the list
-							if (indexes != null) {
-								indexes.add(index++);
-							}
-							if (values != null) {
-								values.add(single);
-							}
-							batchIndex++;
-							// if we have reached the increment size, we run it
-							if (batchIndex == increment) {
-								context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-								if (indexName != null) {
-									setVariable(context.getServiceInstance().getPipeline(), indexName, indexes);
-								}
-								if (variable != null) {
-									setVariable(context.getServiceInstance().getPipeline(), variable, values);
-								}
-								executeSteps(context);
-								addInto(context, resultingInto);
-								// check break count
-								if (context.mustBreak()) {
-									// if we are not the target of the break or we don't explicitly specify that we want to continue with execution, we break
-									// otherwise, we want to continue the loop, but we need to recalculate the value and update the index (see below)
-									if (context.decreaseBreakCount() != 0 || !context.isContinueExecution()) {
-										break;
-									}
-								}
-								batchIndex = 0;
-								if (indexes != null) {
-									indexes.clear();
-								}
-								if (values != null) {
-									values.clear();
-								}
-							}
-							if (isAborted()) {
-								break;
-							}
-						}
-						// we have remaining in the batch...
-						if (batchIndex > 0) {
-							context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-							if (indexName != null) {
-								setVariable(context.getServiceInstance().getPipeline(), indexName, indexes);
-							}
-							if (variable != null) {
-								setVariable(context.getServiceInstance().getPipeline(), variable, values);
-							}
-							executeSteps(context);
-							addInto(context, resultingInto);
-						}
+					else if (tuner == null) {
+						iterate(context, cursor, resultingInto);
 					}
-				}
-				// shameless copy of the else {} adapted to work with batches...
-				// should probably be refactored at some point...
-				else if (this.batchSize != null) {
-					CollectionHandlerProvider collectionHandler = CollectionHandlerFactory.getInstance().getHandler().getHandler(value.getClass());
-					if (collectionHandler == null) {
-						throw new IllegalArgumentException("The variable '" + value + "' does not point to a collection");
+					else {
+						long started = System.nanoTime();
+						long allocated = BatchTuner.getAllocatedBytes();
+						iterate(context, cursor, resultingInto);
+						tuner.measured(((List) cursor.getValue()).size(), System.nanoTime() - started, allocated < 0 ? -1 : BatchTuner.getAllocatedBytes() - allocated);
+						cursor.setSize(tuner.getBatchSize());
 					}
-					Class indexClass = collectionHandler.getIndexClass();
-					
-					List indexes = indexName != null ? new ArrayList() : null;
-					List values = variable != null ? new ArrayList() : null;
-					long batchIndex = 0;
-					// if we have an integer index, we assume it is a list-like structure with an incremental index
-					// for performance reasons it is much better to get the collection as iterable and generate the index rather than get the collection of indexes and use that versus the collection
-					if (Integer.class.isAssignableFrom(indexClass)) {
-						Iterable iterable = collectionHandler.getAsIterable(value);
-						int index = 0;
-						for (Object single : iterable) {
-							// always add it to the list
-							if (indexes != null) {
-								indexes.add(index++);
-							}
-							if (values != null) {
-								values.add(single);
-							}
-							batchIndex++;
-							// if we have reached the increment size, we run it
-							if (batchIndex == increment) {
-								context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-								
-								if (indexName != null) {
-									setVariable(context.getServiceInstance().getPipeline(), indexName, indexes);
-								}
-								if (variable != null) {
-									setVariable(context.getServiceInstance().getPipeline(), variable, values);
-								}
-								executeSteps(context);
-								addInto(context, resultingInto);
-								// check break count
-								if (context.mustBreak()) {
-									// if we are not the target of the break or we don't explicitly specify that we want to continue with execution, we break
-									// otherwise, we want to continue the loop, but we need to recalculate the value and update the index (see below)
-									if (context.decreaseBreakCount() != 0 || !context.isContinueExecution()) {
-										break;
-									}
-								}
-								batchIndex = 0;
-								if (indexes != null) {
-									indexes.clear();
-								}
-								if (values != null) {
-									values.clear();
-								}
-							}
-							if (isAborted()) {
-								break;
-							}
-						}
-						// we have remaining in the batch...
-						if (batchIndex > 0) {
-							context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-							if (indexName != null) {
-								setVariable(context.getServiceInstance().getPipeline(), indexName, indexes);
-							}
-							if (variable != null) {
-								setVariable(context.getServiceInstance().getPipeline(), variable, values);
-							}
-							executeSteps(context);
-							addInto(context, resultingInto);
+					// check break count
+					if (context.mustBreak()) {
+						// if we are not the target of the break or we don't explicitly specify that we want to continue with execution, we break
+						// otherwise, we want to continue the loop, but we need to recalculate the value and update the index (see below)
+						if (context.decreaseBreakCount() != 0 || !context.isContinueExecution()) {
+							break;
 						}
 					}
-					else {
-						for (Object index : collectionHandler.getIndexes(value)) {
-							// always add it to the list
-							if (indexes != null) {
-								indexes.add(index);
-							}
-							if (values != null) {
-								values.add(collectionHandler.get(value, index));
-							}
-							batchIndex++;
-							// if we have reached the increment size, we run it
-							if (batchIndex == increment) {
-								// cast the pipeline to the proper definition
-								// if the pipeline belongs to the parent, an additional local wrapper will be added
-								// if the pipeline belongs to this guy, it is unchanged
-								// if the pipeline belongs to a child scope, the additional parameters are unwrapped
-								// this means anything in this scope (NOT a child scope) is retained
-								context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-					
-								// now set the variables (if applicable)
-								if (indexName != null) {
-									setVariable(context.getServiceInstance().getPipeline(), indexName, indexes);
-								}
-								if (variable != null) {
-									setVariable(context.getServiceInstance().getPipeline(), variable, values);
-								}
-								executeSteps(context);
-								addInto(context, resultingInto);
-								// check break count
-								if (context.mustBreak()) {
-									// if we are not the target of the break or we don't explicitly specify that we want to continue with execution, we break
-									// otherwise, we want to continue the loop, but we need to recalculate the value and update the index (see below)
-									if (context.decreaseBreakCount() != 0 || !context.isContinueExecution()) {
-										break;
-									}
-								}
-								batchIndex = 0;
-								if (indexes != null) {
-									indexes.clear();
-								}
-								if (values != null) {
-									values.clear();
-								}
-							}
-							if (isAborted()) {
-								break;
-							}
-						}
-						// we have remaining in the batch...
-						if (batchIndex > 0) {
-							context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-							if (indexName != null) {
-								setVariable(context.getServiceInstance().getPipeline(), indexName, indexes);
-							}
-							if (variable != null) {
-								setVariable(context.getServiceInstance().getPipeline(), variable, values);
-							}
-							executeSteps(context);
-							addInto(context, resultingInto);
-						}
+					else if (isAborted(context)) {
+						break;
 					}
 				}
-				else {
-					CollectionHandlerProvider collectionHandler = CollectionHandlerFactory.getInstance().getHandler().getHandler(value.getClass());
-					if (collectionHandler == null) {
-						throw new IllegalArgumentException("The variable '" + value + "' does not point to a collection");
-					}
-					Class indexClass = collectionHandler.getIndexClass();
-					// if we have an integer index, we assume it is a list-like structure with an incremental index
-					// for performance reasons it is much better to get the collection as iterable and generate the index rather than get the collection of indexes and use that versus the collection
-					if (Integer.class.isAssignableFrom(indexClass)) {
-						Iterable iterable = collectionHandler.getAsIterable(value);
-						int index = 0;
-						for (Object single : iterable) {
-							context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
-							
-							if (indexName != null) {
-								setVariable(context.getServiceInstance().getPipeline(), indexName, index++);
-							}
-							if (variable != null) {
-								setVariable(context.getServiceInstance().getPipeline(), variable, single);
-							}
-							executeSteps(context);
-							addInto(context, resultingInto);
-							// check break count
-							if (context.mustBreak()) {
-								// if we are not the target of the break or we don't explicitly specify that we want to continue with execution, we break
-								// otherwise, we want to continue the loop, but we need to recalculate the value and update the index (see below)
-								if (context.decreaseBreakCount() != 0 || !context.isContinueExecution()) {
-									break;
-								}
-							}
-							else if (isAborted()) {
-								break;
-							}
-						}
+				
+				// commit the last chunk
+				if (groupCommit != null) {
+					if (isAborted(context)) {
+						groupCommit.rollback(context);
+						groupCommit.reset();
 					}
 					else {
-						for (Object index : collectionHandler.getIndexes(value)) {
-							// cast the pipeline to the proper definition
-							// if the pipeline belongs to the parent, an additional local wrapper will be added
-							// if the pipeline belongs to this guy, it is unchanged
-							// if the pipeline belongs to a child scope, the additional parameters are unwrapped
-							// this means anything in this scope (NOT a child scope) is retained
-							context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
+						groupCommit.commit(context);
+					}
+				}
 				
-							// now set the variables (if applicable)
-							if (indexName != null) {
-								setVariable(context.getServiceInstance().getPipeline(), indexName, index);
-							}
-							if (variable != null) {
-								setVariable(context.getServiceInstance().getPipeline(), variable, collectionHandler.get(value, index));
-							}
-							executeSteps(context);
-							addInto(context, resultingInto);
-							// check break count
-							if (context.mustBreak()) {
-								// if we are not the target of the break or we don't explicitly specify that we want to continue with execution, we break
-								// otherwise, we want to continue the loop, but we need to recalculate the value and update the index (see below)
-								if (context.decreaseBreakCount() != 0 || !context.isContinueExecution()) {
-									break;
-								}
-							}
-							else if (isAborted()) {
-								break;
-							}
+				if (partitioner != null) {
+					partitioner.finish(resultingInto);
+				}
+				
+				closeInto(context, resultingInto);
+			}
+		}
+		finally {
+			if (partitioner != null) {
+				partitioner.stop();
+			}
+			if (prefetching != null) {
+				prefetching.close(context);
+			}
+			if (cursor != null) {
+				close(cursor);
+			}
+			if (groupCommit != null) {
+				// if we exited with an exception, the open chunk (if any) is rolled back
+				try {
+					groupCommit.rollback(context);
+				}
+				catch (Exception e) {
+					logger.warn("Could not rollback the group commit", e);
+				}
+				context.setGroupCommit(previousGroupCommit);
+			}
+			if (pushExecutionFlags != null) {
+				pushExecutionFlags.run();
+			}
+			if (invariants != null) {
+				context.popInvariants();
+			}
+		}
+	}
+	
+	/**
+	 * Runs several loops over the same collection in a single pass, each element is handed to the loops in order
+	 * The loops must have been vetted by the step analyzer: they can not see each other's effects, don't invoke services, don't break and have no group commit
+	 * Returns false if the loops can not be run together at runtime (e.g. a condition loop), the caller should run them one by one
+	 */
+	static boolean executeFused(BaseStepGroup parent, VMContext context, List<For> loops) throws ServiceException {
+		For first = loops.get(0);
+		Object value = first.getVariable(context.getServiceInstance().getPipeline(), first.getQuery());
+		// a condition is evaluated again in each iteration, we can't share that
+		if (value instanceof Boolean) {
+			return false;
+		}
+		ServiceRuntimeTracker tracker = context.getRuntimeTracker();
+		Runnable pushExecutionFlags = null;
+		For current = first;
+		LoopCursor cursor = null;
+		try {
+			if (tracker != null) {
+				for (For loop : loops) {
+					tracker.before(loop);
+				}
+			}
+			ServiceRuntime runtime = context.getRuntime();
+			if (runtime != null) {
+				pushExecutionFlags = runtime.pushExecutionFlags(ExecutionFlag.LOOP);
+			}
+			if (value != null) {
+				Object batchSize = first.batchSize == null ? null : first.getVariable(context.getServiceInstance().getPipeline(), first.batchSize);
+				long increment = batchSize instanceof Number ? ((Number) batchSize).longValue() : 1;
+				cursor = LoopCursor.open(first, context, value, first.batchSize != null, increment);
+				Object [] resultingInto = new Object[loops.size()];
+				for (int i = 0; i < loops.size(); i++) {
+					current = loops.get(i);
+					resultingInto[i] = current.openInto(context, cursor);
+				}
+				iterations: while (cursor.next()) {
+					for (int i = 0; i < loops.size(); i++) {
+						current = loops.get(i);
+						current.iterate(context, cursor, resultingInto[i]);
+						if (context.isAborted()) {
+							break iterations;
 						}
 					}
 				}
-				
-				// we have been building a resultset, push it to the pipeline
-				if (into != null) {
-					setVariable(context.getServiceInstance().getPipeline(), into, resultingInto);
+				for (int i = 0; i < loops.size(); i++) {
+					current = loops.get(i);
+					current.closeInto(context, resultingInto[i]);
+				}
+			}
+			if (tracker != null) {
+				for (For loop : loops) {
+					parent.emitDescription(loop, context);
+					tracker.after(loop);
 				}
 			}
 		}
+		catch (Exception e) {
+			if (tracker != null) {
+				parent.emitDescription(current, context);
+				tracker.error(current, e);
+			}
+			if (e instanceof ServiceException) {
+				throw (ServiceException) e;
+			}
+			else {
+				throw wrap(current, e);
+			}
+		}
 		finally {
+			if (cursor != null) {
+				first.close(cursor);
+			}
 			if (pushExecutionFlags != null) {
 				pushExecutionFlags.run();
 			}
 		}
+		return true;
+	}
+	
+	/**
+	 * Streaming sources are closed as soon as we are done with them
+	 */
+	private void close(LoopCursor cursor) {
+		try {
+			cursor.close();
+		}
+		catch (Exception e) {
+			logger.warn("Could not close the source of the loop", e);
+		}
+	}
+	
+	/**
+	 * Prepares the list (or sink) the results of the iterations are gathered in
+	 */
+	@SuppressWarnings({ "rawtypes" })
+	private Object openInto(VMContext context, LoopCursor cursor) throws ServiceException {
+		Object resultingInto = null;
+		if (into != null) {
+			resultingInto = streamInto == null ? getVariable(context.getServiceInstance().getPipeline(), into) : new ServiceSink(context, streamInto, streamIntoSize);
+			// a sink takes care of the results itself
+			if (resultingInto instanceof IntoSink) {
+				// do nothing
+			}
+			else if (resultingInto == null) {
+				int threshold = spillThreshold == null ? SPILL_THRESHOLD : spillThreshold;
+				if (threshold > 0) {
+					resultingInto = new SpillingList(threshold);
+					// the files are removed when the service is done
+					context.addManaged((SpillingList) resultingInto, Scope.SERVICE);
+				}
+				else {
+					// for a mapping loop the amount of results is usually the same as the amount of elements
+					int sizeHint = cursor.getSizeHint();
+					resultingInto = sizeHint > 0 ? new ArrayList(sizeHint) : new ArrayList();
+				}
+			}
+			else if (!(resultingInto instanceof List)) {
+				List list = new ArrayList();
+				addInto(list, resultingInto);
+				resultingInto = list;
+			}
+			// set the into to null so we can start creating sublists
+			setVariable(context.getServiceInstance().getPipeline(), into, null);
+		}
+		return resultingInto;
+	}
+	
+	/**
+	 * We have been building a resultset, push it to the pipeline
+	 */
+	private void closeInto(VMContext context, Object resultingInto) throws ServiceException {
+		if (into != null) {
+			if (resultingInto instanceof IntoSink) {
+				((IntoSink) resultingInto).flush();
+			}
+			// the results have already been sent to the service
+			setVariable(context.getServiceInstance().getPipeline(), into, resultingInto instanceof ServiceSink ? null : resultingInto);
+		}
+	}
+	
+	/**
+	 * Calculates the partition key for the current element and hands it off
+	 */
+	private void partition(VMContext context, LoopCursor cursor, Partitioner partitioner, Object resultingInto) throws ServiceException {
+		context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
+		if (indexName != null) {
+			setVariable(context.getServiceInstance().getPipeline(), indexName, cursor.getIndex());
+		}
+		if (variable != null) {
+			setVariable(context.getServiceInstance().getPipeline(), variable, cursor.getValue());
+		}
+		Object key = getVariable(context.getServiceInstance().getPipeline(), partitionKey);
+		partitioner.submit(key, cursor.getValue(), cursor.getIndex(), resultingInto);
+	}
+	
+	/**
+	 * Runs a single iteration in the context of a partition, returns the result for the into (if any)
+	 */
+	Object iteratePartitioned(VMContext context, Object value, Object index) throws ServiceException {
+		context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
+		if (indexName != null) {
+			setVariable(context.getServiceInstance().getPipeline(), indexName, index);
+		}
+		if (variable != null) {
+			setVariable(context.getServiceInstance().getPipeline(), variable, value);
+		}
+		executeSteps(context);
+		if (into == null) {
+			return null;
+		}
+		Object result = getVariable(context.getServiceInstance().getPipeline(), into);
+		setVariable(context.getServiceInstance().getPipeline(), into, null);
+		return result;
+	}
+	
+	private boolean isPartitionable(ServiceContext serviceContext) {
+		if (partitionable == null) {
+			synchronized(this) {
+				if (partitionable == null) {
+					partitionable = StepAnalyzer.isPartitionable(this, getParent().getPipeline(serviceContext));
+				}
+			}
+		}
+		return partitionable;
+	}
+	
+	/**
+	 * Moves the pipeline to the current element of the cursor and runs the iteration
+	 */
+	private void iterate(VMContext context, LoopCursor cursor, Object resultingInto) throws ServiceException {
+		// cast the pipeline to the proper definition
+		// if the pipeline belongs to the parent, an additional local wrapper will be added
+		// if the pipeline belongs to this guy, it is unchanged
+		// if the pipeline belongs to a child scope, the additional parameters are unwrapped
+		// this means anything in this scope (NOT a child scope) is retained
+		context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
+		
+		if (cursor instanceof PrefetchingCursor) {
+			((PrefetchingCursor) cursor).prefetch(context);
+		}
+		
+		// now set the variables (if applicable), in batch mode these are lists
+		if (indexName != null) {
+			setVariable(context.getServiceInstance().getPipeline(), indexName, cursor.getIndex());
+		}
+		if (variable != null) {
+			setVariable(context.getServiceInstance().getPipeline(), variable, cursor.getValue());
+		}
+		iterate(context, resultingInto);
+	}
+	
+	private Invoke getPrefetchable() {
+		if (!prefetchAnalyzed) {
+			synchronized(this) {
+				if (!prefetchAnalyzed) {
+					prefetchable = StepAnalyzer.getPrefetchable(this);
+					prefetchAnalyzed = true;
+				}
+			}
+		}
+		return prefetchable;
+	}
+	
+	private boolean isAdaptive() {
+		return maxBatchSize != null && maxBatchSize > 0;
+	}
+	
+	private boolean isHoistInvariants() {
+		return hoistInvariants == null ? HOIST_INVARIANTS : hoistInvariants;
+	}
+	
+	private Set<Object> getInvariants() {
+		if (invariants == null) {
+			synchronized(this) {
+				if (invariants == null) {
+					invariants = StepAnalyzer.getInvariants(this);
+				}
+			}
+		}
+		return invariants;
+	}
+	
+	/**
+	 * Runs a single iteration, taking the group commit into account if there is one
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void iterate(VMContext context, Object resultingInto) throws ServiceException {
+		GroupCommit groupCommit = context.getGroupCommit();
+		if (groupCommit == null || groupCommit.getOwner() != this) {
+			executeSteps(context);
+			addInto(context, resultingInto);
+			return;
+		}
+		// remember the element so we can replay it, the iteration can change the batch lists so we need a copy
+		Object currentValue = variable == null ? null : getVariable(context.getServiceInstance().getPipeline(), variable);
+		Object currentIndex = indexName == null ? null : getVariable(context.getServiceInstance().getPipeline(), indexName);
+		groupCommit.add(currentValue instanceof List ? new ArrayList((List) currentValue) : currentValue, currentIndex instanceof List ? new ArrayList((List) currentIndex) : currentIndex);
+		// results that went to a sink can not be taken back
+		List list = resultingInto instanceof List ? (List) resultingInto : null;
+		int before = list == null ? 0 : list.size();
+		try {
+			executeSteps(context);
+		}
+		catch (ServiceException | RuntimeException e) {
+			groupCommit.rollback(context);
+			try {
+				// the results of the chunk were rolled back along with it
+				if (list != null) {
+					list.subList(Math.min(groupCommit.getMark(), list.size()), list.size()).clear();
+				}
+				// the failed element is not replayed, it is up to the exception handling to deal with it
+				if (commitRetry != null && commitRetry) {
+					try {
+						replay(context, groupCommit, new ArrayList<Object[]>(groupCommit.getPending().subList(0, groupCommit.getPending().size() - 1)), resultingInto);
+					}
+					catch (ServiceException | RuntimeException replayException) {
+						e.addSuppressed(replayException);
+					}
+				}
+			}
+			finally {
+				groupCommit.reset();
+				publishCommitted(context, groupCommit, list);
+			}
+			throw e;
+		}
+		addInto(context, resultingInto);
+		// a sequence in the iteration failed and rolled back the chunk but the exception was handled
+		if (groupCommit.isRolledBack()) {
+			// the result of the current element is retained, the results of the rest of the chunk are recalculated (if possible)
+			List current = null;
+			if (list != null) {
+				current = new ArrayList(list.subList(before, list.size()));
+				list.subList(Math.min(groupCommit.getMark(), list.size()), list.size()).clear();
+			}
+			List<Object[]> earlier = new ArrayList<Object[]>(groupCommit.getPending().subList(0, groupCommit.getPending().size() - 1));
+			// commit anything the current iteration did after the rollback
+			groupCommit.commit(context);
+			if (commitRetry != null && commitRetry) {
+				try {
+					replay(context, groupCommit, earlier, resultingInto);
+				}
+				catch (ServiceException | RuntimeException e) {
+					// the current element was committed, unlike the elements that were not replayed
+					if (list != null) {
+						list.addAll(current);
+					}
+					publishCommitted(context, groupCommit, list);
+					throw e;
+				}
+			}
+			else if (!earlier.isEmpty()) {
+				logger.warn("The group commit in " + getId() + " was rolled back, the work of " + earlier.size() + " earlier iteration(s) in the chunk is lost");
+			}
+			if (list != null) {
+				list.addAll(current);
+			}
+			groupCommit.setMark(list == null ? 0 : list.size());
+		}
+		else if (groupCommit.isDue()) {
+			groupCommit.commit(context);
+			groupCommit.setMark(list == null ? 0 : list.size());
+		}
+	}
+	
+	/**
+	 * An exception ends the loop, the results of the iterations that were committed are pushed to the pipeline so they match what was persisted
+	 */
+	@SuppressWarnings("rawtypes")
+	private void publishCommitted(VMContext context, GroupCommit groupCommit, List list) throws ServiceException {
+		if (list != null) {
+			groupCommit.setMark(list.size());
+			setVariable(context.getServiceInstance().getPipeline(), into, list);
+		}
+	}
+	
+	/**
+	 * Replays the given elements without a group commit, so each sequence uses its own transaction
+	 */
+	private void replay(VMContext context, GroupCommit groupCommit, List<Object[]> elements, Object resultingInto) throws ServiceException {
+		context.setGroupCommit(null);
+		try {
+			for (Object[] element : elements) {
+				context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
+				if (indexName != null) {
+					setVariable(context.getServiceInstance().getPipeline(), indexName, element[1]);
+				}
+				if (variable != null) {
+					setVariable(context.getServiceInstance().getPipeline(), variable, element[0]);
+				}
+				executeSteps(context);
+				addInto(context, resultingInto);
+				if (context.mustBreak() || isAborted(context)) {
+					break;
+				}
+			}
+		}
+		finally {
+			context.setGroupCommit(groupCommit);
+		}
 	}
 
 	private void executeSteps(VMContext context) throws ServiceException {
@@ -554,7 +683,7 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 			if (context.mustBreak()) {
 				break;
 			}
-			else if (isAborted()) {
+			else if (isAborted(context)) {
 				break;
 			}
 		}
@@ -567,6 +696,9 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 	public For setVariable(String variable) {
 		this.variable = variable;
 		this.pipeline = null;
+		this.invariants = null;
+		this.prefetchAnalyzed = false;
+		this.partitionable = null;
 		return this;
 	}
 
@@ -584,6 +716,8 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 	}
 	public void setInto(String into) {
 		this.into = into;
+		this.invariants = null;
+		this.partitionable = null;
 	}
 
 	@XmlAttribute
@@ -593,6 +727,9 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 	public For setIndex(String index) {
 		this.indexName = index;
 		this.pipeline = null;
+		this.invariants = null;
+		this.prefetchAnalyzed = false;
+		this.partitionable = null;
 		return this;
 	}
 
@@ -608,12 +745,23 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Override
+	/**
+	 * The type the query is evaluated against: the parent pipeline or, for a paged loop, the output of the page service (null if it can not be found)
+	 */
+	private ComplexType getQueryContext(ServiceContext serviceContext) {
+		if (pageService == null) {
+			return getParent().getPipeline(serviceContext);
+		}
+		DefinedService service = serviceContext.getResolver(DefinedService.class).resolve(pageService);
+		return service == null ? null : service.getServiceInterface().getOutputDefinition();
+	}
+	
 	public ComplexType getPipeline(ServiceContext serviceContext) {
 		if (this.indexName != null || this.variable != null) {
 			if (pipeline == null) {
 				synchronized(this) {
 					if (pipeline == null) {
-						boolean isBatch = batchSize != null;
+						boolean isBatch = batchSize != null || isAdaptive();
 						// create a new structure
 						PipelineExtension pipeline = new PipelineExtension();
 						// that extends the parent structure
@@ -626,8 +774,8 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 								TypeOperation operation = getOperation(query);
 								// the operation must be resolved against the parent pipeline
 								// you may be using variables exposed by it rather then the original service
-								ComplexType parentPipeline = getParent().getPipeline(serviceContext);
-								CollectionHandlerProvider<?, ?> collectionHandler = operation.getReturnCollectionHandler(parentPipeline);
+								ComplexType parentPipeline = getQueryContext(serviceContext);
+								CollectionHandlerProvider<?, ?> collectionHandler = parentPipeline == null ? null : operation.getReturnCollectionHandler(parentPipeline);
 								Class<?> indexType = collectionHandler == null ? null : collectionHandler.getIndexClass();
 								if (indexType == null) {
 									indexType = Long.class;
@@ -652,7 +800,15 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 								TypeOperation operation = getOperation(query);
 								// the operation must be resolved against the parent pipeline
 								// you may be using variables exposed by it rather then the original service
-								Type returnType = operation.getReturnType(getParent().getPipeline(serviceContext));
+								ComplexType queryContext = getQueryContext(serviceContext);
+								if (queryContext == null) {
+									throw new IllegalStateException("Could not find page service: " + pageService);
+								}
+								Type returnType = operation.getReturnType(queryContext);
+								// a stream is read as delimited records, the variable is one record (or a batch of them)
+								if (returnType instanceof SimpleType && isRecords(((SimpleType<?>) returnType).getInstanceClass())) {
+									returnType = getSimpleTypeWrapper().wrap(String.class);
+								}
 								// in some very rare cases the min/max occurs can reside in the type (it shouldn't but notably the swagger client currently does this...)
 								// in that case, we want to force the max occurs to be 1 at design time, the runtime will always make it 1 as well
 								Element<?> element = returnType instanceof ComplexType
@@ -677,6 +833,10 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 			return getParent().getPipeline(serviceContext);
 	}
 
+	private static boolean isRecords(Class<?> instanceClass) {
+		return instanceClass != null && (InputStream.class.isAssignableFrom(instanceClass) || ReadableByteChannel.class.isAssignableFrom(instanceClass));
+	}
+
 	@XmlTransient
 	public SimpleTypeWrapper getSimpleTypeWrapper() {
 		if (simpleTypeWrapper == null)
@@ -696,9 +856,58 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 		if (query == null || query.isEmpty()) {
 			messages.add(addContext(new ValidationMessage(Severity.WARNING, "No query defined for the 'for' loop")));
 		}
-		else {
+		// for a paged loop the query is evaluated against the output of the page service
+		else if (pageService == null) {
 			messages.addAll(validateQuery(serviceContext, query));
 		}
+		if (partitionKey != null && parallelism != null && parallelism > 1) {
+			if (batchSize != null || isAdaptive()) {
+				messages.add(addContext(new ValidationMessage(Severity.WARNING, "A loop with batches can not be partitioned, it will run sequentially")));
+			}
+			else if (!StepAnalyzer.isPartitionable(this, getParent().getPipeline(serviceContext))) {
+				messages.add(addContext(new ValidationMessage(Severity.WARNING, "The loop can not be partitioned because it breaks or changes variables outside of the loop, it will run sequentially")));
+			}
+		}
+		if (streamInto != null) {
+			DefinedService sink = serviceContext.getResolver(DefinedService.class).resolve(streamInto);
+			if (sink == null) {
+				messages.add(addContext(new ValidationMessage(Severity.ERROR, "Could not find service to stream into: " + streamInto)));
+			}
+			else if (ServiceSink.getListInput(sink) == null) {
+				messages.add(addContext(new ValidationMessage(Severity.ERROR, "The service " + streamInto + " has no list input to stream into")));
+			}
+		}
+		if (pageService != null) {
+			if (serviceContext.getResolver(DefinedService.class).resolve(pageService) == null) {
+				messages.add(addContext(new ValidationMessage(Severity.ERROR, "Could not find page service: " + pageService)));
+			}
+			if (pageTokenInput == null) {
+				messages.add(addContext(new ValidationMessage(Severity.ERROR, "No input is set for the page token, the same page will be requested over and over")));
+			}
+		}
+		if (prefetch != null && prefetch > 0) {
+			Invoke prefetchable = StepAnalyzer.getPrefetchable(this);
+			if (prefetchable == null) {
+				messages.add(addContext(new ValidationMessage(Severity.WARNING, "The loop can not prefetch: it needs an invoke that is the only service call in the loop, does not have a target and whose input does not depend on anything that is changed in the loop")));
+			}
+			else {
+				messages.add(addContext(new ValidationMessage(Severity.WARNING, "The service '" + prefetchable.getServiceId() + "' is prefetched: it runs outside of the transaction of the loop and can be called for elements that are never iterated, it should not have side effects")));
+			}
+		}
+		if (minBatchSize != null && maxBatchSize != null && minBatchSize > maxBatchSize) {
+			messages.add(addContext(new ValidationMessage(Severity.WARNING, "The minimum batch size is larger than the maximum batch size")));
+		}
+		else if (maxBatchSize == null && (minBatchSize != null || batchTargetLatency != null || batchMaxMemory != null)) {
+			messages.add(addContext(new ValidationMessage(Severity.WARNING, "The batch size is only tuned if a maximum batch size is set")));
+		}
+		// the hoisted evaluations reuse the same result for all iterations, if you modify that result inside the loop (e.g. add to a list), it is visible in the next iteration
+		if (isHoistInvariants()) {
+			for (Object invariant : StepAnalyzer.getInvariants(this)) {
+				messages.add(addContext(new ValidationMessage(Severity.INFO, invariant instanceof Link
+					? "The link from '" + ((Link) invariant).getFrom() + "' (" + ((Link) invariant).getId() + ") is evaluated once for the entire loop"
+					: "The label '" + invariant + "' is evaluated once for the entire loop")));
+			}
+		}
 		return messages;
 	}
 	
@@ -715,8 +924,254 @@ public class For extends BaseStepGroup implements LimitedStepGroup {
 		return allowed;
 	}
 
+	@XmlAttribute
+	public Integer getCommitSize() {
+		return commitSize;
+	}
+	public void setCommitSize(Integer commitSize) {
+		this.commitSize = commitSize;
+	}
+
+	@XmlAttribute
+	public Long getCommitInterval() {
+		return commitInterval;
+	}
+	public void setCommitInterval(Long commitInterval) {
+		this.commitInterval = commitInterval;
+	}
+
+	@XmlAttribute
+	public Boolean getCommitRetry() {
+		return commitRetry;
+	}
+	public void setCommitRetry(Boolean commitRetry) {
+		this.commitRetry = commitRetry;
+	}
+
+	@XmlAttribute
+	public String getStreamInto() {
+		return streamInto;
+	}
+	public void setStreamInto(String streamInto) {
+		this.streamInto = streamInto;
+	}
+
+	@XmlAttribute
+	public Integer getStreamIntoSize() {
+		return streamIntoSize;
+	}
+	public void setStreamIntoSize(Integer streamIntoSize) {
+		this.streamIntoSize = streamIntoSize;
+	}
+
+	@XmlAttribute
+	public Boolean getHoistInvariants() {
+		return hoistInvariants;
+	}
+	public void setHoistInvariants(Boolean hoistInvariants) {
+		this.hoistInvariants = hoistInvariants;
+	}
+
+	/**
+	 * Elements with the same key are processed one after the other in their original order, different keys are processed concurrently
+	 * This only works if the loop does not break and does not change anything outside of the loop apart from the into, the results in the into retain the original order
+	 * Each partition runs on a copy of the pipeline in a forked execution context, the services it calls should not modify data from outside the loop
+	 */
+	@XmlAttribute
+	public String getPartitionKey() {
+		return partitionKey;
+	}
+	public void setPartitionKey(String partitionKey) {
+		this.partitionKey = partitionKey;
+	}
+
+	/**
+	 * The maximum amount of keys that are processed at the same time
+	 */
+	@XmlAttribute
+	public Integer getParallelism() {
+		return parallelism;
+	}
+	public void setParallelism(Integer parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * The service that returns the pages we iterate over, the next page is fetched while the current one is processed
+	 */
+	@XmlAttribute
+	public String getPageService() {
+		return pageService;
+	}
+	public void setPageService(String pageService) {
+		this.pageService = pageService;
+	}
+
+	@XmlAttribute
+	public String getPageInput() {
+		return pageInput;
+	}
+	public void setPageInput(String pageInput) {
+		this.pageInput = pageInput;
+	}
+
+	@XmlAttribute
+	public String getPageTokenInput() {
+		return pageTokenInput;
+	}
+	public void setPageTokenInput(String pageTokenInput) {
+		this.pageTokenInput = pageTokenInput;
+	}
+
+	@XmlAttribute
+	public String getPageToken() {
+		return pageToken;
+	}
+	public void setPageToken(String pageToken) {
+		this.pageToken = pageToken;
+	}
+
+	/**
+	 * If the query returns an input stream or a channel, it is read as records separated by this delimiter (by default lines), control characters can be escaped (e.g. \r\n)
+	 */
+	@XmlAttribute
+	public String getRecordDelimiter() {
+		return recordDelimiter;
+	}
+	public void setRecordDelimiter(String recordDelimiter) {
+		this.recordDelimiter = recordDelimiter;
+	}
+
+	/**
+	 * The charset of the records, by default UTF-8
+	 */
+	@XmlAttribute
+	public String getCharset() {
+		return charset;
+	}
+	public void setCharset(String charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * Starts the invoke of up to this many iterations ahead so the service calls overlap with the rest of the loop
+	 * This is only done if the invoke is the only service call in the loop and its input only depends on the element and variables that the loop does not change
+	 * The prefetched calls run in their own (forked) context so they are not part of the transaction of the loop
+	 * Because we run ahead, the service can also be called for elements that are never iterated, for example when an earlier iteration fails
+	 * Only prefetch services that have no side effects (like lookups)
+	 */
+	@XmlAttribute
+	public Integer getPrefetch() {
+		return prefetch;
+	}
+	public void setPrefetch(Integer prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	@XmlAttribute
+	public Integer getMinBatchSize() {
+		return minBatchSize;
+	}
+	public void setMinBatchSize(Integer minBatchSize) {
+		this.minBatchSize = minBatchSize;
+	}
+
+	/**
+	 * Setting a maximum batch size enables the tuning of the batch size, the chosen size can be monitored through the batch tuner
+	 */
+	@XmlAttribute
+	public Integer getMaxBatchSize() {
+		return maxBatchSize;
+	}
+	public void setMaxBatchSize(Integer maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	@XmlAttribute
+	public Long getBatchTargetLatency() {
+		return batchTargetLatency;
+	}
+	public void setBatchTargetLatency(Long batchTargetLatency) {
+		this.batchTargetLatency = batchTargetLatency;
+	}
+
+	@XmlAttribute
+	public Long getBatchMaxMemory() {
+		return batchMaxMemory;
+	}
+	public void setBatchMaxMemory(Long batchMaxMemory) {
+		this.batchMaxMemory = batchMaxMemory;
+	}
+
+	@XmlAttribute
+	public Integer getSpillThreshold() {
+		return spillThreshold;
+	}
+	public void setSpillThreshold(Integer spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * Sends the results in chunks to a service, the service must have a list input to receive them
+	 */
+	private static class ServiceSink implements IntoSink {
+		private Service service;
+		private ExecutionContext executionContext;
+		private String input;
+		private int size;
+		private List<Object> buffer;
+		
+		private ServiceSink(VMContext context, String serviceId, Integer size) throws ServiceException {
+			this.service = context.getExecutionContext().getServiceContext().getResolver(DefinedService.class).resolve(serviceId);
+			if (service == null) {
+				throw new ServiceException("VM-3", "Could not find service: " + serviceId);
+			}
+			input = getListInput(service);
+			if (input == null) {
+				throw new ServiceException("VM-17", "The service " + serviceId + " has no list input to stream into");
+			}
+			this.executionContext = context.getExecutionContext();
+			this.size = size == null || size <= 0 ? 1000 : size;
+			this.buffer = new ArrayList<Object>(Math.min(this.size, 1024));
+		}
+		
+		/**
+		 * The first input that can hold a list, null if there is none
+		 */
+		private static String getListInput(Service service) {
+			for (Element<?> child : TypeUtils.getAllChildren(service.getServiceInterface().getInputDefinition())) {
+				Value<Integer> maxOccurs = child.getProperty(MaxOccursProperty.getInstance());
+				if (maxOccurs != null && maxOccurs.getValue() != null && maxOccurs.getValue() != 1) {
+					return child.getName();
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void add(Object element) throws ServiceException {
+			buffer.add(element);
+			if (buffer.size() >= size) {
+				flush();
+			}
+		}
+
+		@Override
+		public void flush() throws ServiceException {
+			if (!buffer.isEmpty()) {
+				ComplexContent content = service.getServiceInterface().getInputDefinition().newInstance();
+				content.set(input, buffer);
+				new ServiceRuntime(service, executionContext).run(content);
+				buffer = new ArrayList<Object>(Math.min(size, 1024));
+			}
+		}
+	}
+
 	@Override
 	public void refresh() {
 		pipeline = null;
+		invariants = null;
+		prefetchAnalyzed = false;
+		partitionable = null;
 	}
 }
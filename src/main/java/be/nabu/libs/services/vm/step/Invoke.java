@@ -26,6 +26,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 import javax.xml.bind.annotation.XmlAttribute;
@@ -53,8 +56,13 @@ import be.nabu.libs.services.api.ServiceContext;
 import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.api.ServiceResult;
 import be.nabu.libs.services.api.ServiceRunnableObserver;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
 import be.nabu.libs.services.api.ServiceRunner;
+import be.nabu.libs.services.vm.ConcurrencyLimiter;
+import be.nabu.libs.services.vm.ConcurrencyLimiter.Rejection;
+import be.nabu.libs.services.vm.DurableInvokeQueue;
 import be.nabu.libs.services.vm.ManagedCloseable;
+import be.nabu.libs.services.vm.StacklessServiceException;
 import be.nabu.libs.services.vm.VMContext;
 import be.nabu.libs.services.vm.ManagedCloseable.Scope;
 import be.nabu.libs.services.vm.api.ExecutorProvider;
@@ -70,7 +78,7 @@ import be.nabu.libs.validator.api.Validation;
 import be.nabu.libs.validator.api.ValidationMessage;
 import be.nabu.libs.validator.api.ValidationMessage.Severity;
 
-@XmlType(propOrder = {"serviceId", "resultName", "temporaryMapping", "x", "y", "invocationOrder", "target", "targetProperties", "asynchronous", "recache" })
+@XmlType(propOrder = {"serviceId", "resultName", "temporaryMapping", "x", "y", "invocationOrder", "target", "targetProperties", "asynchronous", "recache", "maxConcurrency", "concurrencyTimeout", "concurrencyRejection", "durable" })
 public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 
 	private String resultName, serviceId;
@@ -95,6 +103,25 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 	private List<ManagedCloseable> managedCloseables = new ArrayList<ManagedCloseable>();
 	
 	private Map<String, String> targetProperties;
+	
+	/**
+	 * You can cap the amount of concurrent calls towards the invoked service (and target if applicable), the effective limit adapts to the observed latency
+	 */
+	private Integer maxConcurrency;
+	/**
+	 * How long (in ms) we are willing to wait for a free slot, if not set we wait indefinitely
+	 */
+	private Long concurrencyTimeout;
+	/**
+	 * What to do when no slot is available, by default we wait
+	 */
+	private Rejection concurrencyRejection;
+	
+	/**
+	 * Asynchronous invokes can be made durable, they are persisted in a local queue and executed by a bounded set of workers
+	 * This is only supported if the service does not have an executor provider, the provider decides where and how the service runs
+	 */
+	private Boolean durable;
 
 	public Invoke() {
 		
@@ -105,9 +132,15 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 	}
 	
 	protected void execute(Link link, ComplexContent from, ComplexContent to) throws ServiceException {
+		// the runtime is a thread local, we only look it up once
+		ServiceRuntime runtime = ServiceRuntime.getRuntime();
+		execute(link, from, to, runtime == null ? null : runtime.getRuntimeTracker());
+	}
+	
+	protected void execute(Link link, ComplexContent from, ComplexContent to, ServiceRuntimeTracker tracker) throws ServiceException {
 		try {
-			if (ServiceRuntime.getRuntime() != null && ServiceRuntime.getRuntime().getRuntimeTracker() != null) {
-				ServiceRuntime.getRuntime().getRuntimeTracker().before(link);
+			if (tracker != null) {
+				tracker.before(link);
 			}
 			// only allowed in invokes, we want to map the full root input
 			if (link.getTo() == null) {
@@ -116,13 +149,13 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 			else {
 				link.execute(from, to);
 			}
-			if (ServiceRuntime.getRuntime() != null && ServiceRuntime.getRuntime().getRuntimeTracker() != null) {
-				ServiceRuntime.getRuntime().getRuntimeTracker().after(link);
+			if (tracker != null) {
+				tracker.after(link);
 			}
 		}
 		catch (Exception e) {
-			if (ServiceRuntime.getRuntime() != null && ServiceRuntime.getRuntime().getRuntimeTracker() != null) {
-				ServiceRuntime.getRuntime().getRuntimeTracker().error(link, e);
+			if (tracker != null) {
+				tracker.error(link, e);
 			}
 			if (e instanceof ServiceException) {
 				throw (ServiceException) e;
@@ -133,9 +166,14 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	public void execute(VMContext context) throws ServiceException {
+		// a prefetching loop has already started the service for this iteration
+		Future<?> prefetched = context.takePrefetched(this);
+		if (prefetched != null) {
+			mapResult(context, getPrefetched(prefetched));
+			return;
+		}
 		// execution (and retrieval) of a service _must_ go through the runtime as this is the only entity that has your session info
 		// and as such the only one who can enforce permissions
 		Service service = getService(context.getExecutionContext().getServiceContext());
@@ -143,31 +181,36 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 			logger.error("Could not find service: " + serviceId);
 			throw new ServiceException("VM-3", "Could not find service: " + serviceId);
 		}
-		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
-		// now map all the inputs
-		for (Step child : getChildren()) {
-			Link link = (Link) child;
-//			link.execute(context.getServiceInstance().getPipeline(), input);
-			execute(link, context.getServiceInstance().getPipeline(), input);
-		}
+		ComplexContent input = getInput(context, service, context.getRuntimeTracker());
 		
 		ExecutorProvider executor = context.getServiceInstance().getDefinition().getExecutorProvider();
 		// execute the service and map the result
 		ComplexContent result;
 		if (executor == null) {
-			if (asynchronous) {
+			if (asynchronous && durable != null && durable) {
+				DurableInvokeQueue.getQueue(serviceId, service).submit(context.getExecutionContext(), input);
+				result = null;
+			}
+			else if (asynchronous) {
 				// fork the execution context if possible, we don't want to asynchronously share an execution context
 				// this could lead to failed transactions etc
 				final ExecutionContext executionContext = context.getExecutionContext() instanceof ForkableExecutionContext
 					? ((ForkableExecutionContext) context.getExecutionContext()).fork()
 					: context.getExecutionContext();
+				final ConcurrencyLimiter limiter = getLimiter(null);
 				new Thread(new Runnable() {
 					@Override
 					public void run() {
 						try {
-							ServiceRuntime serviceRuntime = new ServiceRuntime(service, executionContext);
-							serviceRuntime.setRecache(recache);
-							serviceRuntime.run(input);
+							long started = acquire(limiter);
+							try {
+								ServiceRuntime serviceRuntime = new ServiceRuntime(service, executionContext);
+								serviceRuntime.setRecache(recache);
+								serviceRuntime.run(input);
+							}
+							finally {
+								release(limiter, started);
+							}
 						}
 						catch (ServiceException e) {
 							logger.error("Asynchronous execution exception occurred", e);
@@ -177,9 +220,16 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 				result = null;
 			}
 			else {
-				ServiceRuntime serviceRuntime = new ServiceRuntime(service, context.getExecutionContext());
-				serviceRuntime.setRecache(recache);
-				result = serviceRuntime.run(input);
+				ConcurrencyLimiter limiter = getLimiter(null);
+				long started = acquire(limiter);
+				try {
+					ServiceRuntime serviceRuntime = new ServiceRuntime(service, context.getExecutionContext());
+					serviceRuntime.setRecache(recache);
+					result = serviceRuntime.run(input);
+				}
+				finally {
+					release(limiter, started);
+				}
 			}
 		}
 		else {
@@ -219,10 +269,28 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 					}
 				}}
 				: new ServiceRunnableObserver[0];
-			Future<ServiceResult> run = runner.run(service, executionContext, input, observers);
+			// we can only track the latency of synchronous calls, asynchronous ones are not limited
+			ConcurrencyLimiter limiter = asynchronous ? null : getLimiter(target);
+			long started = acquire(limiter);
+			Future<ServiceResult> run = null;
+			try {
+				run = runner.run(service, executionContext, input, observers);
+			}
+			finally {
+				// if there is no result to wait for, the slot is released right away, otherwise once the result is in
+				if (asynchronous || run == null) {
+					release(limiter, started);
+				}
+			}
 			if (!asynchronous && run != null) {
 				try {
-					ServiceResult serviceResult = run.get();
+					ServiceResult serviceResult;
+					try {
+						serviceResult = run.get();
+					}
+					finally {
+						release(limiter, started);
+					}
 					if (serviceResult.getException() != null) {
 						throw serviceResult.getException();
 					}
@@ -246,13 +314,73 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 					throw e;
 				}
 				catch (Exception e) {
-					throw new ServiceException("VM-6", "Remote execution error", e);
+					throw StacklessServiceException.newServiceException("VM-6", "Remote execution error", e);
 				}
 			}
 			else {
 				result = null;
 			}
 		}
+		mapResult(context, result);
+	}
+	
+	private ComplexContent getInput(VMContext context, Service service, ServiceRuntimeTracker tracker) throws ServiceException {
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		// now map all the inputs
+		for (Step child : getChildren()) {
+			Link link = (Link) child;
+//			link.execute(context.getServiceInstance().getPipeline(), input);
+			execute(link, context.getServiceInstance().getPipeline(), input, tracker);
+		}
+		return input;
+	}
+	
+	/**
+	 * Maps the input from the current pipeline and runs the service in the background (if there is a thread available), the result is picked up when the invoke is executed with the future set as prefetched
+	 * The service runs in a forked execution context, much like an asynchronous invoke
+	 */
+	Future<ComplexContent> prefetch(VMContext context) throws ServiceException {
+		final Service service = getService(context.getExecutionContext().getServiceContext());
+		if (service == null) {
+			throw new ServiceException("VM-3", "Could not find service: " + serviceId);
+		}
+		// the input links are not reported, they are not executed at the moment the invoke is
+		final ComplexContent input = getInput(context, service, null);
+		final ExecutionContext executionContext = ((ForkableExecutionContext) context.getExecutionContext()).fork();
+		final ConcurrencyLimiter limiter = getLimiter(null);
+		return PrefetchingCursor.submit(new Callable<ComplexContent>() {
+			@Override
+			public ComplexContent call() throws Exception {
+				long started = acquire(limiter);
+				try {
+					ServiceRuntime serviceRuntime = new ServiceRuntime(service, executionContext);
+					serviceRuntime.setRecache(recache);
+					return serviceRuntime.run(input);
+				}
+				finally {
+					release(limiter, started);
+				}
+			}
+		});
+	}
+	
+	private ComplexContent getPrefetched(Future<?> prefetched) throws ServiceException {
+		try {
+			return (ComplexContent) prefetched.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof ServiceException) {
+				throw (ServiceException) e.getCause();
+			}
+			throw StacklessServiceException.newServiceException("VM-6", "Prefetched execution error", e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+		}
+		catch (InterruptedException | CancellationException e) {
+			throw StacklessServiceException.newServiceException("VM-6", "Prefetched execution error", e);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void mapResult(VMContext context, ComplexContent result) throws ServiceException {
 		// only map the result if you have set a name
 		// note that you can only manage closeable objects if you map the result to the pipeline
 		if (resultName != null && result != null) {
@@ -270,6 +398,33 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 		}
 	}
 	
+	private ConcurrencyLimiter getLimiter(String target) {
+		if (maxConcurrency == null || maxConcurrency <= 0) {
+			return null;
+		}
+		return ConcurrencyLimiter.getLimiter(target == null ? serviceId : serviceId + "@" + target, maxConcurrency);
+	}
+	
+	private long acquire(ConcurrencyLimiter limiter) throws ServiceException {
+		if (limiter != null) {
+			try {
+				if (!limiter.acquire(concurrencyRejection == null ? Rejection.WAIT : concurrencyRejection, concurrencyTimeout)) {
+					throw new ServiceException("VM-14", "The concurrency limit was reached for: " + limiter.getKey());
+				}
+			}
+			catch (InterruptedException e) {
+				throw new ServiceException("VM-14", "Interrupted while waiting for a concurrency slot for: " + limiter.getKey(), e);
+			}
+		}
+		return System.nanoTime();
+	}
+	
+	private void release(ConcurrencyLimiter limiter, long started) {
+		if (limiter != null) {
+			limiter.release(System.nanoTime() - started);
+		}
+	}
+	
 	@XmlAttribute
 	public boolean isTemporaryMapping() {
 		return temporaryMapping;
@@ -340,6 +495,14 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 			// the "input" is not included in the "to" path
 			validateInputMapping(inputDefinition, null, getMappedPaths(), messages);
 		}
+		if (durable != null && durable) {
+			if (!asynchronous) {
+				messages.add(addContext(new ValidationMessage(Severity.WARNING, "Only asynchronous invokes can be durable, the invoke of '" + serviceId + "' runs synchronously")));
+			}
+			else if (getServiceDefinition() != null && getServiceDefinition().getExecutorProvider() != null) {
+				messages.add(addContext(new ValidationMessage(Severity.WARNING, "The invoke of '" + serviceId + "' is not durable: durable invokes are not supported with an executor provider")));
+			}
+		}
 		if (target != null && target.startsWith("=")) {
 			messages.addAll(validateQuery(serviceContext, target.substring(1)));
 		}
@@ -477,6 +640,38 @@ public class Invoke extends BaseStepGroup implements LimitedStepGroup {
 		this.asynchronous = asynchronous;
 	}
 	
+	@XmlAttribute
+	public Integer getMaxConcurrency() {
+		return maxConcurrency;
+	}
+	public void setMaxConcurrency(Integer maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	@XmlAttribute
+	public Long getConcurrencyTimeout() {
+		return concurrencyTimeout;
+	}
+	public void setConcurrencyTimeout(Long concurrencyTimeout) {
+		this.concurrencyTimeout = concurrencyTimeout;
+	}
+
+	@XmlAttribute
+	public Rejection getConcurrencyRejection() {
+		return concurrencyRejection;
+	}
+	public void setConcurrencyRejection(Rejection concurrencyRejection) {
+		this.concurrencyRejection = concurrencyRejection;
+	}
+
+	@XmlAttribute
+	public Boolean getDurable() {
+		return durable;
+	}
+	public void setDurable(Boolean durable) {
+		this.durable = durable;
+	}
+
 	//--------------------- key value pairs
 	
 	@XmlJavaTypeAdapter(value = KeyValueMapAdapter.class)
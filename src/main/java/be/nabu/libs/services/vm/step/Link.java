@@ -108,14 +108,21 @@ public class Link extends BaseStep {
 	 */
 	@Override
 	public void execute(VMContext context) throws ServiceException {
-		execute(context.getServiceInstance().getPipeline(), context.getServiceInstance().getPipeline());
+		execute(context, context.getServiceInstance().getPipeline(), context.getServiceInstance().getPipeline());
 	}
 	
 	/**
 	 * Links element from the source pipeline to the target pipeline
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public void execute(ComplexContent source, ComplexContent target) throws ServiceException {
+		execute(null, source, target);
+	}
+	
+	/**
+	 * If the from is invariant in a running loop, it is only evaluated once for that loop
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void execute(VMContext context, ComplexContent source, ComplexContent target) throws ServiceException {
 		if (to == null) {
 			throw new ServiceException("VM-10", "Missing link to variable");
 		}
@@ -132,7 +139,18 @@ public class Link extends BaseStep {
 				return;
 			}
 		}
-		Object value = getFromValue(source);
+		java.util.Map<Object, Object> invariants = context == null ? null : context.getInvariants(this);
+		Object value;
+		if (invariants == null) {
+			value = getFromValue(source);
+		}
+		else if (invariants.containsKey(this)) {
+			value = invariants.get(this);
+		}
+		else {
+			value = getFromValue(source);
+			invariants.put(this, value);
+		}
 		// if we only want to map non-null values, don't proceed if it is null
 		if (sourceNotNull != null && sourceNotNull && value == null) {
 			return;
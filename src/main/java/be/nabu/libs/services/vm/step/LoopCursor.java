@@ -0,0 +1,561 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm.step;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.VMContext;
+import be.nabu.libs.types.CollectionHandlerFactory;
+import be.nabu.libs.types.api.CollectionHandlerProvider;
+
+/**
+ * Walks over whatever a for loop is iterating, either one element at a time or in batches
+ * There is a specialized cursor per kind of collection so the loop itself does not need to know how the data is stored:
+ * - random access lists are batched by copying ranges rather than element by element
+ * - numbers are iterated as a range without building index lists
+ * - maps are iterated by entry rather than looking up each key
+ * - iterators and streams of delimited records are pulled as we go so they never have to be in memory as a whole
+ * In batch mode the value and the index are new (modifiable) lists for every batch, so they can be kept or changed by the iteration
+ * If what we iterate is closeable, it is closed when the cursor is
+ */
+abstract class LoopCursor {
+
+	// resolving a collection handler is not free, we remember it per class
+	@SuppressWarnings("rawtypes")
+	private static java.util.Map<Class<?>, CollectionHandlerProvider> handlers = new ConcurrentHashMap<Class<?>, CollectionHandlerProvider>();
+
+	protected boolean batch;
+	protected int size;
+	// the source we are iterating, if it needs closing
+	private Closeable source;
+
+	protected LoopCursor(boolean batch, int size) {
+		this.batch = batch;
+		this.size = batch ? size : 1;
+	}
+
+	/**
+	 * Moves to the next element (or batch of elements), returns false if there is nothing left
+	 */
+	abstract boolean next() throws ServiceException;
+
+	abstract Object getValue();
+	
+	/**
+	 * Changes the size of the batches, this takes effect at the next call to next()
+	 */
+	void setSize(int size) {
+		if (batch) {
+			this.size = Math.max(1, size);
+		}
+	}
+
+	abstract Object getIndex();
+
+	void close() throws IOException {
+		if (source != null) {
+			source.close();
+		}
+	}
+	
+	/**
+	 * The amount of elements we will iterate over (if known), -1 otherwise
+	 */
+	int getSizeHint() {
+		return -1;
+	}
+
+	@SuppressWarnings("rawtypes")
+	static CollectionHandlerProvider getHandler(Class<?> clazz) {
+		CollectionHandlerProvider handler = handlers.get(clazz);
+		if (handler == null) {
+			handler = CollectionHandlerFactory.getInstance().getHandler().getHandler(clazz);
+			if (handler != null) {
+				handlers.put(clazz, handler);
+			}
+		}
+		return handler;
+	}
+
+	static LoopCursor open(For loop, VMContext context, Object value, boolean batch, long increment) {
+		LoopCursor cursor = openCursor(loop, context, value, batch, increment);
+		if (value instanceof Closeable) {
+			cursor.source = (Closeable) value;
+		}
+		return cursor;
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static LoopCursor openCursor(For loop, VMContext context, Object value, boolean batch, long increment) {
+		int size = (int) Math.max(1, Math.min(increment, Integer.MAX_VALUE));
+		if (value instanceof Boolean) {
+			return new ConditionCursor(loop, context, (Boolean) value, batch, size);
+		}
+		else if (value instanceof Number) {
+			return new RangeCursor(((Number) value).longValue(), batch, size);
+		}
+		else if (value instanceof Iterable) {
+			return iterate((Iterable) value, false, batch, size);
+		}
+		else if (value instanceof Iterator) {
+			return new IteratorCursor((Iterator) value, false, batch, size);
+		}
+		else if (value instanceof InputStream || value instanceof ReadableByteChannel) {
+			ReadableByteChannel channel = value instanceof InputStream ? Channels.newChannel((InputStream) value) : (ReadableByteChannel) value;
+			return new IteratorCursor(new RecordIterator(channel, loop.getCharset() == null ? Charset.forName("UTF-8") : Charset.forName(loop.getCharset()), loop.getRecordDelimiter()), false, batch, size);
+		}
+		CollectionHandlerProvider handler = getHandler(value.getClass());
+		if (handler == null) {
+			throw new IllegalArgumentException("The variable '" + value + "' does not point to a collection");
+		}
+		// if we have an integer index, we assume it is a list-like structure with an incremental index
+		// for performance reasons it is much better to get the collection as iterable and generate the index rather than get the collection of indexes and use that versus the collection
+		if (Integer.class.isAssignableFrom(handler.getIndexClass())) {
+			if (value instanceof Object[]) {
+				return new ListCursor(Arrays.asList((Object[]) value), true, batch, size);
+			}
+			return iterate(handler.getAsIterable(value), true, batch, size);
+		}
+		else if (value instanceof java.util.Map) {
+			return new KeyedCursor(((java.util.Map) value).entrySet().iterator(), null, null, batch, size);
+		}
+		return new KeyedCursor(handler.getIndexes(value).iterator(), handler, value, batch, size);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static LoopCursor iterate(Iterable iterable, boolean integer, boolean batch, int size) {
+		if (iterable instanceof List && iterable instanceof RandomAccess) {
+			return new ListCursor((List) iterable, integer, batch, size);
+		}
+		IteratorCursor cursor = new IteratorCursor(iterable.iterator(), integer, batch, size);
+		if (iterable instanceof Collection) {
+			cursor.sizeHint = ((Collection) iterable).size();
+		}
+		return cursor;
+	}
+
+	/**
+	 * Iterates as long as the query evaluates to true, the query is evaluated again for each iteration
+	 */
+	private static class ConditionCursor extends LoopCursor {
+		private For loop;
+		private VMContext context;
+		private Object value;
+		private long index;
+		private int current;
+		private boolean started;
+		private List<Object> values, indexes;
+
+		private ConditionCursor(For loop, VMContext context, Boolean value, boolean batch, int size) {
+			super(batch, size);
+			this.loop = loop;
+			this.context = context;
+			this.value = value;
+		}
+
+		@Override
+		boolean next() throws ServiceException {
+			if (started) {
+				value = loop.getVariable(context.getServiceInstance().getPipeline(), loop.getQuery());
+				index += current;
+			}
+			started = true;
+			// the size can change between batches
+			current = size;
+			if (batch) {
+				values = new ArrayList<Object>(Collections.nCopies(current, value));
+				indexes = indexes(index, index + current, false);
+			}
+			return value instanceof Boolean && (Boolean) value;
+		}
+
+		@Override
+		Object getValue() {
+			return batch ? values : value;
+		}
+
+		@Override
+		Object getIndex() {
+			return batch ? indexes : (Object) index;
+		}
+	}
+
+	/**
+	 * Iterates from 0 to the given number, the value and the index are the same
+	 */
+	private static class RangeCursor extends LoopCursor {
+		private long count, from, to;
+		private List<Object> values, indexes;
+
+		private RangeCursor(long count, boolean batch, int size) {
+			super(batch, size);
+			this.count = count;
+		}
+
+		@Override
+		boolean next() {
+			from = to;
+			to = Math.min(from + size, count);
+			if (batch) {
+				// the value and the index are separate lists so changing one does not change the other
+				values = indexes(from, to, false);
+				indexes = indexes(from, to, false);
+			}
+			return from < to;
+		}
+
+		@Override
+		Object getValue() {
+			return batch ? values : (Object) from;
+		}
+
+		@Override
+		Object getIndex() {
+			return batch ? indexes : (Object) from;
+		}
+	}
+
+	/**
+	 * Random access lists are batched by copying the range of the batch
+	 */
+	@SuppressWarnings("rawtypes")
+	private static class ListCursor extends LoopCursor {
+		private List list;
+		private boolean integer;
+		private int from, to;
+		private List<Object> values, indexes;
+
+		private ListCursor(List list, boolean integer, boolean batch, int size) {
+			super(batch, size);
+			this.list = list;
+			this.integer = integer;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		boolean next() {
+			from = to;
+			to = (int) Math.min((long) from + size, list.size());
+			if (batch && from < to) {
+				values = new ArrayList<Object>(list.subList(from, to));
+				indexes = indexes(from, to, integer);
+			}
+			return from < to;
+		}
+
+		@Override
+		Object getValue() {
+			return batch ? values : list.get(from);
+		}
+
+		@Override
+		int getSizeHint() {
+			return list.size();
+		}
+
+		@Override
+		Object getIndex() {
+			if (batch) {
+				return indexes;
+			}
+			return integer ? (Object) from : (Object) (long) from;
+		}
+	}
+
+	/**
+	 * Any other iterable, batches are collected in a new list
+	 */
+	@SuppressWarnings("rawtypes")
+	private static class IteratorCursor extends LoopCursor {
+		private Iterator iterator;
+		private boolean integer;
+		private long from, to;
+		private Object value;
+		private List<Object> values, indexes;
+		private int sizeHint = -1;
+
+		private IteratorCursor(Iterator iterator, boolean integer, boolean batch, int size) {
+			super(batch, size);
+			this.iterator = iterator;
+			this.integer = integer;
+		}
+
+		@Override
+		boolean next() {
+			from = to;
+			if (batch) {
+				values = new ArrayList<Object>(Math.min(size, 1024));
+				while (values.size() < size && iterator.hasNext()) {
+					values.add(iterator.next());
+				}
+				to += values.size();
+				indexes = indexes(from, to, integer);
+			}
+			else if (iterator.hasNext()) {
+				value = iterator.next();
+				to++;
+			}
+			return from < to;
+		}
+
+		@Override
+		Object getValue() {
+			return batch ? values : value;
+		}
+
+		@Override
+		Object getIndex() {
+			if (batch) {
+				return indexes;
+			}
+			return integer ? (Object) (int) from : (Object) from;
+		}
+
+		@Override
+		int getSizeHint() {
+			return sizeHint;
+		}
+	}
+
+	/**
+	 * Collections that are not indexed by an integer, for maps we iterate the entries, for anything else we fall back to the collection handler
+	 */
+	@SuppressWarnings("rawtypes")
+	private static class KeyedCursor extends LoopCursor {
+		private Iterator iterator;
+		private CollectionHandlerProvider handler;
+		private Object collection;
+		private Object index, value;
+		private List<Object> indexes, values;
+
+		private KeyedCursor(Iterator iterator, CollectionHandlerProvider handler, Object collection, boolean batch, int size) {
+			super(batch, size);
+			this.iterator = iterator;
+			this.handler = handler;
+			this.collection = collection;
+		}
+
+		@Override
+		boolean next() {
+			if (batch) {
+				indexes = new ArrayList<Object>(Math.min(size, 1024));
+				values = new ArrayList<Object>(Math.min(size, 1024));
+				while (indexes.size() < size && advance()) {
+					indexes.add(index);
+					values.add(value);
+				}
+				return !indexes.isEmpty();
+			}
+			return advance();
+		}
+
+		@SuppressWarnings("unchecked")
+		private boolean advance() {
+			if (!iterator.hasNext()) {
+				return false;
+			}
+			if (handler == null) {
+				java.util.Map.Entry entry = (java.util.Map.Entry) iterator.next();
+				index = entry.getKey();
+				value = entry.getValue();
+			}
+			else {
+				index = iterator.next();
+				value = handler.get(collection, index);
+			}
+			return true;
+		}
+
+		@Override
+		Object getValue() {
+			return batch ? values : value;
+		}
+
+		@Override
+		Object getIndex() {
+			return batch ? indexes : index;
+		}
+	}
+
+	/**
+	 * Reads delimited records from a channel, only the record that is being read is kept in memory
+	 * The bytes are read into a window that is reused for all the records, it only grows if a single record does not fit in it
+	 * If no delimiter is set, we read lines: both "\n" and "\r\n" are accepted
+	 */
+	private static class RecordIterator implements Iterator<String> {
+		private ReadableByteChannel channel;
+		private Charset charset;
+		private byte [] delimiter, carriageReturn;
+		// the length of the longest proper prefix of the delimiter that is also a suffix of the first n + 1 bytes, so a partial match can fall back without rescanning
+		private int [] failure;
+		private boolean lines;
+		private byte [] window = new byte[8192];
+		private ByteBuffer buffer = ByteBuffer.wrap(window);
+		// the start of the current record, the first byte that has not been scanned yet and the end of the bytes that were read
+		private int start, position, limit;
+		private String next;
+		private boolean eof;
+		
+		private RecordIterator(ReadableByteChannel channel, Charset charset, String delimiter) {
+			this.channel = channel;
+			this.charset = charset;
+			this.lines = delimiter == null || delimiter.isEmpty();
+			// delimiters are usually control characters, we allow them to be escaped
+			this.delimiter = (lines ? "\n" : delimiter).replace("\\r", "\r").replace("\\n", "\n").replace("\\t", "\t").getBytes(charset);
+			this.carriageReturn = "\r".getBytes(charset);
+			this.failure = new int[this.delimiter.length];
+			for (int i = 1, length = 0; i < this.delimiter.length; i++) {
+				while (length > 0 && this.delimiter[i] != this.delimiter[length]) {
+					length = failure[length - 1];
+				}
+				if (this.delimiter[i] == this.delimiter[length]) {
+					length++;
+				}
+				failure[i] = length;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				try {
+					next = read();
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String result = next;
+			next = null;
+			return result;
+		}
+		
+		private String read() throws IOException {
+			int matched = 0;
+			while (true) {
+				if (position == limit) {
+					if (eof) {
+						break;
+					}
+					fill();
+					continue;
+				}
+				byte single = window[position++];
+				while (matched > 0 && single != delimiter[matched]) {
+					matched = failure[matched - 1];
+				}
+				if (single == delimiter[matched]) {
+					matched++;
+				}
+				if (matched == delimiter.length) {
+					String result = decode(start, position - delimiter.length);
+					start = position;
+					return result;
+				}
+			}
+			// the last record does not need a delimiter
+			if (limit > start) {
+				String result = decode(start, limit);
+				start = limit;
+				return result;
+			}
+			return null;
+		}
+		
+		/**
+		 * Reads more bytes behind the ones we have, the current record is moved to the front of the window to make room
+		 */
+		private void fill() throws IOException {
+			if (start > 0) {
+				System.arraycopy(window, start, window, 0, limit - start);
+				limit -= start;
+				position -= start;
+				start = 0;
+			}
+			// the record does not fit in the window
+			if (limit == window.length) {
+				window = Arrays.copyOf(window, window.length * 2);
+				buffer = ByteBuffer.wrap(window);
+			}
+			buffer.limit(window.length);
+			buffer.position(limit);
+			int read = channel.read(buffer);
+			if (read < 0) {
+				eof = true;
+			}
+			else {
+				limit += read;
+			}
+		}
+		
+		private String decode(int from, int to) {
+			if (lines && endsWith(from, to, carriageReturn)) {
+				to -= carriageReturn.length;
+			}
+			return new String(window, from, to - from, charset);
+		}
+		
+		private boolean endsWith(int from, int to, byte [] suffix) {
+			if (to - from < suffix.length) {
+				return false;
+			}
+			for (int i = 0; i < suffix.length; i++) {
+				if (window[to - suffix.length + i] != suffix[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * A new list with the consecutive indexes of a batch
+	 */
+	static List<Object> indexes(long from, long to, boolean integer) {
+		List<Object> indexes = new ArrayList<Object>((int) (to - from));
+		for (long index = from; index < to; index++) {
+			indexes.add(integer ? (Object) (int) index : (Object) index);
+		}
+		return indexes;
+	}
+}
@@ -92,12 +92,12 @@ public class Map extends BaseStepGroup implements LimitedStepGroup {
 							execute(step, context);
 						}
 					}
-					if (isAborted()) {
+					if (isAborted(context)) {
 						break;
 					}
 				}
 				invocationOrder++;
-				if (isAborted()) {
+				if (isAborted(context)) {
 					break;
 				}
 			}
@@ -109,7 +109,7 @@ public class Map extends BaseStepGroup implements LimitedStepGroup {
 				if (step instanceof Link) {
 					execute(step, context);
 				}
-				if (isAborted()) {
+				if (isAborted(context)) {
 					break;
 				}
 			}
@@ -121,7 +121,7 @@ public class Map extends BaseStepGroup implements LimitedStepGroup {
 				if (step instanceof Drop) {
 					execute(step, context);
 				}
-				if (isAborted()) {
+				if (isAborted(context)) {
 					break;
 				}
 			}
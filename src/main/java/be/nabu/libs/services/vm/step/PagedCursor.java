@@ -0,0 +1,240 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm.step;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ForkableExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.StacklessServiceException;
+import be.nabu.libs.services.vm.VMContext;
+import be.nabu.libs.types.ComplexContentWrapperFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.CollectionHandlerProvider;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Iterates over the items of a paged service, the next page is requested as soon as we know how to ask for it so it is fetched while the current page is processed
+ * Each page is requested with a token: either the token that the previous page returned or, if the loop has no token path, the offset of the next page
+ * We stop when there is no next token, when a token is returned that was already used or, when using offsets, when a page is empty
+ * Without an input for the token every page would be requested with the same input, so it is required
+ * Batches do not span pages, the index runs over all the pages
+ */
+class PagedCursor extends LoopCursor {
+
+	private For loop;
+	private VMContext context;
+	private Service service;
+	private ComplexContent template;
+	// the context the pages are fetched in, null if it can not be forked in which case we fetch synchronously
+	private ExecutionContext executionContext;
+	private Future<?> nextPage;
+	private LoopCursor page;
+	private long offset, position;
+	private int count;
+	private List<Object> indexes;
+	// the tokens the pages were requested with, a service that returns a token we have seen before would have us fetch the same pages forever
+	private Set<Object> tokens = new HashSet<Object>();
+	
+	PagedCursor(For loop, VMContext context, boolean batch, int size) throws ServiceException {
+		super(batch, size);
+		this.loop = loop;
+		this.context = context;
+		if (loop.getPageTokenInput() == null) {
+			throw new ServiceException("VM-18", "No input is set for the page token of the service: " + loop.getPageService());
+		}
+		this.service = context.getExecutionContext().getServiceContext().getResolver(DefinedService.class).resolve(loop.getPageService());
+		if (service == null) {
+			throw new ServiceException("VM-3", "Could not find service: " + loop.getPageService());
+		}
+		// the input that is shared by all the pages
+		Object template = loop.getPageInput() == null ? null : loop.getVariable(context.getServiceInstance().getPipeline(), loop.getPageInput());
+		if (template != null && !(template instanceof ComplexContent)) {
+			template = ComplexContentWrapperFactory.getInstance().getWrapper().wrap(template);
+		}
+		this.template = (ComplexContent) template;
+		if (context.getExecutionContext() instanceof ForkableExecutionContext) {
+			this.executionContext = ((ForkableExecutionContext) context.getExecutionContext()).fork();
+		}
+		nextPage = fetch(loop.getPageToken() == null ? (Object) 0l : null);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	boolean next() throws ServiceException {
+		position += count;
+		count = 0;
+		while (page == null || !page.next()) {
+			if (page != null) {
+				close(page);
+				page = null;
+			}
+			if (nextPage == null) {
+				return false;
+			}
+			ComplexContent output = get(nextPage);
+			nextPage = null;
+			Object items = output == null ? null : loop.getVariable(output, loop.getQuery());
+			if (loop.getPageToken() != null) {
+				Object token = output == null ? null : loop.getVariable(output, loop.getPageToken());
+				if (token != null && !token.toString().isEmpty() && !tokens.contains(token)) {
+					nextPage = fetch(token);
+				}
+			}
+			else {
+				int amount = count(items);
+				if (amount > 0) {
+					offset += amount;
+					nextPage = fetch(offset);
+				}
+			}
+			if (items != null) {
+				page = LoopCursor.open(loop, context, items, batch, size);
+			}
+		}
+		count = batch ? ((List) page.getValue()).size() : 1;
+		if (batch) {
+			indexes = indexes(position, position + count, false);
+		}
+		return true;
+	}
+	
+	private Future<?> fetch(Object token) throws ServiceException {
+		final ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		if (template != null) {
+			for (Element<?> child : TypeUtils.getAllChildren(input.getType())) {
+				if (template.getType().get(child.getName()) != null) {
+					input.set(child.getName(), template.get(child.getName()));
+				}
+			}
+		}
+		if (token != null) {
+			input.set(loop.getPageTokenInput(), token);
+			tokens.add(token);
+		}
+		if (executionContext == null) {
+			return CompletableFuture.completedFuture(new ServiceRuntime(service, context.getExecutionContext()).run(input));
+		}
+		return PrefetchingCursor.submit(new Callable<ComplexContent>() {
+			@Override
+			public ComplexContent call() throws Exception {
+				return new ServiceRuntime(service, executionContext).run(input);
+			}
+		});
+	}
+	
+	private static ComplexContent get(Future<?> page) throws ServiceException {
+		try {
+			return (ComplexContent) page.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof ServiceException) {
+				throw (ServiceException) e.getCause();
+			}
+			throw StacklessServiceException.newServiceException("VM-6", "Could not fetch page", e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+		}
+		catch (InterruptedException | CancellationException e) {
+			throw StacklessServiceException.newServiceException("VM-6", "Could not fetch page", e);
+		}
+	}
+	
+	/**
+	 * The amount of items on a page, the items are still iterated afterwards so anything that can only be read once can not be counted
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private int count(Object items) throws ServiceException {
+		if (items == null) {
+			return 0;
+		}
+		else if (items instanceof Collection) {
+			return ((Collection) items).size();
+		}
+		else if (items instanceof Object[]) {
+			return ((Object[]) items).length;
+		}
+		else if (items instanceof java.util.Map) {
+			return ((java.util.Map) items).size();
+		}
+		CollectionHandlerProvider handler = items instanceof Iterable || items instanceof Iterator || items instanceof InputStream || items instanceof ReadableByteChannel
+			? null : getHandler(items.getClass());
+		if (handler == null) {
+			throw new ServiceException("VM-6", "The items of a page of " + loop.getPageService() + " can not be counted to determine the next offset, use a page token instead: " + items.getClass().getName());
+		}
+		int count = 0;
+		for (Object item : (Iterable) handler.getAsIterable(items)) {
+			count++;
+		}
+		return count;
+	}
+	
+	private static void close(LoopCursor page) {
+		try {
+			page.close();
+		}
+		catch (IOException e) {
+			// the pages are in memory, nothing to worry about
+		}
+	}
+	
+	@Override
+	void setSize(int size) {
+		super.setSize(size);
+		if (page != null) {
+			page.setSize(size);
+		}
+	}
+
+	@Override
+	Object getValue() {
+		return page.getValue();
+	}
+
+	@Override
+	Object getIndex() {
+		return batch ? indexes : (Object) position;
+	}
+	
+	@Override
+	void close() throws IOException {
+		if (nextPage != null) {
+			nextPage.cancel(false);
+			nextPage = null;
+		}
+		if (page != null) {
+			page.close();
+			page = null;
+		}
+	}
+}
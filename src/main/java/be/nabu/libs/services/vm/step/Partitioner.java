@@ -0,0 +1,366 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm.step;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import be.nabu.libs.services.api.ForkableExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
+import be.nabu.libs.services.vm.VMContext;
+import be.nabu.libs.services.vm.VMServiceInstance;
+import be.nabu.libs.services.vm.ManagedCloseable.Scope;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Runs the iterations of a loop concurrently while keeping the iterations with the same key in order
+ * Each key that is in flight has a partition: a queue of elements that is worked off by one thread at a time, so there are at most as many keys in flight as the parallelism allows
+ * A partition works on its own copy of the pipeline (as it was before the loop started) and in its own forked execution context
+ * The into results are merged in the order of the elements, regardless of the order in which they complete
+ * The partitions run on the bounded pool that is shared with the prefetching, when it is full and the loop has no partitions running, the next one runs on the loop thread
+ * The partitions share the runtime of the loop, note that the services they invoke start a new runtime as there is no runtime registered on the pool thread
+ * The tracker of the loop receives the events of each element as a whole once it is done, so the events of concurrent elements do not interleave
+ * Anything a partition opens for the lifetime of the service is handed to the loop context when the partitioner is stopped, the context itself is only touched by the loop thread
+ */
+class Partitioner {
+
+	// the maximum amount of elements that are handed out but not yet merged, this bounds the memory if one key is slow
+	private static int PENDING = Integer.parseInt(System.getProperty("be.nabu.libs.services.vm.partition.pending", "1024"));
+	
+	private For loop;
+	private VMContext context;
+	// a copy of the pipeline as it was before the loop, the loop thread keeps changing the original while the partitions start
+	private ComplexContent snapshot;
+	private int parallelism;
+	private java.util.Map<Object, Partition> partitions = new HashMap<Object, Partition>();
+	// the results that are done but can not be merged yet because an earlier element is still running
+	private java.util.Map<Long, Object> results = new HashMap<Long, Object>();
+	private long submitted, merged;
+	private Exception exception;
+	private boolean stopped;
+	// the closeables the finished partitions opened for the lifetime of the service
+	private List<Closeable> managed = new ArrayList<Closeable>();
+	// the events of the partitions are delivered one element at a time
+	private Object trackerLock = new Object();
+	
+	/**
+	 * This must be created on the thread of the loop before any element is submitted, the pipeline is copied as it is at that point
+	 */
+	Partitioner(For loop, VMContext context, ComplexContent pipeline, int parallelism) {
+		this.loop = loop;
+		this.context = context;
+		this.snapshot = copy(pipeline);
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Hands the element to the partition for its key, this blocks as long as there are too many keys or elements in flight
+	 */
+	void submit(Object key, Object value, Object index, Object resultingInto) throws ServiceException {
+		while (true) {
+			boolean accepted = false;
+			Partition inline = null;
+			List<Object> ready;
+			synchronized(this) {
+				if (exception == null && !context.isAborted() && submitted - merged < PENDING && (partitions.containsKey(key) || partitions.size() < parallelism)) {
+					Partition partition = partitions.get(key);
+					if (partition == null) {
+						partition = new Partition(key);
+						try {
+							PrefetchingCursor.executor.execute(partition);
+						}
+						// the shared pool is full: we wait for our own partitions if we have any, otherwise the partition runs on the loop thread
+						// we can not wait for the pool itself, its threads might be waiting for us
+						catch (RejectedExecutionException e) {
+							if (partitions.isEmpty()) {
+								inline = partition;
+							}
+							else {
+								partition = null;
+							}
+						}
+					}
+					if (partition != null) {
+						partitions.put(key, partition);
+						partition.elements.add(new Object[] { submitted++, value, index });
+						accepted = true;
+					}
+				}
+				// wait for a partition to finish something unless there is something we can merge
+				if (!accepted && exception == null && !context.isAborted() && !results.containsKey(merged)) {
+					await();
+				}
+				ready = getReady();
+			}
+			merge(ready, resultingInto);
+			if (inline != null) {
+				inline.run();
+			}
+			if (accepted || context.isAborted()) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Waits for all the elements to be done and merges the remaining results
+	 */
+	void finish(Object resultingInto) throws ServiceException {
+		while (true) {
+			List<Object> ready;
+			boolean done;
+			synchronized(this) {
+				if (!partitions.isEmpty() && !results.containsKey(merged)) {
+					await();
+				}
+				ready = getReady();
+				done = partitions.isEmpty();
+			}
+			merge(ready, resultingInto);
+			if (done) {
+				break;
+			}
+		}
+		rethrow();
+	}
+	
+	/**
+	 * Stops handing out elements and waits for the running ones, nothing is touched by the partitions once this returns
+	 */
+	synchronized void stop() {
+		stopped = true;
+		while (!partitions.isEmpty()) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		context.addManaged(managed, Scope.SERVICE);
+		managed.clear();
+	}
+	
+	private void await() throws ServiceException {
+		try {
+			// we wake up regularly to check if the service was aborted
+			wait(100);
+		}
+		catch (InterruptedException e) {
+			throw new ServiceException("VM-6", "Interrupted while waiting for the partitions of the loop", e);
+		}
+	}
+	
+	private List<Object> getReady() throws ServiceException {
+		rethrow();
+		List<Object> ready = new ArrayList<Object>();
+		while (results.containsKey(merged)) {
+			ready.add(results.remove(merged++));
+		}
+		return ready;
+	}
+	
+	private void merge(List<Object> ready, Object resultingInto) throws ServiceException {
+		if (resultingInto != null) {
+			for (Object result : ready) {
+				loop.addInto(resultingInto, result);
+			}
+		}
+	}
+	
+	private synchronized void rethrow() throws ServiceException {
+		if (exception instanceof ServiceException) {
+			throw (ServiceException) exception;
+		}
+		else if (exception instanceof RuntimeException) {
+			throw (RuntimeException) exception;
+		}
+		else if (exception != null) {
+			throw BaseStepGroup.wrap(loop, exception);
+		}
+	}
+	
+	private static ComplexContent copy(ComplexContent pipeline) {
+		ComplexContent copy = pipeline.getType().newInstance();
+		for (Element<?> child : TypeUtils.getAllChildren(pipeline.getType())) {
+			copy.set(child.getName(), pipeline.get(child.getName()));
+		}
+		return copy;
+	}
+	
+	private class Partition implements Runnable {
+		private Object key;
+		private Deque<Object[]> elements = new ArrayDeque<Object[]>();
+		
+		private Partition(Object key) {
+			this.key = key;
+		}
+		
+		@Override
+		public void run() {
+			VMContext partitionContext = null;
+			PartitionTracker tracker = null;
+			boolean ended = false;
+			try {
+				while (true) {
+					Object [] element;
+					synchronized(Partitioner.this) {
+						element = exception == null && !stopped && !context.isAborted() ? elements.poll() : null;
+						// this must happen while we hold the lock, otherwise an element could be added to a partition that is no longer running
+						if (element == null) {
+							end(partitionContext);
+							ended = true;
+							return;
+						}
+					}
+					if (partitionContext == null) {
+						partitionContext = new VMContext(((ForkableExecutionContext) context.getExecutionContext()).fork(), new VMServiceInstance(context.getServiceInstance().getDefinition(), copy(snapshot)));
+						partitionContext.setCluster(context.getCluster());
+						// the pool thread has no runtime of its own, the partition is part of the runtime of the loop so it is aborted along with it
+						partitionContext.setRuntime(context.getRuntime());
+						if (context.getRuntimeTracker() != null) {
+							tracker = new PartitionTracker(context.getRuntimeTracker(), trackerLock);
+						}
+						// without a tracker of our own we would follow the tracker of the runtime, which is not meant to be called concurrently
+						partitionContext.setRuntimeTracker(tracker);
+					}
+					Object result;
+					try {
+						result = loop.iteratePartitioned(partitionContext, element[1], element[2]);
+					}
+					finally {
+						if (tracker != null) {
+							tracker.flush();
+						}
+					}
+					synchronized(Partitioner.this) {
+						results.put((Long) element[0], result);
+						Partitioner.this.notifyAll();
+					}
+				}
+			}
+			catch (Exception e) {
+				synchronized(Partitioner.this) {
+					if (exception == null) {
+						exception = e;
+					}
+					end(partitionContext);
+					ended = true;
+				}
+			}
+			finally {
+				if (!ended) {
+					synchronized(Partitioner.this) {
+						if (exception == null) {
+							exception = new ServiceException("VM-6", "The partition for '" + key + "' stopped unexpectedly");
+						}
+						end(partitionContext);
+					}
+				}
+			}
+		}
+		
+		private void end(VMContext partitionContext) {
+			// whatever the partition opened, lives as long as the service
+			if (partitionContext != null) {
+				managed.addAll(partitionContext.getManaged(Scope.SERVICE));
+			}
+			partitions.remove(key);
+			Partitioner.this.notifyAll();
+		}
+	}
+	
+	/**
+	 * The events of a single element are collected and handed to the tracker of the loop in one go when the element is done
+	 * A tracker expects the events of a runtime to nest (each before has its after), if the partitions reported directly, the events of concurrent elements would interleave
+	 */
+	private static class PartitionTracker implements ServiceRuntimeTracker {
+		private static final int START = 0, STOP = 1, SERVICE_ERROR = 2, BEFORE = 3, AFTER = 4, STEP_ERROR = 5, REPORT = 6, DESCRIBE = 7;
+		private ServiceRuntimeTracker parent;
+		private Object lock;
+		private List<Object[]> events = new ArrayList<Object[]>();
+		
+		private PartitionTracker(ServiceRuntimeTracker parent, Object lock) {
+			this.parent = parent;
+			this.lock = lock;
+		}
+		
+		private void flush() {
+			if (!events.isEmpty()) {
+				synchronized(lock) {
+					for (Object [] event : events) {
+						switch((Integer) event[0]) {
+							case START: parent.start((Service) event[1]); break;
+							case STOP: parent.stop((Service) event[1]); break;
+							case SERVICE_ERROR: parent.error((Service) event[1], (Exception) event[2]); break;
+							case BEFORE: parent.before(event[1]); break;
+							case AFTER: parent.after(event[1]); break;
+							case STEP_ERROR: parent.error(event[1], (Exception) event[2]); break;
+							case REPORT: parent.report(event[1]); break;
+							case DESCRIBE: parent.describe(event[1]); break;
+						}
+					}
+				}
+				events.clear();
+			}
+		}
+		
+		@Override
+		public void start(Service service) {
+			events.add(new Object[] { START, service });
+		}
+		@Override
+		public void stop(Service service) {
+			events.add(new Object[] { STOP, service });
+		}
+		@Override
+		public void error(Service service, Exception exception) {
+			events.add(new Object[] { SERVICE_ERROR, service, exception });
+		}
+		@Override
+		public void before(Object step) {
+			events.add(new Object[] { BEFORE, step });
+		}
+		@Override
+		public void after(Object step) {
+			events.add(new Object[] { AFTER, step });
+		}
+		@Override
+		public void error(Object step, Exception exception) {
+			events.add(new Object[] { STEP_ERROR, step, exception });
+		}
+		@Override
+		public void report(Object object) {
+			events.add(new Object[] { REPORT, object });
+		}
+		@Override
+		public void describe(Object object) {
+			events.add(new Object[] { DESCRIBE, object });
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm.step;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.VMContext;
+
+/**
+ * Reads a number of elements ahead of the loop and starts the invoke for each of them so the service call overlaps with the work done in the previous iterations
+ * The results are handed to the invoke in the order of the elements, so the loop itself still runs sequentially
+ * The pool is shared by all the loops and bounded, when it is exhausted the service is called on the loop thread like it would be without prefetching
+ */
+class PrefetchingCursor extends LoopCursor {
+
+	private static AtomicInteger threadCounter = new AtomicInteger();
+	
+	// the maximum amount of threads that run prefetched services, pages and partitions for all the loops together
+	private static int THREADS = Integer.parseInt(System.getProperty("be.nabu.libs.services.vm.prefetch.threads", "64"));
+	
+	// the prefetched services (and pages and partitions) run on daemon threads, there is no queue: if all the threads are busy the work is refused
+	static ExecutorService executor = new ThreadPoolExecutor(0, THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "vm-prefetch-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/**
+	 * Runs the callable on the shared pool, if the pool is full it is run on the current thread
+	 * We never wait for a thread to become available: the threads that are busy could be waiting for us
+	 */
+	static <T> Future<T> submit(Callable<T> callable) {
+		try {
+			return executor.submit(callable);
+		}
+		catch (RejectedExecutionException e) {
+			FutureTask<T> task = new FutureTask<T>(callable);
+			task.run();
+			return task;
+		}
+	}
+	
+	private LoopCursor cursor;
+	private For loop;
+	private Invoke invoke;
+	private int ahead;
+	private boolean exhausted;
+	// per element: the value, the index and the started invoke (if any)
+	private Deque<Object[]> elements = new ArrayDeque<Object[]>();
+	private Object [] current;
+	
+	PrefetchingCursor(LoopCursor cursor, For loop, Invoke invoke, int ahead) {
+		super(cursor.batch, cursor.size);
+		this.cursor = cursor;
+		this.loop = loop;
+		this.invoke = invoke;
+		this.ahead = Math.max(1, ahead);
+	}
+
+	@Override
+	boolean next() throws ServiceException {
+		while (!exhausted && elements.size() <= ahead) {
+			if (cursor.next()) {
+				elements.add(new Object[] { cursor.getValue(), cursor.getIndex(), null });
+			}
+			else {
+				exhausted = true;
+			}
+		}
+		current = elements.poll();
+		return current != null;
+	}
+	
+	/**
+	 * Starts the invoke for the current element and the elements ahead that don't have one yet, this must be called on a pipeline that is cast for the current iteration
+	 * The loop variables are overwritten, the loop sets them for the current element afterwards
+	 */
+	void prefetch(VMContext context) throws ServiceException {
+		start(context, current);
+		for (Object [] element : elements) {
+			start(context, element);
+		}
+		context.setPrefetched(invoke, (Future<?>) current[2]);
+	}
+	
+	private void start(VMContext context, Object [] element) throws ServiceException {
+		if (element[2] == null) {
+			if (loop.getIndex() != null) {
+				loop.setVariable(context.getServiceInstance().getPipeline(), loop.getIndex(), element[1]);
+			}
+			if (loop.getVariable() != null) {
+				loop.setVariable(context.getServiceInstance().getPipeline(), loop.getVariable(), element[0]);
+			}
+			element[2] = invoke.prefetch(context);
+		}
+	}
+	
+	/**
+	 * Stops the services that have not started yet, the ones that are already running can not be taken back
+	 */
+	void close(VMContext context) {
+		context.takePrefetched(invoke);
+		for (Object [] element : elements) {
+			if (element[2] != null) {
+				((Future<?>) element[2]).cancel(false);
+			}
+		}
+		elements.clear();
+	}
+
+	@Override
+	void close() throws IOException {
+		cursor.close();
+	}
+
+	@Override
+	Object getValue() {
+		return current[0];
+	}
+
+	@Override
+	Object getIndex() {
+		return current[1];
+	}
+	
+	@Override
+	int getSizeHint() {
+		return cursor.getSizeHint();
+	}
+	
+	@Override
+	void setSize(int size) {
+		cursor.setSize(size);
+	}
+}
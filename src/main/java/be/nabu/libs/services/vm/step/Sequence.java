@@ -18,12 +18,12 @@
 package be.nabu.libs.services.vm.step;
 
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -33,13 +33,13 @@ import javax.xml.bind.annotation.XmlType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import be.nabu.libs.cluster.api.ClusterInstance;
-import be.nabu.libs.cluster.api.ClusterLock;
-import be.nabu.libs.cluster.local.LocalInstance;
 import be.nabu.libs.services.api.ServiceContext;
 import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.impl.TransactionReport;
+import be.nabu.libs.services.vm.ErrorLogLimiter;
+import be.nabu.libs.services.vm.GroupCommit;
 import be.nabu.libs.services.vm.PipelineExtension;
+import be.nabu.libs.services.vm.SequenceLocks;
 import be.nabu.libs.services.vm.VMContext;
 import be.nabu.libs.services.vm.api.Step;
 import be.nabu.libs.services.vm.api.VMService;
@@ -58,7 +58,7 @@ import be.nabu.libs.types.properties.CommentProperty;
  *
  */
 @XmlRootElement
-@XmlType(propOrder = { "transactionVariable", "suppressException", "scopeDefaultTransaction", "synchronized" })
+@XmlType(propOrder = { "transactionVariable", "suppressException", "scopeDefaultTransaction", "synchronized", "lockKey" })
 public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 
 	private PipelineExtension pipeline;
@@ -74,12 +74,35 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 	 */
 	private Boolean isSynchronized;
 	
+	/**
+	 * A query that is evaluated against the pipeline, only executions with the same key are synchronized
+	 */
+	private String lockKey;
+	
 	private Logger logger = LoggerFactory.getLogger(getClass());
 
 	private SimpleTypeWrapper simpleTypeWrapper;
 	
 	private static Boolean LOG_ERRORS = Boolean.parseBoolean(System.getProperty("be.nabu.libs.services.vm.logErrors", "true"));
 	
+	private static final char [] HEX = "0123456789abcdef".toCharArray();
+	
+	// the index of the first child that can use the transaction variable and the default transaction respectively, -1 if none do
+	// transactions are only started once we reach that child, if we never do, there is nothing to commit or rollback
+	private volatile int [] transactionStarts;
+	
+	// the catch and finally clauses per position, calculated once
+	private volatile Dispatch dispatch;
+	
+	// run consecutive loops over the same collection in a single pass
+	private static boolean FUSE_LOOPS = Boolean.parseBoolean(System.getProperty("be.nabu.libs.services.vm.fuseLoops", "false"));
+	
+	// per position the amount of loops that follow it and can run in the same pass, calculated once
+	private volatile int [] fusions;
+	
+	// the maximum amount of characters of the stack trace we render to match against, 0 means unlimited
+	private static int STACKTRACE_LIMIT = Integer.parseInt(System.getProperty("be.nabu.libs.services.vm.stacktraceLimit", "262144"));
+	
 	public Sequence(VMService definition, Step...steps) {
 		super(definition, steps);
 	}
@@ -95,11 +118,11 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 		// cast pipeline
 		context.getServiceInstance().castPipeline(getPipeline(context.getExecutionContext().getServiceContext()));
 		String transactionId = null;
-		if (transactionVariable != null) {
-			transactionId = context.getExecutionContext().getTransactionContext().start();
-			setVariable(context.getServiceInstance().getPipeline(), transactionVariable, transactionId);
-		}
+		int [] transactionStarts = getTransactionStarts();
+		// if we are in a loop with group commit, we use the shared transaction
+		GroupCommit groupCommit = transactionVariable == null ? null : context.getGroupCommit();
 		Step lastExecuted = null;
+		int lastExecutedIndex = -1;
 		Exception exception = null;
 		boolean logException = LOG_ERRORS;
 		// if we want to suppress the exception, don't log it (some errors are intentional, like not wanting to cache because we can't annotate it etc)
@@ -110,29 +133,53 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 		String localDefaultTransactionId = null;
 		if (scopeDefaultTransaction != null && scopeDefaultTransaction) {
 			previousDefaultTransactionId = context.getExecutionContext().getTransactionContext().getDefaultTransactionId();
-			localDefaultTransactionId = UUID.randomUUID().toString().replace("-", "");
-			context.getExecutionContext().getTransactionContext().setDefaultTransactionId(localDefaultTransactionId);
 		}
-		ClusterLock lock = null;
+		Runnable lock = null;
 		try {
-			if (isSynchronized != null && isSynchronized) {
-				ClusterInstance cluster = context.getCluster();
-				if (cluster == null) {
-					cluster = LocalInstance.getInstance();
-				}
-				lock = cluster.lock(getId());
-				lock.lock();
+			if ((isSynchronized != null && isSynchronized) || lockKey != null) {
+				// only executions with the same key are serialized
+				Object key = lockKey == null ? null : getVariable(context.getServiceInstance().getPipeline(), lockKey);
+				lock = SequenceLocks.lock(context.getCluster(), getId(), key == null ? null : key.toString());
 			}
-			for (Step child : getChildren()) {
+			List<Step> children = getChildren();
+			for (int i = 0; i < children.size(); i++) {
+				Step child = children.get(i);
 				if (child.isDisabled()) {
 					continue;
 				}
 				if (!(child instanceof Catch) && !(child instanceof Finally)) {
+					if (transactionId == null && transactionStarts[0] >= 0 && i >= transactionStarts[0]) {
+						transactionId = groupCommit != null ? groupCommit.getTransactionId(context) : context.getExecutionContext().getTransactionContext().start();
+						setVariable(context.getServiceInstance().getPipeline(), transactionVariable, transactionId);
+					}
+					if (localDefaultTransactionId == null && transactionStarts[1] >= 0 && i >= transactionStarts[1]) {
+						localDefaultTransactionId = newTransactionId();
+						context.getExecutionContext().getTransactionContext().setDefaultTransactionId(localDefaultTransactionId);
+					}
 					// set the last executed _before_ executing it, just in case we get an exception
 					// if we did not have to execute it (because of the label), it is still ok as it currently only serves as a pointer where we approximately got in the flow
 					// so we can discard catches & finallys before it
 					// this is especially important if it is the _first_ step of the sequence that fails!
 					lastExecuted = child;
+					lastExecutedIndex = i;
+					int [] fusions = FUSE_LOOPS ? getFusions() : null;
+					if (fusions != null && fusions[i] > 0) {
+						List<For> loops = new ArrayList<For>();
+						int last = i;
+						for (; loops.size() <= fusions[i]; last++) {
+							if (!children.get(last).isDisabled()) {
+								loops.add((For) children.get(last));
+							}
+						}
+						if (For.executeFused(this, context, loops)) {
+							// continue after the last loop that was run
+							i = last - 1;
+							if (isAborted(context)) {
+								break;
+							}
+							continue;
+						}
+					}
 					executeIfLabel(child, context);
 					if (context.mustBreak()) {
 						if (context.decreaseBreakCount() == 0 && context.isContinueExecution()) {
@@ -141,28 +188,34 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 						break;
 					}
 				}
-				if (isAborted()) {
+				if (isAborted(context)) {
 					break;
 				}
 			}
-			if (transactionId != null) {
-				if (isAborted()) {
+			// the loop decides when to commit a group commit
+			if (transactionId != null && groupCommit != null) {
+				if (isAborted(context)) {
+					groupCommit.rollback(context);
+				}
+			}
+			else if (transactionId != null) {
+				if (isAborted(context)) {
 					context.getExecutionContext().getTransactionContext().rollback(transactionId);
-					reportData(new TransactionReport(transactionId, "rollback"));
+					reportData(context, new TransactionReport(transactionId, "rollback"));
 				}
 				else {
 					context.getExecutionContext().getTransactionContext().commit(transactionId);
-					reportData(new TransactionReport(transactionId, "commit"));
+					reportData(context, new TransactionReport(transactionId, "commit"));
 				}
 			}
-			if (scopeDefaultTransaction != null && scopeDefaultTransaction) {
-				if (isAborted()) {
+			if (localDefaultTransactionId != null) {
+				if (isAborted(context)) {
 					context.getExecutionContext().getTransactionContext().rollback(localDefaultTransactionId);
-					reportData(new TransactionReport(localDefaultTransactionId, "rollback"));
+					reportData(context, new TransactionReport(localDefaultTransactionId, "rollback"));
 				}
 				else {
 					context.getExecutionContext().getTransactionContext().commit(localDefaultTransactionId);
-					reportData(new TransactionReport(localDefaultTransactionId, "commit"));
+					reportData(context, new TransactionReport(localDefaultTransactionId, "commit"));
 				}
 			}
 		}
@@ -171,17 +224,22 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 			// roll back pending transaction if any
 			if (transactionId != null) {
 				try {
-					context.getExecutionContext().getTransactionContext().rollback(transactionId);
-					reportData(new TransactionReport(transactionId, "rollback"));
+					if (groupCommit != null) {
+						groupCommit.rollback(context);
+					}
+					else {
+						context.getExecutionContext().getTransactionContext().rollback(transactionId);
+						reportData(context, new TransactionReport(transactionId, "rollback"));
+					}
 				}
 				catch (Exception f) {
 					logger.warn("Could not rollback transaction context during sequence exception handling", f);
 				}
 			}
-			if (scopeDefaultTransaction != null && scopeDefaultTransaction) {
+			if (localDefaultTransactionId != null) {
 				try {
 					context.getExecutionContext().getTransactionContext().rollback(localDefaultTransactionId);
-					reportData(new TransactionReport(localDefaultTransactionId, "rollback"));
+					reportData(context, new TransactionReport(localDefaultTransactionId, "rollback"));
 				}
 				catch (Exception f) {
 					logger.warn("Could not rollback default transaction context during sequence exception handling", f);
@@ -191,71 +249,58 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 			}
 			boolean matchFound = false;
 			Catch defaultCatchClause = null;
-			boolean lastExecutedFound = false;
-			for (Step child : getChildren()) {
-				if (child.isDisabled()) {
-					continue;
-				}
-				if (!lastExecutedFound) {
-					if (child.equals(lastExecuted)) {
-						lastExecutedFound = true;
+			// the stack trace is only rendered if a catch needs it
+			String stacktrace = null;
+			for (Catch catchClause : lastExecutedIndex < 0 ? new Catch[0] : getDispatch().catches[lastExecutedIndex]) {
+				if (catchClause.isDefault())
+					defaultCatchClause = catchClause;
+				// stacktrace match takes prio
+				else if (catchClause.getStacktracePattern() != null) {
+					if (stacktrace == null) {
+						stacktrace = getStacktrace(e);
 					}
-					continue;
-				}
-				else if (child instanceof Catch) {
-					Catch catchClause = (Catch) child;
-					if (catchClause.getTypes().size() == 0 && (catchClause.getCodes() == null || catchClause.getCodes().isEmpty()) && catchClause.getStacktraceRegex() == null)
-						defaultCatchClause = catchClause;
-					// stacktrace match takes prio
-					else if (catchClause.getStacktraceRegex() != null) {
-						StringWriter writer = new StringWriter();
-						PrintWriter printer = new PrintWriter(writer);
-						e.printStackTrace(printer);
-						printer.flush();
-						String content = writer.toString();
-						// always do the multiline matching?
-						// not sure if there is ever a usecase where you don't want this? if so, we need to make this smarter
-						if (content.matches("(?s)" + catchClause.getStacktraceRegex())) {
-							matchFound = true;
-							context.setCaughtException(e);
-							executeIfLabel(catchClause, context);
-							context.setCaughtException(null);
-							// if we have successfully handled the catch check if we should suppress the exception from the log
-							if (catchClause.getSuppressException() != null && catchClause.getSuppressException()) {
-								logException = false;
-							}
+					// always do the multiline matching?
+					// not sure if there is ever a usecase where you don't want this? if so, we need to make this smarter
+					if (catchClause.getStacktracePattern().matcher(stacktrace).matches()) {
+						matchFound = true;
+						context.setCaughtException(e);
+						executeIfLabel(catchClause, context);
+						context.setCaughtException(null);
+						// if we have successfully handled the catch check if we should suppress the exception from the log
+						if (catchClause.getSuppressException() != null && catchClause.getSuppressException()) {
+							logException = false;
 						}
 					}
-					// if we have codes, they get precedence
-					else if (!catchClause.getCodes().isEmpty()) {
-						if (hasAnyCode(e, catchClause.getCodes())) {
-							matchFound = true;
-							context.setCaughtException(e);
-							executeIfLabel(catchClause, context);
-							context.setCaughtException(null);
-							// if we have successfully handled the catch check if we should suppress the exception from the log
-							if (catchClause.getSuppressException() != null && catchClause.getSuppressException()) {
-								logException = false;
-							}
+				}
+				// if we have codes, they get precedence
+				else if (!catchClause.getCodeSet().isEmpty()) {
+					if (hasAnyCode(e, catchClause.getCodeSet())) {
+						matchFound = true;
+						context.setCaughtException(e);
+						executeIfLabel(catchClause, context);
+						context.setCaughtException(null);
+						// if we have successfully handled the catch check if we should suppress the exception from the log
+						if (catchClause.getSuppressException() != null && catchClause.getSuppressException()) {
+							logException = false;
 						}
 					}
-					else {
-						for (Class<?> exceptionType : catchClause.getTypes()) {
-							Throwable toCheck = e;
-							while (toCheck instanceof Exception) {
-								if (exceptionType.isAssignableFrom(toCheck.getClass())) {
-									matchFound = true;
-									context.setCaughtException((Exception) toCheck);
-									executeIfLabel(catchClause, context);
-									context.setCaughtException(null);
-									// if we have successfully handled the catch check if we should suppress the exception from the log
-									if (catchClause.getSuppressException() != null && catchClause.getSuppressException()) {
-										logException = false;
-									}
-									break;
+				}
+				else {
+					for (Class<?> exceptionType : catchClause.getTypes()) {
+						Throwable toCheck = e;
+						while (toCheck instanceof Exception) {
+							if (exceptionType.isAssignableFrom(toCheck.getClass())) {
+								matchFound = true;
+								context.setCaughtException((Exception) toCheck);
+								executeIfLabel(catchClause, context);
+								context.setCaughtException(null);
+								// if we have successfully handled the catch check if we should suppress the exception from the log
+								if (catchClause.getSuppressException() != null && catchClause.getSuppressException()) {
+									logException = false;
 								}
-								toCheck = toCheck.getCause();
+								break;
 							}
+							toCheck = toCheck.getCause();
 						}
 					}
 				}
@@ -284,13 +329,18 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 			// roll back pending transaction if any
 			if (transactionId != null) {
 				try {
-					context.getExecutionContext().getTransactionContext().rollback(transactionId);
+					if (groupCommit != null) {
+						groupCommit.rollback(context);
+					}
+					else {
+						context.getExecutionContext().getTransactionContext().rollback(transactionId);
+					}
 				}
 				catch (Exception f) {
 					logger.warn("Could not rollback transaction context during sequence exception handling", f);
 				}
 			}
-			if (scopeDefaultTransaction != null && scopeDefaultTransaction) {
+			if (localDefaultTransactionId != null) {
 				try {
 					context.getExecutionContext().getTransactionContext().rollback(localDefaultTransactionId);
 				}
@@ -311,55 +361,192 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 		finally {
 			if (lock != null) {
 				try {
-					lock.unlock();
+					lock.run();
 				}
 				catch (Exception e) {
 					logger.error("Could not unlock sequence", e);
 				}
 			}
 			// in the beginning of the finally, any finally step should not be using the localized default transaction
-			if (scopeDefaultTransaction != null && scopeDefaultTransaction) {
+			if (localDefaultTransactionId != null) {
 				context.getExecutionContext().getTransactionContext().setDefaultTransactionId(previousDefaultTransactionId);
 			}
-			if (logException && exception != null) {
-				LoggerFactory.getLogger(context.getServiceInstance().getDefinition().getId()).error("Sequence '" + getId() + "' exited with exception", exception);
+			// an exception that passes through multiple sequences is only logged once
+			if (logException && exception != null && context.markLogged(exception)) {
+				String serviceId = context.getServiceInstance().getDefinition().getId();
+				ErrorLogLimiter.log(LoggerFactory.getLogger(serviceId), serviceId, getId(), exception);
 			}
-			boolean lastExecutedFound = false;
-			for (Step child : getChildren()) {
-				if (child.isDisabled()) {
-					continue;
-				}
-				if (!lastExecutedFound) {
-					if (child.equals(lastExecuted)) {
-						lastExecutedFound = true;
+			Finally finallyClause = lastExecutedIndex < 0 ? null : getDispatch().finallies[lastExecutedIndex];
+			if (finallyClause != null) {
+				executeIfLabel(finallyClause, context);
+			}
+		}
+	}
+	
+	private int [] getTransactionStarts() {
+		if (transactionStarts == null) {
+			synchronized(this) {
+				if (transactionStarts == null) {
+					int [] transactionStarts = new int[] { -1, -1 };
+					List<Step> children = getChildren();
+					for (int i = children.size() - 1; i >= 0; i--) {
+						Step child = children.get(i);
+						if (child.isDisabled()) {
+							continue;
+						}
+						if (transactionVariable != null && transactionStarts[0] != 0 && StepAnalyzer.references(child, transactionVariable)) {
+							// the catch and finally blocks run after the commit or rollback, if they use the transaction id they expect the transaction to exist
+							transactionStarts[0] = child instanceof Catch || child instanceof Finally ? 0 : i;
+						}
+						// the default transaction is reset before the catch and finally blocks are run
+						if (scopeDefaultTransaction != null && scopeDefaultTransaction && !(child instanceof Catch) && !(child instanceof Finally) && StepAnalyzer.invokes(child)) {
+							transactionStarts[1] = i;
+						}
 					}
-					continue;
+					this.transactionStarts = transactionStarts;
 				}
-				else if (child instanceof Finally) {
-					executeIfLabel(child, context);
-					break;
+			}
+		}
+		return transactionStarts;
+	}
+	
+	private int [] getFusions() {
+		if (fusions == null) {
+			synchronized(this) {
+				if (fusions == null) {
+					List<Step> children = getChildren();
+					int [] fusions = new int[children.size()];
+					for (int i = 0; i < children.size(); i++) {
+						if (!(children.get(i) instanceof For) || children.get(i).isDisabled()) {
+							continue;
+						}
+						List<For> loops = new ArrayList<For>();
+						loops.add((For) children.get(i));
+						for (int j = i + 1; j < children.size(); j++) {
+							Step next = children.get(j);
+							if (next.isDisabled()) {
+								continue;
+							}
+							// the transaction is started when we reach the first step that uses it, a fused loop would be too early
+							if (!(next instanceof For) || (transactionVariable != null && StepAnalyzer.references(next, transactionVariable))
+									|| !StepAnalyzer.canFuse(loops, (For) next)) {
+								break;
+							}
+							loops.add((For) next);
+						}
+						fusions[i] = loops.size() - 1;
+					}
+					this.fusions = fusions;
 				}
 			}
 		}
+		return fusions;
 	}
 	
-	private boolean hasAnyCode(Throwable throwable, List<String> codesToCheck) {
-		List<String> codes = getCodes(throwable);
-		List<String> original = new ArrayList<String>(codes);
-		codes.removeAll(codesToCheck);
-		return original.size() != codes.size();
+	// a uuid uses a secure random which is needlessly expensive for a transaction id
+	private static String newTransactionId() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		char [] id = new char[32];
+		long value = random.nextLong();
+		for (int i = 0; i < 16; i++) {
+			id[i] = HEX[(int) (value >>> (60 - (i * 4))) & 0xf];
+		}
+		value = random.nextLong();
+		for (int i = 0; i < 16; i++) {
+			id[16 + i] = HEX[(int) (value >>> (60 - (i * 4))) & 0xf];
+		}
+		return new String(id);
 	}
 	
-	private List<String> getCodes(Throwable throwable) {
-		List<String> codes = new ArrayList<String>();
-		// the deepest service exception (if there are multiple) is what we are interested in
+	private boolean hasAnyCode(Throwable throwable, Set<String> codesToCheck) {
 		while(throwable != null) {
-			if (throwable instanceof ServiceException && ((ServiceException) throwable).getCode() != null) {
-				codes.add(((ServiceException) throwable).getCode());
+			if (throwable instanceof ServiceException && ((ServiceException) throwable).getCode() != null && codesToCheck.contains(((ServiceException) throwable).getCode())) {
+				return true;
 			}
 			throwable = throwable.getCause();
 		}
-		return codes;
+		return false;
+	}
+	
+	private static String getStacktrace(Exception e) {
+		LimitedWriter writer = new LimitedWriter(STACKTRACE_LIMIT);
+		PrintWriter printer = new PrintWriter(writer);
+		e.printStackTrace(printer);
+		printer.flush();
+		return writer.toString();
+	}
+	
+	private Dispatch getDispatch() {
+		if (dispatch == null) {
+			synchronized(this) {
+				if (dispatch == null) {
+					List<Step> children = getChildren();
+					Dispatch dispatch = new Dispatch();
+					dispatch.catches = new Catch[children.size()][];
+					dispatch.finallies = new Finally[children.size()];
+					List<Catch> catches = new ArrayList<Catch>();
+					Finally finallyClause = null;
+					// the clauses that apply to a position are the ones that come after it
+					for (int i = children.size() - 1; i >= 0; i--) {
+						dispatch.catches[i] = catches.toArray(new Catch[catches.size()]);
+						dispatch.finallies[i] = finallyClause;
+						Step child = children.get(i);
+						if (child.isDisabled()) {
+							continue;
+						}
+						if (child instanceof Catch) {
+							catches.add(0, (Catch) child);
+						}
+						// we only execute the first finally
+						else if (child instanceof Finally) {
+							finallyClause = (Finally) child;
+						}
+					}
+					this.dispatch = dispatch;
+				}
+			}
+		}
+		return dispatch;
+	}
+	
+	private static class Dispatch {
+		// for each position, the catch clauses that come after it
+		private Catch [][] catches;
+		// for each position, the first finally clause that comes after it
+		private Finally [] finallies;
+	}
+	
+	/**
+	 * Stops writing once the limit is reached, a very deep stack trace should not be fully rendered to match a regex
+	 */
+	private static class LimitedWriter extends Writer {
+		private StringBuilder builder = new StringBuilder();
+		private int limit;
+		
+		private LimitedWriter(int limit) {
+			this.limit = limit;
+		}
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+			if (limit <= 0) {
+				builder.append(buffer, offset, length);
+			}
+			else if (builder.length() < limit) {
+				builder.append(buffer, offset, Math.min(length, limit - builder.length()));
+			}
+		}
+		@Override
+		public void flush() {
+			// do nothing
+		}
+		@Override
+		public void close() {
+			// do nothing
+		}
+		@Override
+		public String toString() {
+			return builder.toString();
+		}
 	}
 	
 	@XmlTransient
@@ -414,6 +601,8 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 	}
 	public void setTransactionVariable(String transactionVariable) {
 		this.transactionVariable = transactionVariable;
+		this.transactionStarts = null;
+		this.fusions = null;
 	}
 	
 	@XmlAttribute
@@ -422,6 +611,7 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 	}
 	public void setScopeDefaultTransaction(Boolean scopeDefaultTransaction) {
 		this.scopeDefaultTransaction = scopeDefaultTransaction;
+		this.transactionStarts = null;
 	}
 	
 	@XmlTransient
@@ -434,6 +624,9 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 	@Override
 	public void refresh() {
 		pipeline = null;
+		transactionStarts = null;
+		dispatch = null;
+		fusions = null;
 	}
 	
 	@XmlAttribute
@@ -451,4 +644,12 @@ public class Sequence extends BaseStepGroup implements LimitedStepGroup {
 	public void setSynchronized(Boolean isSynchronized) {
 		this.isSynchronized = isSynchronized;
 	}
+	
+	@XmlAttribute
+	public String getLockKey() {
+		return lockKey;
+	}
+	public void setLockKey(String lockKey) {
+		this.lockKey = lockKey;
+	}
 }
@@ -0,0 +1,560 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.vm.step;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import be.nabu.libs.services.vm.api.Step;
+import be.nabu.libs.services.vm.api.StepGroup;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Static analysis of a step tree, this allows the runtime to skip work that can never be observed
+ * The analysis is conservative: if we don't know a step type, we assume it can do anything
+ */
+public class StepAnalyzer {
+
+	private static Pattern LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'|\"(?:[^\"\\\\]|\\\\.)*\"");
+	// the identifier at the start of a path
+	private static Pattern ROOT = Pattern.compile("[a-zA-Z_$][\\w$]*");
+	private static Pattern CALL = Pattern.compile("[\\w$]\\s*\\(");
+
+	/**
+	 * Returns all the expressions that are evaluated by the step itself (not its children), returns null if the step is unknown
+	 */
+	public static List<String> getExpressions(Step step) {
+		List<String> expressions = new ArrayList<String>();
+		expressions.add(step.getLabel());
+		if (step instanceof Link) {
+			expressions.add(((Link) step).getFrom());
+			expressions.add(((Link) step).getTo());
+		}
+		else if (step instanceof Invoke) {
+			expressions.add(((Invoke) step).getTarget());
+			if (((Invoke) step).getTargetProperties() != null) {
+				expressions.addAll(((Invoke) step).getTargetProperties().values());
+			}
+		}
+		else if (step instanceof For) {
+			expressions.add(((For) step).getQuery());
+			expressions.add(((For) step).getBatchSize());
+			expressions.add(((For) step).getInto());
+			expressions.add(((For) step).getPageInput());
+			expressions.add(((For) step).getPartitionKey());
+		}
+		else if (step instanceof Switch) {
+			expressions.add(((Switch) step).getQuery());
+		}
+		else if (step instanceof Throw) {
+			expressions.add(((Throw) step).getMessage());
+			expressions.add(((Throw) step).getCode());
+			expressions.add(((Throw) step).getAlias());
+			expressions.add(((Throw) step).getRealm());
+			expressions.add(((Throw) step).getAuthenticationId());
+			expressions.add(((Throw) step).getData());
+		}
+		else if (step instanceof Drop) {
+			expressions.add(((Drop) step).getPath());
+		}
+		else if (step instanceof Catch) {
+			expressions.add(((Catch) step).getVariable());
+		}
+		else if (step instanceof Sequence) {
+			expressions.add(((Sequence) step).getTransactionVariable());
+			expressions.add(((Sequence) step).getLockKey());
+		}
+		else if (!(step instanceof Map) && !(step instanceof Break) && !(step instanceof Finally)) {
+			return null;
+		}
+		return expressions;
+	}
+
+	/**
+	 * Checks whether the step or any of its descendants could reference the given variable
+	 */
+	public static boolean references(Step step, String variable) {
+		return references(step, Pattern.compile("(?<![\\w$])" + Pattern.quote(variable) + "(?!\\w)"));
+	}
+
+	private static boolean references(Step step, Pattern pattern) {
+		List<String> expressions = getExpressions(step);
+		if (expressions == null) {
+			return true;
+		}
+		for (String expression : expressions) {
+			if (expression != null && pattern.matcher(expression).find()) {
+				return true;
+			}
+		}
+		if (step instanceof StepGroup) {
+			for (Step child : ((StepGroup) step).getChildren()) {
+				if (!child.isDisabled() && references(child, pattern)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the root variables that an expression could read, field names in filters are included as well which is conservative
+	 * A path that starts with "/" is resolved from the root of the pipeline, so its first part is a root as well
+	 * Returns null if the expression can not be parsed, in that case it could read anything
+	 */
+	public static Set<String> getRoots(String expression) {
+		Set<String> roots = new HashSet<String>();
+		if (expression == null) {
+			return roots;
+		}
+		StringBuilder brackets = new StringBuilder();
+		// whether the previous token can have children (an identifier or the closing of a filter)
+		boolean path = false;
+		// whether the current token is a child of the previous token
+		boolean child = false;
+		for (int i = 0; i < expression.length(); i++) {
+			char character = expression.charAt(i);
+			if (character == '\'' || character == '"') {
+				int end = i + 1;
+				while (end < expression.length() && expression.charAt(end) != character) {
+					end += expression.charAt(end) == '\\' ? 2 : 1;
+				}
+				// an unterminated literal
+				if (end >= expression.length()) {
+					return null;
+				}
+				i = end;
+				path = false;
+				child = false;
+			}
+			// numbers can not have children, this makes sure a division like "1/a" is not seen as a path
+			else if (Character.isDigit(character)) {
+				while (i + 1 < expression.length() && (Character.isJavaIdentifierPart(expression.charAt(i + 1)) || expression.charAt(i + 1) == '.')) {
+					i++;
+				}
+				path = false;
+				child = false;
+			}
+			else if (Character.isJavaIdentifierStart(character)) {
+				int start = i;
+				while (i + 1 < expression.length() && Character.isJavaIdentifierPart(expression.charAt(i + 1))) {
+					i++;
+				}
+				if (!child) {
+					roots.add(expression.substring(start, i + 1));
+				}
+				path = true;
+				child = false;
+			}
+			else if (character == '/' || character == '.') {
+				// a "/" that does not follow a path starts at the root of the pipeline
+				child = path;
+				path = false;
+			}
+			else if (character == '[' || character == '(') {
+				brackets.append(character == '[' ? ']' : ')');
+				path = false;
+				child = false;
+			}
+			else if (character == ']' || character == ')') {
+				if (brackets.length() == 0 || brackets.charAt(brackets.length() - 1) != character) {
+					return null;
+				}
+				brackets.setLength(brackets.length() - 1);
+				path = true;
+				child = false;
+			}
+			else {
+				path = false;
+				child = false;
+			}
+		}
+		return brackets.length() == 0 ? roots : null;
+	}
+
+	private static String getRoot(String path) {
+		if (path == null) {
+			return null;
+		}
+		Matcher matcher = ROOT.matcher(path.replaceFirst("^[\\s/]+", ""));
+		return matcher.lookingAt() ? matcher.group() : null;
+	}
+
+	/**
+	 * Adds the root of the path to the writes, returns false if the path has no root we can recognize
+	 */
+	private static boolean addRoot(Set<String> writes, String path) {
+		if (path == null) {
+			return true;
+		}
+		String root = getRoot(path);
+		if (root == null) {
+			return false;
+		}
+		writes.add(root);
+		return true;
+	}
+
+	/**
+	 * Returns the root variables that the step or any of its descendants could change, returns null if we don't know
+	 * Variables that are passed to a service are considered changed as the service can modify them
+	 */
+	public static Set<String> getWrites(Step step) {
+		Set<String> writes = new HashSet<String>();
+		return getWrites(step, writes, true) ? writes : null;
+	}
+
+	private static boolean getWrites(Step step, Set<String> writes, boolean inputs) {
+		if (getExpressions(step) == null) {
+			return false;
+		}
+		if (step instanceof Link) {
+			if (step.getParent() instanceof Invoke) {
+				if (inputs && !((Link) step).isFixedValue()) {
+					Set<String> roots = getRoots(((Link) step).getFrom());
+					if (roots == null) {
+						return false;
+					}
+					writes.addAll(roots);
+				}
+			}
+			else if (!addRoot(writes, ((Link) step).getTo())) {
+				return false;
+			}
+		}
+		else if (step instanceof Invoke) {
+			add(writes, ((Invoke) step).getResultName());
+		}
+		else if (step instanceof Drop) {
+			if (!addRoot(writes, ((Drop) step).getPath())) {
+				return false;
+			}
+		}
+		else if (step instanceof For) {
+			add(writes, ((For) step).getVariable());
+			add(writes, ((For) step).getIndex());
+			if (!addRoot(writes, ((For) step).getInto())) {
+				return false;
+			}
+		}
+		else if (step instanceof Catch) {
+			if (!addRoot(writes, ((Catch) step).getVariable())) {
+				return false;
+			}
+		}
+		else if (step instanceof Sequence) {
+			if (!addRoot(writes, ((Sequence) step).getTransactionVariable())) {
+				return false;
+			}
+		}
+		if (step instanceof StepGroup) {
+			for (Step child : ((StepGroup) step).getChildren()) {
+				if (!child.isDisabled() && !getWrites(child, writes, inputs)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the root variables that the step or any of its descendants could read, returns null if we don't know
+	 */
+	public static Set<String> getReads(Step step) {
+		List<String> expressions = getExpressions(step);
+		if (expressions == null) {
+			return null;
+		}
+		Set<String> reads = new HashSet<String>();
+		for (String expression : expressions) {
+			Set<String> roots = getRoots(expression);
+			if (roots == null) {
+				return null;
+			}
+			reads.addAll(roots);
+		}
+		if (step instanceof StepGroup) {
+			for (Step child : ((StepGroup) step).getChildren()) {
+				if (!child.isDisabled()) {
+					Set<String> childReads = getReads(child);
+					if (childReads == null) {
+						return null;
+					}
+					reads.addAll(childReads);
+				}
+			}
+		}
+		return reads;
+	}
+
+	private static boolean breaks(Step step) {
+		if (step instanceof Break) {
+			return true;
+		}
+		if (step instanceof StepGroup) {
+			for (Step child : ((StepGroup) step).getChildren()) {
+				if (!child.isDisabled() && breaks(child)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the next loop can iterate in the same pass as the given loops (which can already run together)
+	 * This is the case if they iterate over the same query and none of them can see the effects of another, the loops themselves must be simple:
+	 * - no label or features (they might depend on the result of an earlier loop)
+	 * - no group commits, no services and no breaks
+	 * - no tuned batch size, it would be measured for all the loops together
+	 * - no partitioning, a fused pass is sequential
+	 * The loops can share their variable and index names as each loop sets its own before every iteration
+	 */
+	public static boolean canFuse(List<For> loops, For next) {
+		For first = loops.get(0);
+		if (!isFusable(first) || !isFusable(next) || !first.getQuery().equals(next.getQuery())
+				|| (first.getBatchSize() == null ? next.getBatchSize() != null : !first.getBatchSize().equals(next.getBatchSize()))) {
+			return false;
+		}
+		// the query is evaluated once, so it must be deterministic
+		if (CALL.matcher(LITERAL.matcher(first.getQuery()).replaceAll(" ")).find()) {
+			return false;
+		}
+		Set<String> nextReads = getReads(next);
+		Set<String> nextWrites = getWrites(next);
+		if (nextReads == null || nextWrites == null) {
+			return false;
+		}
+		Set<String> queryRoots = getRoots(first.getQuery());
+		Set<String> batchRoots = getRoots(first.getBatchSize());
+		if (queryRoots == null || batchRoots == null) {
+			return false;
+		}
+		queryRoots.addAll(batchRoots);
+		for (For loop : loops) {
+			Set<String> reads = getReads(loop);
+			Set<String> writes = getWrites(loop);
+			if (reads == null || writes == null) {
+				return false;
+			}
+			Set<String> conflicts = new HashSet<String>(writes);
+			conflicts.retainAll(nextReads);
+			Set<String> reverse = new HashSet<String>(nextWrites);
+			reverse.retainAll(reads);
+			conflicts.addAll(reverse);
+			reverse = new HashSet<String>(nextWrites);
+			reverse.retainAll(writes);
+			conflicts.addAll(reverse);
+			if (loop.getVariable() != null && loop.getVariable().equals(next.getVariable())) {
+				conflicts.remove(loop.getVariable());
+			}
+			if (loop.getIndex() != null && loop.getIndex().equals(next.getIndex())) {
+				conflicts.remove(loop.getIndex());
+			}
+			if (!conflicts.isEmpty()) {
+				return false;
+			}
+			// the collection itself may not change
+			for (String root : queryRoots) {
+				if (writes.contains(root) || nextWrites.contains(root)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean isFusable(For loop) {
+		return !loop.isDisabled() && loop.getQuery() != null && loop.getLabel() == null && (loop.getFeatures() == null || loop.getFeatures().trim().isEmpty())
+			&& (loop.getCommitSize() == null || loop.getCommitSize() <= 0) && (loop.getCommitInterval() == null || loop.getCommitInterval() <= 0)
+			&& loop.getMaxBatchSize() == null && loop.getPartitionKey() == null && !invokes(loop) && !breaks(loop);
+	}
+
+	private static void add(Set<String> set, String value) {
+		if (value != null) {
+			set.add(value);
+		}
+	}
+
+	/**
+	 * Returns the evaluations in the loop that give the same result in every iteration: the links (for their from) and the labels
+	 * An expression is invariant if it does not call any methods (they might not be deterministic) and it does not read anything that is written in the loop
+	 */
+	public static Set<Object> getInvariants(For loop) {
+		Set<Object> invariants = new LinkedHashSet<Object>();
+		Set<String> writes = getWrites(loop);
+		if (writes != null) {
+			for (Step child : loop.getChildren()) {
+				if (!child.isDisabled()) {
+					getInvariants(child, writes, invariants);
+				}
+			}
+		}
+		return invariants;
+	}
+
+	private static void getInvariants(Step step, Set<String> writes, Set<Object> invariants) {
+		if (step.getLabel() != null && isInvariant(step.getLabel(), writes)) {
+			invariants.add(step.getLabel());
+		}
+		if (step instanceof Link) {
+			String from = ((Link) step).getFrom();
+			if (((Link) step).isFixedValue()) {
+				// a fixed value is only evaluated if it starts with "="
+				from = from != null && from.startsWith("=") && !from.equals("=") ? from.substring(1) : null;
+			}
+			if (from != null && isInvariant(from, writes)) {
+				invariants.add(step);
+			}
+		}
+		if (step instanceof StepGroup) {
+			for (Step child : ((StepGroup) step).getChildren()) {
+				if (!child.isDisabled()) {
+					getInvariants(child, writes, invariants);
+				}
+			}
+		}
+	}
+
+	private static boolean isInvariant(String expression, Set<String> writes) {
+		if (CALL.matcher(LITERAL.matcher(expression).replaceAll(" ")).find()) {
+			return false;
+		}
+		Set<String> roots = getRoots(expression);
+		if (roots == null) {
+			return false;
+		}
+		for (String root : roots) {
+			if (writes.contains(root)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the invoke in the loop that can be started before its iteration is reached, null if there is none
+	 * The invoke must be a direct child of the loop and the only step in the loop that runs a service so starting it early does not change the order of side effects
+	 * Its input may only depend on the loop variable, the loop index and variables that are not changed inside the loop
+	 * As we run ahead, a loop with a break is not allowed: we would call the service for elements that are never reached
+	 */
+	public static Invoke getPrefetchable(For loop) {
+		Invoke invoke = null;
+		Set<String> writes = new HashSet<String>();
+		for (Step child : loop.getChildren()) {
+			if (child.isDisabled()) {
+				continue;
+			}
+			if (breaks(child)) {
+				return null;
+			}
+			else if (child instanceof Invoke && invoke == null) {
+				invoke = (Invoke) child;
+				// the input is mapped before the iteration starts, the service itself only changes its result
+				writes.add(invoke.getResultName());
+			}
+			else if (invokes(child) || !getWrites(child, writes, true)) {
+				return null;
+			}
+		}
+		if (invoke == null || invoke.isAsynchronous() || invoke.getTarget() != null || invoke.getLabel() != null || (invoke.getFeatures() != null && !invoke.getFeatures().trim().isEmpty())) {
+			return null;
+		}
+		Set<String> reads = new HashSet<String>();
+		if (invoke.getTargetProperties() != null) {
+			for (String value : invoke.getTargetProperties().values()) {
+				Set<String> roots = getRoots(value);
+				if (roots == null) {
+					return null;
+				}
+				reads.addAll(roots);
+			}
+		}
+		for (Step child : invoke.getChildren()) {
+			if (child.isDisabled()) {
+				continue;
+			}
+			// the "to" of an input link points into the input of the service, not the pipeline
+			String from = ((Link) child).getFrom();
+			if (((Link) child).isFixedValue()) {
+				from = from != null && from.startsWith("=") && !from.equals("=") ? from.substring(1) : null;
+			}
+			Set<String> roots = getRoots(from);
+			if (roots == null) {
+				return null;
+			}
+			reads.addAll(roots);
+		}
+		for (String read : reads) {
+			if (writes.contains(read)) {
+				return null;
+			}
+		}
+		return invoke;
+	}
+
+	/**
+	 * Checks whether the iterations of the loop can run concurrently, each on their own copy of the pipeline
+	 * The loop may not break and apart from the into it may only change variables that do not exist outside of the loop (the given type)
+	 * The services that are called are assumed not to modify their input, we can't check that
+	 */
+	public static boolean isPartitionable(For loop, ComplexType outer) {
+		Set<String> writes = new HashSet<String>();
+		for (Step child : loop.getChildren()) {
+			if (!child.isDisabled() && (breaks(child) || !getWrites(child, writes, false))) {
+				return false;
+			}
+		}
+		String into = getRoot(loop.getInto());
+		if (loop.getInto() != null && into == null) {
+			return false;
+		}
+		for (String write : writes) {
+			if (!write.equals(into) && outer.get(write) != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether the step or any of its descendants can run a service (and as such use a transaction)
+	 */
+	public static boolean invokes(Step step) {
+		if (step instanceof Invoke || getExpressions(step) == null) {
+			return true;
+		}
+		// a loop can stream its results to a service or get its elements from one
+		else if (step instanceof For && (((For) step).getStreamInto() != null || ((For) step).getPageService() != null)) {
+			return true;
+		}
+		if (step instanceof StepGroup) {
+			for (Step child : ((StepGroup) step).getChildren()) {
+				if (!child.isDisabled() && invokes(child)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -17,9 +17,13 @@
 
 package be.nabu.libs.services.vm.step;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlTransient;
@@ -40,6 +44,12 @@ public class Switch extends BaseStepGroup implements LimitedStepGroup {
 	 * If no query is given, the check will be based on the boolean "true"
 	 */
 	private String query;
+	
+	// string and number literals
+	private static final Pattern CONSTANT = Pattern.compile("^(?:\"[^\"\\\\]*\"|'[^'\\\\]*'|-?[0-9]+(?:\\.[0-9]+)?)$");
+	
+	// per type of the switch value, the jump table for the constant cases
+	private java.util.Map<Class<?>, JumpTable> jumpTables = new ConcurrentHashMap<Class<?>, JumpTable>();
 
 	public Switch() {
 		// default creation
@@ -52,43 +62,132 @@ public class Switch extends BaseStepGroup implements LimitedStepGroup {
 	@Override
 	public void execute(VMContext context) throws ServiceException {
 		Object toMatch = getComparison(context);
-		for (Step child : getChildren()) {
-			if (child.isDisabled()) {
-				continue;
+		// null values can only be matched linearly
+		if (toMatch != null) {
+			JumpTable table = getJumpTable(toMatch.getClass(), context);
+			Integer hit = table.cases.get(toMatch);
+			// anything that can not be resolved up front and comes before the hit has to be checked in order
+			for (int position : table.barriers) {
+				if (hit != null && position > hit) {
+					break;
+				}
+				if (tryCase(getChildren().get(position), toMatch, context)) {
+					return;
+				}
+				if (isAborted(context)) {
+					return;
+				}
+			}
+			if (hit != null) {
+				execute(getChildren().get(hit), context);
 			}
-			// if features have disabled the step, don't continue
-			if (!isOkForFeatures(child, context)) {
-				continue;
+		}
+		else {
+			for (Step child : getChildren()) {
+				if (child.isDisabled()) {
+					continue;
+				}
+				if (tryCase(child, toMatch, context)) {
+					break;
+				}
+				if (isAborted(context)) {
+					break;
+				}
 			}
-			// default match
-			if (child.getLabel() == null) {
-				execute(child, context);
-				break;
+		}
+	}
+	
+	/**
+	 * Executes the child if it matches, returns true if it did
+	 */
+	private boolean tryCase(Step child, Object toMatch, VMContext context) throws ServiceException {
+		// if features have disabled the step, don't continue
+		if (!isOkForFeatures(child, context)) {
+			return false;
+		}
+		// default match
+		if (child.getLabel() == null) {
+			execute(child, context);
+			return true;
+		}
+		Object result = getCaseValue(child, toMatch == null ? null : toMatch.getClass(), context);
+		if ((result == null && toMatch == null) || (result != null && toMatch != null && result.equals(toMatch))) {
+			execute(child, context);
+			return true;
+		}
+		return false;
+	}
+	
+	private Object getCaseValue(Step child, Class<?> type, VMContext context) throws ServiceException {
+		Object result = getVariable(context.getServiceInstance().getPipeline(), child.getLabel());
+		if (type != null && result != null) {
+			Object converted = ConverterFactory.getInstance().getConverter().convert(result, type);
+			if (converted == null) {
+				// if we can't directly convert it to boolean, we assume null to be false and not null to be true
+				if (Boolean.class.isAssignableFrom(type)) {
+					converted = result != null;
+				}
+				else {
+					throw new IllegalArgumentException("Can not convert the result '" + result + "' of the label to the type of the switch variable: " + type);
+				}
 			}
-			else {
-				Object result = getVariable(context.getServiceInstance().getPipeline(), child.getLabel());
-				if (toMatch != null && result != null) {
-					Object converted = ConverterFactory.getInstance().getConverter().convert(result, toMatch.getClass());
-					if (converted == null) {
-						// if we can't directly convert it to boolean, we assume null to be false and not null to be true
-						if (Boolean.class.isAssignableFrom(toMatch.getClass())) {
-							converted = result != null;
+			result = converted;
+		}
+		return result;
+	}
+	
+	/**
+	 * Builds a table of all the constant case labels (converted to the type we are matching) to the position of the first child with that label
+	 * Children that have a dynamic label, features or no label (the default) are barriers: they have to be evaluated in order
+	 */
+	private JumpTable getJumpTable(Class<?> type, VMContext context) throws ServiceException {
+		JumpTable table = jumpTables.get(type);
+		if (table == null) {
+			synchronized(jumpTables) {
+				table = jumpTables.get(type);
+				if (table == null) {
+					table = new JumpTable();
+					List<Integer> barriers = new ArrayList<Integer>();
+					List<Step> children = getChildren();
+					for (int i = 0; i < children.size(); i++) {
+						Step child = children.get(i);
+						if (child.isDisabled()) {
+							continue;
+						}
+						boolean constant = child.getLabel() != null && CONSTANT.matcher(child.getLabel().trim()).matches()
+							&& (child.getFeatures() == null || child.getFeatures().trim().isEmpty());
+						Object value = null;
+						if (constant) {
+							try {
+								// a constant label evaluates to the same value regardless of the pipeline
+								value = getCaseValue(child, type, context);
+							}
+							catch (Exception e) {
+								// we leave it to the linear evaluation to report this at the correct time
+								value = null;
+							}
 						}
-						else {
-							throw new IllegalArgumentException("Can not convert the result '" + result + "' of the label to the type of the switch variable: " + toMatch.getClass());
+						if (value == null) {
+							barriers.add(i);
+						}
+						else if (!table.cases.containsKey(value)) {
+							table.cases.put(value, i);
 						}
 					}
-					result = converted;
-				}
-				if ((result == null && toMatch == null) || (result != null && toMatch != null && result.equals(toMatch))) {
-					execute(child, context);
-					break;
+					table.barriers = new int[barriers.size()];
+					for (int i = 0; i < barriers.size(); i++) {
+						table.barriers[i] = barriers.get(i);
+					}
+					jumpTables.put(type, table);
 				}
 			}
-			if (isAborted()) {
-				break;
-			}
 		}
+		return table;
+	}
+	
+	private static class JumpTable {
+		private java.util.Map<Object, Integer> cases = new HashMap<Object, Integer>();
+		private int [] barriers;
 	}
 	
 	@Override
@@ -114,6 +213,7 @@ public class Switch extends BaseStepGroup implements LimitedStepGroup {
 
 	public void setQuery(String query) {
 		this.query = query;
+		this.jumpTables.clear();
 	}
 	
 	@XmlTransient
@@ -131,6 +231,6 @@ public class Switch extends BaseStepGroup implements LimitedStepGroup {
 	
 	@Override
 	public void refresh() {
-		// do nothing
+		jumpTables.clear();
 	}
 }
@@ -25,6 +25,7 @@ import javax.xml.bind.annotation.XmlType;
 import be.nabu.libs.authentication.impl.ImpersonateToken;
 import be.nabu.libs.services.api.ServiceContext;
 import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.StacklessServiceException;
 import be.nabu.libs.services.vm.VMContext;
 import be.nabu.libs.validator.api.Validation;
 
@@ -34,7 +35,7 @@ import be.nabu.libs.validator.api.Validation;
  * @author alex
  *
  */
-@XmlType(propOrder = { "code", "message", "data", "alias", "realm", "authenticationId", "whitelist" })
+@XmlType(propOrder = { "code", "message", "data", "alias", "realm", "authenticationId", "whitelist", "stackless" })
 public class Throw extends BaseStep {
 	
 	public Throw() {
@@ -78,6 +79,12 @@ public class Throw extends BaseStep {
 	 */
 	private String alias, realm, authenticationId;
 	
+	/**
+	 * Business exceptions are often caught in the same service, in that case capturing a stack trace is wasted effort
+	 * The stack trace is captured once the exception escapes the service or is logged
+	 */
+	private Boolean stackless;
+	
 	@Override
 	public void execute(VMContext context) throws ServiceException {
 		Object messageValue = null;
@@ -133,7 +140,7 @@ public class Throw extends BaseStep {
 		}
 		// any other exception is wrapped
 		else if (messageValue instanceof Exception) {
-			ServiceException serviceException = new ServiceException(codeValue == null ? null : codeValue.toString(), (String) null, (Exception) messageValue);
+			ServiceException serviceException = newException(codeValue == null ? null : codeValue.toString(), null, (Exception) messageValue);
 			serviceException.setExplicit(true);
 			serviceException.setSourceId(getId());
 			serviceException.setDescription(descriptionValue == null ? null : descriptionValue.toString());
@@ -147,7 +154,7 @@ public class Throw extends BaseStep {
 			throw serviceException;
 		}
 		else {
-			ServiceException serviceException = new ServiceException(codeValue == null ? null : codeValue.toString(), messageValue == null ? "No message" : messageValue.toString(), context.getCaughtException());
+			ServiceException serviceException = newException(codeValue == null ? null : codeValue.toString(), messageValue == null ? "No message" : messageValue.toString(), context.getCaughtException());
 			serviceException.setExplicit(true);
 			serviceException.setSourceId(getId());
 			serviceException.setDescription(descriptionValue == null ? null : descriptionValue.toString());
@@ -162,6 +169,12 @@ public class Throw extends BaseStep {
 		}
 	}
 
+	private ServiceException newException(String code, String message, Exception cause) {
+		return (stackless == null ? StacklessServiceException.isEnabled() : stackless)
+			? new StacklessServiceException(code, message, cause)
+			: new ServiceException(code, message, cause);
+	}
+
 	private void enrichToken(VMContext context, ServiceException serviceException) throws ServiceException {
 		// we have a different user
 		if (alias != null) {
@@ -260,6 +273,14 @@ public class Throw extends BaseStep {
 		this.authenticationId = authenticationId;
 	}
 
+	@XmlAttribute
+	public Boolean getStackless() {
+		return stackless;
+	}
+	public void setStackless(Boolean stackless) {
+		this.stackless = stackless;
+	}
+
 	@XmlAttribute
 	public String getData() {
 		return data;
@@ -0,0 +1,45 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.HashMap;
+
+import be.nabu.libs.artifacts.ArtifactResolverFactory;
+import be.nabu.libs.artifacts.api.ArtifactResolver;
+import be.nabu.libs.services.api.DefinedService;
+
+/**
+ * Makes services that are built in a test resolvable by their id, like the ones a loop pages through or prefetches
+ */
+public class Services {
+
+	private static java.util.Map<String, DefinedService> services = new HashMap<String, DefinedService>();
+	
+	static {
+		ArtifactResolverFactory.getInstance().addResolver(new ArtifactResolver<DefinedService>() {
+			@Override
+			public DefinedService resolve(String id) {
+				return services.get(id);
+			}
+		});
+	}
+	
+	public static void register(DefinedService service) {
+		services.put(service.getId(), service);
+	}
+}
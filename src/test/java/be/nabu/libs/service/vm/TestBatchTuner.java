@@ -0,0 +1,124 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.BatchTuner;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestBatchTuner extends TestCase {
+
+	public void testTargetLatency() {
+		BatchTuner tuner = BatchTuner.getTuner("test.latency");
+		// 10ms per batch
+		tuner.configure(1, 1000, 10, 0, 10);
+		for (int i = 0; i < 10; i++) {
+			// 0.1ms per element
+			tuner.measured(tuner.getBatchSize(), tuner.getBatchSize() * 100000l, -1);
+		}
+		assertEquals(100, tuner.getBatchSize());
+	}
+
+	public void testLatencyStepsAreLimited() {
+		BatchTuner tuner = BatchTuner.getTuner("test.step");
+		tuner.configure(1, 1000, 10, 0, 10);
+		tuner.measured(10, 1000000, -1);
+		// the target would be 100 but a single measurement can only double the size
+		assertEquals(20, tuner.getBatchSize());
+	}
+
+	public void testThroughputSearch() {
+		BatchTuner tuner = BatchTuner.getTuner("test.throughput");
+		tuner.configure(1, 1000, 0, 0, 10);
+		tuner.measured(10, 10000, -1);
+		int grown = tuner.getBatchSize();
+		// without a target we keep growing while the throughput improves
+		assertTrue(grown > 10);
+		tuner.measured(grown, grown * 500l, -1);
+		int improved = tuner.getBatchSize();
+		assertTrue(improved > grown);
+		// once the throughput drops, we turn around
+		tuner.measured(improved, improved * 5000l, -1);
+		assertTrue(tuner.getBatchSize() < improved);
+	}
+
+	public void testMemoryCap() {
+		BatchTuner tuner = BatchTuner.getTuner("test.memory");
+		tuner.configure(1, 1000, 10, 1000, 10);
+		// fast enough to grow, but each element allocates 100 bytes
+		tuner.measured(10, 1000000, 1000);
+		assertEquals(10, tuner.getBatchSize());
+	}
+
+	public void testBounds() {
+		BatchTuner tuner = BatchTuner.getTuner("test.bounds");
+		tuner.configure(5, 8, 10, 0, 1);
+		assertEquals(5, tuner.getBatchSize());
+		tuner.measured(5, 5, -1);
+		assertEquals(8, tuner.getBatchSize());
+		tuner.measured(8, 8000000000l, -1);
+		assertEquals(5, tuner.getBatchSize());
+	}
+
+	public void testTunedLoop() throws ServiceException {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Rolodex>(Rolodex.class),
+			new BeanType<Company>(Company.class)
+		);
+		// the variable is a list of contacts per batch
+		For loop = new For(
+			new Map(
+				new Link("contacts", "output/employees")
+			)
+		).setQuery("input/contacts").setVariable("contacts");
+		loop.setInto("output/employees");
+		loop.setMinBatchSize(2);
+		loop.setMaxBatchSize(8);
+		definition.setRoot(new Sequence(definition, loop));
+
+		Rolodex rolodex = new Rolodex();
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			names.add("Contact" + i);
+			rolodex.getContacts().add(new Employee("Contact" + i, new Date()));
+		}
+		Company company = TypeUtils.getAsBean(
+			definition.newInstance().execute(ServiceUtils.newExecutionContext(), new BeanInstance<Rolodex>(rolodex)),
+			Company.class
+		);
+		List<String> result = new ArrayList<String>();
+		for (Employee employee : company.getEmployees()) {
+			result.add(employee.getName());
+		}
+		assertEquals(names, result);
+		assertTrue(BatchTuner.getTuner(loop.getId()).getBatches() > 0);
+	}
+}
@@ -0,0 +1,69 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.services.vm.BinaryContentCodec;
+import be.nabu.libs.services.vm.BinaryContentCodec.DecodedServiceResult;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestBinaryContentCodec extends TestCase {
+
+	public void testRoundTrip() {
+		Date date = new Date();
+		Rolodex rolodex = new Rolodex();
+		rolodex.getContacts().add(new Person("John", date));
+		rolodex.getContacts().add(new Person("Joe", null));
+		BinaryContentCodec codec = new BinaryContentCodec(new BeanType<Rolodex>(Rolodex.class));
+		ComplexContent decoded = codec.decode(codec.encode(new BeanInstance<Rolodex>(rolodex)));
+		List<?> contacts = (List<?>) decoded.get("contacts");
+		assertEquals(2, contacts.size());
+		assertEquals("John", ((ComplexContent) contacts.get(0)).get("name"));
+		assertEquals(date, ((ComplexContent) contacts.get(0)).get("dateOfBirth"));
+		assertEquals("Joe", ((ComplexContent) contacts.get(1)).get("name"));
+		assertNull(((ComplexContent) contacts.get(1)).get("dateOfBirth"));
+	}
+
+	public void testCompression() {
+		Rolodex rolodex = new Rolodex();
+		for (int i = 0; i < 1000; i++) {
+			rolodex.getContacts().add(new Person("Contact", new Date(0)));
+		}
+		BinaryContentCodec plain = new BinaryContentCodec(new BeanType<Rolodex>(Rolodex.class));
+		BinaryContentCodec compressed = new BinaryContentCodec(new BeanType<Rolodex>(Rolodex.class), true);
+		ByteBuffer buffer = compressed.encode(new BeanInstance<Rolodex>(rolodex));
+		assertTrue(buffer.remaining() < plain.encode(new BeanInstance<Rolodex>(rolodex)).remaining());
+		assertEquals(1000, ((List<?>) compressed.decode(buffer).get("contacts")).size());
+	}
+
+	public void testException() {
+		BinaryContentCodec codec = new BinaryContentCodec(new BeanType<Company>(Company.class));
+		ServiceResult result = codec.decodeResult(codec.encode(new DecodedServiceResult(null, new ServiceException("TEST-1", "Something went wrong"))));
+		assertNull(result.getOutput());
+		assertEquals("TEST-1", result.getException().getCode());
+		assertEquals("Something went wrong", result.getException().getMessage());
+	}
+}
@@ -0,0 +1,209 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.api.Step;
+import be.nabu.libs.services.vm.step.Catch;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.services.vm.step.Throw;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestCatch extends TestCase {
+
+	public void testCode() throws ServiceException {
+		Catch declined = newCatch(0, Arrays.asList("DECLINED"), null);
+		Catch other = newCatch(1, Arrays.asList("OTHER"), null);
+		assertEquals(Arrays.asList("catch0"), execute(newThrow("DECLINED", "Card declined"), declined, other));
+		assertEquals(Arrays.asList("catch1"), execute(newThrow("OTHER", "Card declined"), declined, other));
+	}
+	
+	public void testDefault() throws ServiceException {
+		Catch declined = newCatch(0, Arrays.asList("DECLINED"), null);
+		Catch fallback = newCatch(1, null, null);
+		// the default catch only runs if no other one matches, wherever it is positioned
+		assertEquals(Arrays.asList("catch1"), execute(newThrow("OTHER", "Card declined"), fallback, declined));
+		assertEquals(Arrays.asList("catch0"), execute(newThrow("DECLINED", "Card declined"), fallback, declined));
+	}
+	
+	public void testStacktrace() throws ServiceException {
+		Catch timeout = newCatch(0, null, ".*timeout.*");
+		Catch fallback = newCatch(1, null, null);
+		assertEquals(Arrays.asList("catch0"), execute(newThrow(null, "Gateway timeout"), timeout, fallback));
+		assertEquals(Arrays.asList("catch1"), execute(newThrow(null, "Card declined"), timeout, fallback));
+	}
+	
+	public void testPrecedence() throws ServiceException {
+		// if there is a regex, the codes of that catch are not checked
+		Catch both = newCatch(0, Arrays.asList("DECLINED"), ".*timeout.*");
+		Catch fallback = newCatch(1, null, null);
+		assertEquals(Arrays.asList("catch1"), execute(newThrow("DECLINED", "Card declined"), both, fallback));
+		assertEquals(Arrays.asList("catch0"), execute(newThrow("DECLINED", "Gateway timeout"), both, fallback));
+		// every specific catch that matches runs
+		Catch code = newCatch(2, Arrays.asList("DECLINED"), null);
+		assertEquals(Arrays.asList("catch0", "catch2"), execute(newThrow("DECLINED", "Gateway timeout"), both, fallback, code));
+	}
+	
+	public void testPosition() throws ServiceException {
+		// a catch only handles the steps that come before it
+		SimpleVMServiceDefinition definition = newDefinition();
+		definition.setRoot(new Sequence(definition, newCatch(0, null, null), newThrow(null, "Card declined"), newCatch(1, null, null)));
+		assertEquals(Arrays.asList("catch1"), execute(definition));
+	}
+	
+	public void testModifiedCodes() throws ServiceException {
+		Catch code = newCatch(0, new ArrayList<String>(Arrays.asList("DECLINED")), null);
+		Catch fallback = newCatch(1, null, null);
+		SimpleVMServiceDefinition definition = newDefinition();
+		definition.setRoot(new Sequence(definition, newThrow("OTHER", "Card declined"), code, fallback));
+		assertEquals(Arrays.asList("catch1"), execute(definition));
+		// the codes are cached but changing the list must be picked up
+		code.getCodes().add("OTHER");
+		assertEquals(Arrays.asList("catch0"), execute(definition));
+		code.getCodes().clear();
+		assertEquals(Arrays.asList("catch1"), execute(definition));
+	}
+	
+	public void testLinearScan() throws ServiceException {
+		List<Catch> catches = Arrays.asList(
+			newCatch(0, Arrays.asList("DECLINED"), null),
+			newCatch(1, Arrays.asList("DECLINED", "BLOCKED"), null),
+			newCatch(2, null, ".*timeout.*"),
+			newCatch(3, null, null),
+			newCatch(4, Arrays.asList("BLOCKED"), ".*declined.*"),
+			newCatch(5, null, null)
+		);
+		catches.get(5).addType(UnsupportedOperationException.class);
+		for (String code : Arrays.asList(null, "DECLINED", "BLOCKED", "OTHER")) {
+			for (String message : Arrays.asList("Card declined", "Gateway timeout", "Unknown failure")) {
+				// the catches are rotated so the default one ends up in every position
+				for (int offset = 0; offset < catches.size(); offset++) {
+					List<Catch> rotated = new ArrayList<Catch>();
+					for (int i = 0; i < catches.size(); i++) {
+						rotated.add(catches.get((i + offset) % catches.size()));
+					}
+					assertEquals(code + ": " + message, scan(rotated, new ServiceException(code, message)), execute(newThrow(code, message), rotated.toArray(new Catch[rotated.size()])));
+				}
+			}
+		}
+	}
+	
+	// the catches that should run, checked one by one
+	private static List<String> scan(List<Catch> catches, ServiceException exception) {
+		StringWriter stacktrace = new StringWriter();
+		exception.printStackTrace(new PrintWriter(stacktrace));
+		List<String> matches = new ArrayList<String>();
+		String fallback = null;
+		for (Catch catchClause : catches) {
+			boolean hasCodes = catchClause.getCodes() != null && !catchClause.getCodes().isEmpty();
+			if (catchClause.getTypes().isEmpty() && !hasCodes && catchClause.getStacktraceRegex() == null) {
+				fallback = catchClause.getComment();
+			}
+			else if (catchClause.getStacktraceRegex() != null) {
+				if (Pattern.compile("(?s)" + catchClause.getStacktraceRegex()).matcher(stacktrace.toString()).matches()) {
+					matches.add(catchClause.getComment());
+				}
+			}
+			else if (hasCodes) {
+				if (catchClause.getCodes().contains(exception.getCode())) {
+					matches.add(catchClause.getComment());
+				}
+			}
+			else {
+				for (Class<? extends Exception> type : catchClause.getTypes()) {
+					if (type.isAssignableFrom(exception.getClass())) {
+						matches.add(catchClause.getComment());
+						break;
+					}
+				}
+			}
+		}
+		if (matches.isEmpty() && fallback != null) {
+			matches.add(fallback);
+		}
+		// the service reports them in the order of their slots
+		Collections.sort(matches);
+		return matches;
+	}
+	
+	private static Throw newThrow(String code, String message) {
+		Throw step = new Throw(message);
+		step.setCode(code);
+		return step;
+	}
+	
+	// a catch that writes its name to its own slot in the output
+	private static Catch newCatch(int index, List<String> codes, String regex) {
+		Link link = new Link("catch" + index, "output/records[" + index + "]");
+		link.setFixedValue(true);
+		Catch catchClause = new Catch(new Map(link));
+		catchClause.setComment("catch" + index);
+		catchClause.setCodes(codes);
+		catchClause.setStacktraceRegex(regex);
+		return catchClause;
+	}
+	
+	private static SimpleVMServiceDefinition newDefinition() {
+		return new SimpleVMServiceDefinition(
+			new BeanType<Person>(Person.class),
+			new BeanType<Document>(Document.class)
+		);
+	}
+	
+	private static List<String> execute(Throw step, Catch...catches) throws ServiceException {
+		SimpleVMServiceDefinition definition = newDefinition();
+		List<Step> children = new ArrayList<Step>();
+		children.add(step);
+		children.addAll(Arrays.asList(catches));
+		definition.setRoot(new Sequence(definition, children.toArray(new Step[children.size()])));
+		return execute(definition);
+	}
+	
+	// the names of the catches that ran, in the order they are positioned in
+	private static List<String> execute(SimpleVMServiceDefinition definition) throws ServiceException {
+		Document document = TypeUtils.getAsBean(
+			definition.newInstance().execute(ServiceUtils.newExecutionContext(), new BeanInstance<Person>(new Person("John", new Date()))),
+			Document.class
+		);
+		List<String> names = new ArrayList<String>();
+		if (document.getRecords() != null) {
+			for (String record : document.getRecords()) {
+				if (record != null) {
+					names.add(record);
+				}
+			}
+		}
+		return names;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.vm.ConcurrencyLimiter;
+import be.nabu.libs.services.vm.ConcurrencyLimiter.Rejection;
+
+public class TestConcurrencyLimiter extends TestCase {
+
+	public void testLimit() throws InterruptedException {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2);
+		assertTrue(limiter.acquire(Rejection.FAIL, null));
+		assertTrue(limiter.acquire(Rejection.FAIL, null));
+		assertFalse(limiter.acquire(Rejection.FAIL, null));
+		// waiting times out as nothing is released
+		assertFalse(limiter.acquire(Rejection.WAIT, 50l));
+		assertEquals(2, limiter.getRejected());
+		limiter.release(1000000);
+		assertTrue(limiter.acquire(Rejection.FAIL, null));
+		limiter.release(1000000);
+		limiter.release(1000000);
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(0, limiter.getQueued());
+	}
+
+	public void testWaitForRelease() throws InterruptedException {
+		final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1);
+		assertTrue(limiter.acquire(Rejection.FAIL, null));
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				}
+				catch (InterruptedException e) {
+					// continue
+				}
+				limiter.release(1000000);
+			}
+		});
+		thread.start();
+		assertTrue(limiter.acquire(Rejection.WAIT, 10000l));
+		limiter.release(1000000);
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	public void testBackoff() throws InterruptedException {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10);
+		assertTrue(limiter.acquire(Rejection.FAIL, null));
+		limiter.release(1000000);
+		// a call that takes a lot longer than the baseline lowers the limit
+		assertTrue(limiter.acquire(Rejection.FAIL, null));
+		limiter.release(100000000);
+		assertTrue(limiter.getLimit() < 10);
+		assertTrue(limiter.getLimit() >= 1);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.vm.DurableQueue;
+
+public class TestDurableQueue extends TestCase {
+
+	// each record takes 25 bytes (5 header + 20 payload), so two records fit in a segment
+	private static final int SEGMENT_SIZE = 64;
+
+	public void testReplay() throws IOException, InterruptedException {
+		File directory = Files.createTempDirectory("durable").toFile();
+		DurableQueue queue = new DurableQueue(directory, SEGMENT_SIZE);
+		queue.offer(payload('a'));
+		queue.offer(payload('b'));
+		queue.offer(payload('c'));
+		queue.acknowledge(queue.take());
+		queue.close();
+
+		// the records that were not acknowledged are picked up again
+		queue = new DurableQueue(directory, SEGMENT_SIZE);
+		assertEquals(2, queue.size());
+		assertEquals('b', (char) queue.take().getPayload()[0]);
+		assertEquals('c', (char) queue.take().getPayload()[0]);
+		queue.close();
+	}
+
+	public void testDelayedReplay() throws IOException, InterruptedException {
+		File directory = Files.createTempDirectory("durable").toFile();
+		DurableQueue queue = new DurableQueue(directory, SEGMENT_SIZE);
+		queue.offer(payload('a'));
+		queue.close();
+
+		// the recovered record is kept back until we replay, new records are handed out as usual
+		queue = new DurableQueue(directory, SEGMENT_SIZE, false);
+		queue.offer(payload('b'));
+		assertEquals(2, queue.size());
+		assertEquals('b', (char) queue.take().getPayload()[0]);
+		queue.replay();
+		assertEquals('a', (char) queue.take().getPayload()[0]);
+		assertEquals(0, queue.size());
+		queue.close();
+	}
+
+	public void testSegmentDeletedOnRoll() throws IOException, InterruptedException {
+		File directory = Files.createTempDirectory("durable").toFile();
+		DurableQueue queue = new DurableQueue(directory, SEGMENT_SIZE);
+		queue.offer(payload('a'));
+		queue.offer(payload('b'));
+		queue.acknowledge(queue.take());
+		queue.acknowledge(queue.take());
+		// the segment is done but we are still writing to it
+		assertEquals(1, getSegments(directory).length);
+		queue.offer(payload('c'));
+		// moving on to the next segment removes the one that was done
+		assertEquals(1, getSegments(directory).length);
+		queue.acknowledge(queue.take());
+		queue.close();
+	}
+
+	public void testSegmentReleasedOnAcknowledge() throws IOException, InterruptedException {
+		File directory = Files.createTempDirectory("durable").toFile();
+		DurableQueue queue = new DurableQueue(directory, SEGMENT_SIZE);
+		queue.offer(payload('a'));
+		queue.offer(payload('b'));
+		queue.offer(payload('c'));
+		DurableQueue.Entry first = queue.take();
+		queue.acknowledge(first);
+		queue.acknowledge(queue.take());
+		// the first segment is done and no longer written to
+		assertEquals(1, getSegments(directory).length);
+		// it is unmapped, so its records can no longer be read
+		try {
+			first.getPayload();
+			fail("The payload of a released segment can not be read");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			queue.acknowledge(first);
+			fail("A record can not be acknowledged twice");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals('c', (char) queue.take().getPayload()[0]);
+		queue.close();
+	}
+
+	private static byte[] payload(char character) {
+		byte [] payload = new byte[20];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) character;
+		}
+		return payload;
+	}
+
+	private static File[] getSegments(File directory) {
+		return directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("segment-") && name.endsWith(".dat");
+			}
+		});
+	}
+}
@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.slf4j.Logger;
+
+import be.nabu.libs.services.vm.ErrorLogLimiter;
+
+public class TestErrorLogLimiter extends TestCase {
+
+	private static Pattern SUMMARY = Pattern.compile(".*: ([0-9]+) occurrence\\(s\\), ([0-9]+) not logged.*");
+	
+	@Override
+	protected void setUp() {
+		ErrorLogLimiter.setLimited(true);
+		// start from a clean window
+		ErrorLogLimiter.flush();
+	}
+
+	@Override
+	protected void tearDown() {
+		ErrorLogLimiter.setLimited(false);
+	}
+	
+	public void testRepeats() {
+		RecordingLogger logger = new RecordingLogger();
+		Logger target = logger.newLogger();
+		for (int i = 0; i < 200; i++) {
+			ErrorLogLimiter.log(target, "test.repeats", "step", new Exception("failure " + i));
+		}
+		// only the first one has a stack trace
+		assertEquals(1, logger.full.get());
+		ErrorLogLimiter.flush();
+		assertEquals(1, logger.summaries.size());
+		long [] summary = parse(logger.summaries.get(0));
+		assertEquals(200, summary[0]);
+		// everything is either logged or counted as not logged
+		assertEquals(200, logger.full.get() + logger.repeated.get() + summary[1]);
+		// in a new window, the first occurrence is logged in full again
+		ErrorLogLimiter.log(target, "test.repeats", "step", new Exception("failure"));
+		assertEquals(2, logger.full.get());
+	}
+	
+	public void testConcurrentFlush() throws InterruptedException {
+		final RecordingLogger logger = new RecordingLogger();
+		final Logger target = logger.newLogger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 5000; j++) {
+						ErrorLogLimiter.log(target, "test.concurrent", "step" + (j % 3), new Exception("failure"));
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		// the windows are closed while the counters are being incremented
+		while (isAlive(threads)) {
+			ErrorLogLimiter.flush();
+		}
+		ErrorLogLimiter.flush();
+		long suppressed = 0;
+		for (String summary : logger.summaries) {
+			suppressed += parse(summary)[1];
+		}
+		// no increment is lost, regardless of when the counters were swapped or retired
+		assertEquals(8 * 5000, logger.full.get() + logger.repeated.get() + suppressed);
+	}
+	
+	private static boolean isAlive(List<Thread> threads) {
+		for (Thread thread : threads) {
+			if (thread.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static long[] parse(String summary) {
+		Matcher matcher = SUMMARY.matcher(summary);
+		assertTrue(summary, matcher.matches());
+		return new long[] { Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)) };
+	}
+	
+	private static class RecordingLogger {
+		private AtomicLong full = new AtomicLong(), repeated = new AtomicLong();
+		private List<String> summaries = Collections.synchronizedList(new ArrayList<String>());
+		
+		private Logger newLogger() {
+			return (Logger) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Logger.class }, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if (method.getName().equals("error") && args.length == 2) {
+						full.incrementAndGet();
+					}
+					else if (method.getName().equals("error") && args.length == 1) {
+						repeated.incrementAndGet();
+					}
+					else if (method.getName().equals("warn") && args.length == 1) {
+						summaries.add((String) args[0]);
+					}
+					return method.getReturnType().equals(boolean.class) ? false : null;
+				}
+			});
+		}
+	}
+}
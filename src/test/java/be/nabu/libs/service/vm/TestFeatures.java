@@ -0,0 +1,121 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.FeaturedExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.Pipeline;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.VMContext;
+import be.nabu.libs.services.vm.VMServiceInstance;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestFeatures extends TestCase {
+
+	public void testCombinations() throws ServiceException {
+		SimpleVMServiceDefinition definition = newService("a && !b");
+		assertEquals("on", execute(definition, newContext(new ArrayList<String>(Arrays.asList("a")))));
+		assertNull(execute(definition, newContext(new ArrayList<String>(Arrays.asList("a", "b")))));
+		assertNull(execute(definition, newContext(new ArrayList<String>())));
+		// the remembered results do not leak between combinations
+		assertEquals("on", execute(definition, newContext(new ArrayList<String>(Arrays.asList("c", "a")))));
+	}
+
+	public void testManyFeatures() throws ServiceException {
+		// too many features to keep a table of all the combinations
+		StringBuilder expression = new StringBuilder();
+		for (int i = 0; i < 12; i++) {
+			if (i > 0) {
+				expression.append(" || ");
+			}
+			expression.append("f" + i);
+		}
+		SimpleVMServiceDefinition definition = newService(expression.toString());
+		assertEquals("on", execute(definition, newContext(new ArrayList<String>(Arrays.asList("f11")))));
+		assertNull(execute(definition, newContext(new ArrayList<String>(Arrays.asList("g")))));
+	}
+	
+	public void testChangedInPlace() throws ServiceException {
+		SimpleVMServiceDefinition definition = newService("a && !b");
+		List<String> features = new ArrayList<String>(Arrays.asList("a"));
+		ExecutionContext executionContext = newContext(features);
+		ComplexContent pipeline = definition.getPipeline().newInstance();
+		pipeline.set(Pipeline.INPUT, new BeanInstance<Rolodex>(new Rolodex()));
+		VMContext context = new VMContext(executionContext, new VMServiceInstance(definition, pipeline));
+		definition.getRoot().execute(context);
+		assertEquals("on", pipeline.get("output/name"));
+		// same list, same size, different features
+		features.set(0, "b");
+		pipeline.set("output/name", null);
+		definition.getRoot().execute(context);
+		assertNull(pipeline.get("output/name"));
+	}
+	
+	private static SimpleVMServiceDefinition newService(String features) {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Rolodex>(Rolodex.class),
+			new BeanType<Company>(Company.class)
+		);
+		Link link = new Link("on", "output/name");
+		link.setFixedValue(true);
+		Map map = new Map(link);
+		map.setFeatures(features);
+		definition.setRoot(new Sequence(definition, map));
+		return definition;
+	}
+	
+	private static String execute(SimpleVMServiceDefinition definition, ExecutionContext context) throws ServiceException {
+		ComplexContent output = definition.newInstance().execute(context, new BeanInstance<Rolodex>(new Rolodex()));
+		return output == null ? null : (String) output.get("name");
+	}
+	
+	// a regular execution context that has the given features enabled
+	private static ExecutionContext newContext(final List<String> features) {
+		final ExecutionContext parent = ServiceUtils.newExecutionContext();
+		return (ExecutionContext) Proxy.newProxyInstance(TestFeatures.class.getClassLoader(), new Class<?>[] { FeaturedExecutionContext.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getEnabledFeatures")) {
+					return features;
+				}
+				try {
+					return method.invoke(parent, args);
+				}
+				catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.Pipeline;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.VMContext;
+import be.nabu.libs.services.vm.VMServiceInstance;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.services.vm.step.Throw;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestGroupCommit extends TestCase {
+
+	public void testRetryKeepsCommittedResults() {
+		VMContext context = execute(true);
+		// the earlier elements of the chunk are replayed and committed, the failed one is not
+		List<?> employees = getEmployees(context);
+		assertEquals(2, employees.size());
+	}
+
+	public void testNoRetryDropsRolledBackResults() {
+		VMContext context = execute(false);
+		// the whole chunk was rolled back, its results should not be visible
+		List<?> employees = getEmployees(context);
+		assertTrue(employees == null || employees.isEmpty());
+	}
+
+	private static VMContext execute(boolean retry) {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Rolodex>(Rolodex.class),
+			new BeanType<Company>(Company.class)
+		);
+		Throw fail = new Throw("Can not process Bob");
+		fail.setLabel("contact/name == 'Bob'");
+		For loop = new For(
+			new Map(
+				new Link("contact", "output/employees")
+			),
+			fail
+		).setQuery("input/contacts").setVariable("contact");
+		loop.setInto("output/employees");
+		loop.setCommitSize(10);
+		loop.setCommitRetry(retry);
+		definition.setRoot(new Sequence(definition, loop));
+
+		Rolodex rolodex = new Rolodex();
+		rolodex.getContacts().add(new Employee("John", new Date()));
+		rolodex.getContacts().add(new Employee("Joe", new Date()));
+		rolodex.getContacts().add(new Employee("Bob", new Date()));
+		rolodex.getContacts().add(new Employee("Jane", new Date()));
+		ComplexContent pipeline = definition.getPipeline().newInstance();
+		pipeline.set(Pipeline.INPUT, new BeanInstance<Rolodex>(rolodex));
+		VMContext context = new VMContext(ServiceUtils.newExecutionContext(), new VMServiceInstance(definition, pipeline));
+		try {
+			definition.getRoot().execute(context);
+			fail("The loop should stop at Bob");
+		}
+		catch (ServiceException e) {
+			// expected
+		}
+		return context;
+	}
+
+	private static List<?> getEmployees(VMContext context) {
+		ComplexContent output = (ComplexContent) context.getServiceInstance().getPipeline().get(Pipeline.OUTPUT);
+		return output == null ? null : (List<?>) output.get("employees");
+	}
+}
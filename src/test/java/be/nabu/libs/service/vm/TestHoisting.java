@@ -0,0 +1,77 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestHoisting extends TestCase {
+
+	public void testInvariantLink() throws ServiceException {
+		for (boolean hoist : new boolean[] { false, true }) {
+			Company company = execute(new Link("input/contacts[0]/name", "output/name"), hoist);
+			assertEquals(3, company.getEmployees().size());
+			assertEquals("John", company.getName());
+		}
+	}
+
+	public void testVariantLink() throws ServiceException {
+		for (boolean hoist : new boolean[] { false, true }) {
+			// the link depends on the iteration so it is evaluated every time, the last one wins
+			Company company = execute(new Link("contact/name", "output/name"), hoist);
+			assertEquals(3, company.getEmployees().size());
+			assertEquals("Bob", company.getName());
+		}
+	}
+
+	private static Company execute(Link link, boolean hoist) throws ServiceException {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Rolodex>(Rolodex.class),
+			new BeanType<Company>(Company.class)
+		);
+		For loop = new For(
+			new Map(
+				new Link("contact", "output/employees"),
+				link
+			)
+		).setQuery("input/contacts").setVariable("contact");
+		loop.setInto("output/employees");
+		loop.setHoistInvariants(hoist);
+		definition.setRoot(new Sequence(definition, loop));
+
+		Rolodex rolodex = new Rolodex();
+		rolodex.getContacts().add(new Employee("John", new Date()));
+		rolodex.getContacts().add(new Employee("Joe", new Date()));
+		rolodex.getContacts().add(new Employee("Bob", new Date()));
+		return TypeUtils.getAsBean(
+			definition.newInstance().execute(ServiceUtils.newExecutionContext(), new BeanInstance<Rolodex>(rolodex)),
+			Company.class
+		);
+	}
+}
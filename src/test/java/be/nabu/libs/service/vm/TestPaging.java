@@ -0,0 +1,157 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ForkableExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.api.Step;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.services.vm.step.Switch;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestPaging extends TestCase {
+
+	static {
+		// the case without a label is the default so it has to come last: without a token you get the first page, the token "b" returns the last one
+		register("test.pages.token", newSwitch("input/token",
+			newPage("'b'", null, "c"),
+			newPage(null, "b", "a", "b")
+		));
+		// the tokens run in a circle: x, y, x
+		register("test.pages.cycle", newSwitch("input/token",
+			newPage("'x'", "y", "b"),
+			newPage("'y'", "x", "c"),
+			newPage(null, "x", "a")
+		));
+		// two pages of items, after that an empty page
+		register("test.pages.offset", newSwitch("input/offset",
+			newPage("0", null, "a", "b"),
+			newPage("2", null, "c")
+		));
+	}
+	
+	public void testTokens() throws ServiceException {
+		assertEquals(Arrays.asList("a", "b", "c"), execute("test.pages.token", "token", "next", ServiceUtils.newExecutionContext()));
+	}
+
+	public void testOffsets() throws ServiceException {
+		assertEquals(Arrays.asList("a", "b", "c"), execute("test.pages.offset", "offset", null, ServiceUtils.newExecutionContext()));
+	}
+
+	public void testRepeatedToken() throws ServiceException {
+		// the second "x" is not requested again, otherwise we would never stop
+		assertEquals(Arrays.asList("a", "b", "c"), execute("test.pages.cycle", "token", "next", ServiceUtils.newExecutionContext()));
+	}
+
+	public void testBackgroundFetch() throws ServiceException {
+		ExecutionContext context = ServiceUtils.newExecutionContext();
+		// the next page is only fetched in the background if the context can be forked, either way the result must be the same
+		assertTrue(context instanceof ForkableExecutionContext);
+		for (int i = 0; i < 20; i++) {
+			assertEquals(Arrays.asList("a", "b", "c"), execute("test.pages.token", "token", "next", context));
+		}
+	}
+
+	public void testNoTokenInput() {
+		try {
+			execute("test.pages.token", null, "next", ServiceUtils.newExecutionContext());
+			fail("Without a token input the same page would be requested forever");
+		}
+		catch (ServiceException e) {
+			assertTrue(hasCode(e, "VM-18"));
+		}
+	}
+
+	private static List<String> execute(String pageService, String tokenInput, String token, ExecutionContext context) throws ServiceException {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Page>(Page.class),
+			new BeanType<Page>(Page.class)
+		);
+		For loop = new For(
+			new Map(
+				new Link("item", "output/items")
+			)
+		).setQuery("items").setVariable("item");
+		loop.setInto("output/items");
+		loop.setPageService(pageService);
+		loop.setPageTokenInput(tokenInput);
+		loop.setPageToken(token);
+		definition.setRoot(new Sequence(definition, loop));
+		return TypeUtils.getAsBean(
+			definition.newInstance().execute(context, new BeanInstance<Page>(new Page())),
+			Page.class
+		).getItems();
+	}
+	
+	private static void register(String id, Switch pages) {
+		SimpleVMServiceDefinition service = new SimpleVMServiceDefinition(
+			new BeanType<Page>(Page.class),
+			new BeanType<Page>(Page.class)
+		);
+		service.setId(id);
+		service.setRoot(new Sequence(service, pages));
+		Services.register(service);
+	}
+	
+	private static Switch newSwitch(String query, Step...pages) {
+		Switch result = new Switch(pages);
+		result.setQuery(query);
+		return result;
+	}
+	
+	private static Step newPage(String label, String next, String...items) {
+		Map map = new Map();
+		for (int i = 0; i < items.length; i++) {
+			map.getChildren().add(fixed(items[i], "output/items[" + i + "]"));
+		}
+		if (next != null) {
+			map.getChildren().add(fixed(next, "output/next"));
+		}
+		map.setLabel(label);
+		return map;
+	}
+	
+	private static Link fixed(String value, String to) {
+		Link link = new Link(value, to);
+		link.setFixedValue(true);
+		return link;
+	}
+
+	// the exception can be wrapped by the steps it passes through
+	private static boolean hasCode(Throwable throwable, String code) {
+		while (throwable != null) {
+			if (throwable instanceof ServiceException && code.equals(((ServiceException) throwable).getCode())) {
+				return true;
+			}
+			throwable = throwable.getCause();
+		}
+		return false;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
+import be.nabu.libs.services.vm.Pipeline;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.VMContext;
+import be.nabu.libs.services.vm.VMServiceInstance;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestPartitioning extends TestCase {
+
+	public void testTrackerInPartitions() throws ServiceException {
+		SimpleVMServiceDefinition definition = newDefinition();
+		CountingTracker tracker = new CountingTracker(null, 0);
+		VMContext context = newContext(definition, ServiceUtils.newExecutionContext(), 20);
+		context.setRuntimeTracker(tracker);
+		definition.getRoot().execute(context);
+		// every iteration runs the map, whichever thread it runs on
+		assertEquals(20, tracker.maps.get());
+		// the events of concurrent iterations do not interleave
+		assertEquals(0, tracker.violations);
+	}
+
+	public void testResultsInOrder() throws ServiceException {
+		SimpleVMServiceDefinition definition = newDefinition();
+		VMContext context = newContext(definition, ServiceUtils.newExecutionContext(), 200);
+		definition.getRoot().execute(context);
+		// the results are merged in the order of the elements, not in the order they complete
+		List<?> employees = (List<?>) ((ComplexContent) context.getServiceInstance().getPipeline().get(Pipeline.OUTPUT)).get("employees");
+		assertEquals(200, employees.size());
+		for (int i = 0; i < employees.size(); i++) {
+			assertEquals(i, ((Date) ((ComplexContent) employees.get(i)).get("dateOfBirth")).getTime());
+		}
+	}
+
+	public void testAbortInPartitions() throws ServiceException {
+		SimpleVMServiceDefinition definition = newDefinition();
+		ExecutionContext executionContext = ServiceUtils.newExecutionContext();
+		ServiceRuntime runtime = new ServiceRuntime(definition, executionContext);
+		CountingTracker tracker = new CountingTracker(runtime, 2);
+		VMContext context = newContext(definition, executionContext, 1000);
+		context.setRuntime(runtime);
+		context.setRuntimeTracker(tracker);
+		definition.getRoot().execute(context);
+		// the iterations that were already running can finish, no new ones are started
+		assertTrue(tracker.maps.get() < 2 + 4 * 2);
+	}
+
+	private static SimpleVMServiceDefinition newDefinition() {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Rolodex>(Rolodex.class),
+			new BeanType<Company>(Company.class)
+		);
+		For loop = new For(
+			new Map(
+				new Link("contact", "output/employees")
+			)
+		).setQuery("input/contacts").setVariable("contact");
+		loop.setInto("output/employees");
+		loop.setPartitionKey("contact/name");
+		loop.setParallelism(4);
+		definition.setRoot(new Sequence(definition, loop));
+		return definition;
+	}
+
+	private static VMContext newContext(SimpleVMServiceDefinition definition, ExecutionContext executionContext, int contacts) {
+		Rolodex rolodex = new Rolodex();
+		for (int i = 0; i < contacts; i++) {
+			// the date identifies the element, the name is the partition key
+			rolodex.getContacts().add(new Employee("Contact" + (i % 10), new Date(i)));
+		}
+		ComplexContent pipeline = definition.getPipeline().newInstance();
+		pipeline.set(Pipeline.INPUT, new BeanInstance<Rolodex>(rolodex));
+		return new VMContext(executionContext, new VMServiceInstance(definition, pipeline));
+	}
+
+	private static class CountingTracker implements ServiceRuntimeTracker {
+		private AtomicInteger maps = new AtomicInteger();
+		private ServiceRuntime runtime;
+		private int abortAfter;
+		private Deque<Object> steps = new ArrayDeque<Object>();
+		private int violations;
+
+		private CountingTracker(ServiceRuntime runtime, int abortAfter) {
+			this.runtime = runtime;
+			this.abortAfter = abortAfter;
+		}
+		@Override
+		public void start(Service service) {
+			// do nothing
+		}
+		@Override
+		public void stop(Service service) {
+			// do nothing
+		}
+		@Override
+		public void error(Service service, Exception exception) {
+			// do nothing
+		}
+		@Override
+		public synchronized void before(Object step) {
+			steps.push(step);
+			if (step instanceof Map && maps.incrementAndGet() == abortAfter && runtime != null) {
+				runtime.abort();
+			}
+		}
+		@Override
+		public synchronized void after(Object step) {
+			if (steps.isEmpty() || steps.pop() != step) {
+				violations++;
+			}
+		}
+		@Override
+		public synchronized void error(Object step, Exception exception) {
+			after(step);
+		}
+		@Override
+		public void report(Object object) {
+			// do nothing
+		}
+		@Override
+		public void describe(Object object) {
+			// do nothing
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Invoke;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.services.vm.step.Throw;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestPrefetching extends TestCase {
+
+	static {
+		// looks up a person by name, except for "boom"
+		SimpleVMServiceDefinition lookup = new SimpleVMServiceDefinition(
+			new BeanType<Person>(Person.class),
+			new BeanType<Person>(Person.class)
+		);
+		lookup.setId("test.prefetch.lookup");
+		Throw fail = new Throw("Lookup failed");
+		fail.setLabel("input/name == 'boom'");
+		lookup.setRoot(new Sequence(lookup, fail, new Map(new Link("input/name", "output/name"))));
+		Services.register(lookup);
+	}
+	
+	public void testOrder() throws ServiceException {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 200; i++) {
+			names.add("name" + i);
+		}
+		assertEquals(names, execute(names, null));
+	}
+	
+	public void testError() {
+		try {
+			execute(Arrays.asList("a", "b", "boom", "c"), null);
+			fail("The failure of a prefetched service must be thrown in its iteration");
+		}
+		catch (ServiceException e) {
+			assertTrue(hasMessage(e, "Lookup failed"));
+		}
+	}
+	
+	public void testClose() throws ServiceException {
+		try {
+			// the lookup of "boom" is started ahead of time but the loop stops before it gets there
+			execute(Arrays.asList("a", "boom", "b", "c"), "a");
+			fail("The loop should have stopped at the first element");
+		}
+		catch (ServiceException e) {
+			assertTrue(hasMessage(e, "Stopped at a"));
+			assertFalse(hasMessage(e, "Lookup failed"));
+		}
+		// nothing that was prefetched for the stopped loop ends up in the next one
+		assertEquals(Arrays.asList("d", "e"), execute(Arrays.asList("d", "e"), null));
+	}
+	
+	public void testSaturatedPool() throws InterruptedException {
+		final List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			names.add("name" + i);
+		}
+		// more loops prefetch at the same time than the pool has threads, whatever does not fit runs on the loop thread
+		final List<Object> failures = Collections.synchronizedList(new ArrayList<Object>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 20; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (!names.equals(execute(names, null))) {
+							failures.add("Wrong result");
+						}
+					}
+					catch (Exception e) {
+						failures.add(e);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(Collections.emptyList(), failures);
+	}
+
+	private static List<String> execute(List<String> names, String stopAt) throws ServiceException {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Rolodex>(Rolodex.class),
+			new BeanType<Document>(Document.class)
+		);
+		Invoke invoke = new Invoke(new Link("contact/name", "name"));
+		invoke.setServiceId("test.prefetch.lookup");
+		invoke.setResultName("result");
+		Throw stop = new Throw("Stopped at " + stopAt);
+		stop.setLabel("result/name == '" + stopAt + "'");
+		stop.setDisabled(stopAt == null);
+		For loop = new For(
+			invoke,
+			new Map(
+				new Link("result/name", "output/records[/i]")
+			),
+			stop
+		).setQuery("input/contacts").setVariable("contact").setIndex("i");
+		loop.setPrefetch(8);
+		definition.setRoot(new Sequence(definition, loop));
+
+		Rolodex rolodex = new Rolodex();
+		for (String name : names) {
+			rolodex.getContacts().add(new Person(name, new Date()));
+		}
+		return TypeUtils.getAsBean(
+			definition.newInstance().execute(ServiceUtils.newExecutionContext(), new BeanInstance<Rolodex>(rolodex)),
+			Document.class
+		).getRecords();
+	}
+	
+	// the exception can be wrapped by the steps it passes through
+	private static boolean hasMessage(Throwable throwable, String message) {
+		while (throwable != null) {
+			if (throwable.getMessage() != null && throwable.getMessage().contains(message)) {
+				return true;
+			}
+			throwable = throwable.getCause();
+		}
+		return false;
+	}
+}
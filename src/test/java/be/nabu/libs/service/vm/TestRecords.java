@@ -0,0 +1,93 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestRecords extends TestCase {
+
+	public void testLines() throws ServiceException, UnsupportedEncodingException {
+		assertEquals(Arrays.asList("first", "second", "third"), split(null, "first\r\nsecond\nthird"));
+	}
+
+	public void testPartialMatch() throws ServiceException, UnsupportedEncodingException {
+		// after "aa" does not continue with "b", the record still ends in a partial match of the delimiter
+		assertEquals(Arrays.asList("xa", "z", "c"), split("aab", "xaaabzaabc"));
+		assertEquals(Arrays.asList("", "", "x"), split("abab", "ababababx"));
+		assertEquals(Arrays.asList("a\r", "b"), split("\\r\\n", "a\r\r\nb"));
+	}
+
+	public void testLargeRecords() throws ServiceException, UnsupportedEncodingException {
+		// records that do not fit in the read window or that are split over multiple reads
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			builder.append((char) ('a' + (i % 26)));
+		}
+		String large = builder.toString();
+		assertEquals(Arrays.asList(large, "\u00e9\u20ac", large), split("||", large + "||\u00e9\u20ac||" + large));
+	}
+
+	public void testVariableType() {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Document>(Document.class),
+			new BeanType<Document>(Document.class)
+		);
+		For loop = new For().setQuery("input/content").setVariable("record");
+		definition.setRoot(new Sequence(definition, loop));
+		// the variable is a single record, not the stream it is read from
+		SimpleType<?> type = (SimpleType<?>) loop.getPipeline(ServiceUtils.newExecutionContext().getServiceContext()).get("record").getType();
+		assertEquals(String.class, type.getInstanceClass());
+	}
+
+	private static List<String> split(String delimiter, String content) throws ServiceException, UnsupportedEncodingException {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Document>(Document.class),
+			new BeanType<Document>(Document.class)
+		);
+		For loop = new For(
+			new Map(
+				new Link("record", "output/records[/i]")
+			)
+		).setQuery("input/content").setVariable("record").setIndex("i");
+		loop.setRecordDelimiter(delimiter);
+		definition.setRoot(new Sequence(definition, loop));
+
+		Document document = new Document();
+		document.setContent(new ByteArrayInputStream(content.getBytes("UTF-8")));
+		return TypeUtils.getAsBean(
+			definition.newInstance().execute(ServiceUtils.newExecutionContext(), new BeanInstance<Document>(document)),
+			Document.class
+		).getRecords();
+	}
+}
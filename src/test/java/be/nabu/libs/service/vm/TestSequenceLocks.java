@@ -0,0 +1,74 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.vm.SequenceLocks;
+
+public class TestSequenceLocks extends TestCase {
+
+	public void testDifferentKeysDoNotBlock() throws InterruptedException {
+		Runnable release = SequenceLocks.lock(null, "test.different", "held");
+		try {
+			final CountDownLatch done = new CountDownLatch(1);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					// with this many keys, any sharing of locks between names would block on the held one
+					for (int i = 0; i < 10000; i++) {
+						SequenceLocks.lock(null, "test.different", "key" + i).run();
+					}
+					done.countDown();
+				}
+			});
+			thread.start();
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		}
+		finally {
+			release.run();
+		}
+	}
+
+	public void testSameKeyBlocks() throws InterruptedException {
+		Runnable release = SequenceLocks.lock(null, "test.same", "held");
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				SequenceLocks.lock(null, "test.same", "held").run();
+				done.countDown();
+			}
+		});
+		thread.start();
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		release.run();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(1, SequenceLocks.getMetrics().get("test.same").getContentions());
+	}
+
+	public void testReentrant() {
+		Runnable outer = SequenceLocks.lock(null, "test.reentrant", null);
+		Runnable inner = SequenceLocks.lock(null, "test.reentrant", null);
+		inner.run();
+		outer.run();
+		assertEquals(2, SequenceLocks.getMetrics().get("test.reentrant").getAcquisitions());
+	}
+}
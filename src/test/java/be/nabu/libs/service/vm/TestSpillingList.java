@@ -0,0 +1,99 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.vm.SpillingList;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestSpillingList extends TestCase {
+
+	public void testSimpleValues() {
+		SpillingList list = new SpillingList(1);
+		try {
+			Date date = new Date();
+			UUID uuid = UUID.randomUUID();
+			list.add("in memory");
+			list.add("spilled");
+			list.add(42);
+			list.add(42l);
+			list.add(new BigDecimal("1.5"));
+			list.add(date);
+			list.add(uuid);
+			list.add(null);
+			assertTrue(list.isSpilled());
+			assertEquals(8, list.size());
+			assertEquals("spilled", list.get(1));
+			assertEquals(42, list.get(2));
+			assertEquals(42l, list.get(3));
+			assertEquals(new BigDecimal("1.5"), list.get(4));
+			assertEquals(date, list.get(5));
+			assertEquals(uuid, list.get(6));
+			assertNull(list.get(7));
+		}
+		finally {
+			list.close();
+		}
+	}
+
+	public void testTypesAreKept() {
+		SpillingList list = new SpillingList(0);
+		try {
+			List<Integer> numbers = Arrays.asList(1, 2, 3);
+			HashMap<String, String> map = new HashMap<String, String>();
+			map.put("key", "value");
+			list.add(TimeUnit.SECONDS);
+			list.add(numbers);
+			list.add(map);
+			list.add('c');
+			// none of these can be written to disk without losing their type, they stay in memory
+			assertSame(TimeUnit.SECONDS, list.get(0));
+			assertSame(numbers, list.get(1));
+			assertSame(map, list.get(2));
+			assertEquals('c', list.get(3));
+			list.set(0, TimeUnit.MINUTES);
+			assertSame(TimeUnit.MINUTES, list.get(0));
+		}
+		finally {
+			list.close();
+		}
+	}
+
+	public void testBeans() {
+		SpillingList list = new SpillingList(0);
+		try {
+			list.add(new Person("John", new Date()));
+			assertTrue(list.isSpilled());
+			// beans are returned as complex content
+			assertEquals("John", ((ComplexContent) list.get(0)).get("name"));
+			list.remove(0);
+			assertEquals(0, list.size());
+		}
+		finally {
+			list.close();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.StacklessServiceException;
+import be.nabu.libs.services.vm.api.Step;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.services.vm.step.Throw;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestStackless extends TestCase {
+
+	public void testWrapWithStack() {
+		ServiceException wrapped = getWrapped(execute(newLoop()));
+		assertFalse(wrapped instanceof StacklessServiceException);
+		// the stack trace is the one from the moment the exception was wrapped
+		assertTrue(hasFrame(wrapped, "wrap"));
+	}
+	
+	public void testWrapStackless() {
+		StacklessServiceException.setEnabled(true);
+		try {
+			ServiceException wrapped = getWrapped(execute(newLoop()));
+			assertTrue(wrapped instanceof StacklessServiceException);
+			// the stack trace is only captured when the exception leaves the service
+			assertTrue(wrapped.getStackTrace().length > 0);
+			assertFalse(hasFrame(wrapped, "wrap"));
+		}
+		finally {
+			StacklessServiceException.setEnabled(false);
+		}
+	}
+	
+	public void testThrow() {
+		Throw stackless = new Throw("Stackless");
+		stackless.setStackless(true);
+		assertTrue(execute(stackless) instanceof StacklessServiceException);
+		// an explicit setting on the throw wins from the global one
+		StacklessServiceException.setEnabled(true);
+		try {
+			Throw regular = new Throw("Regular");
+			regular.setStackless(false);
+			assertFalse(execute(regular) instanceof StacklessServiceException);
+			assertTrue(execute(new Throw("Default")) instanceof StacklessServiceException);
+		}
+		finally {
+			StacklessServiceException.setEnabled(false);
+		}
+	}
+	
+	// the input is not a collection, so the loop fails with a runtime exception that is wrapped by the sequence
+	private static For newLoop() {
+		return new For().setQuery("input").setVariable("element");
+	}
+	
+	private static ServiceException execute(Step step) {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Person>(Person.class),
+			new BeanType<Person>(Person.class)
+		);
+		definition.setRoot(new Sequence(definition, step));
+		try {
+			definition.newInstance().execute(ServiceUtils.newExecutionContext(), new BeanInstance<Person>(new Person("John", new Date())));
+			fail("The service should fail");
+			return null;
+		}
+		catch (ServiceException e) {
+			return e;
+		}
+	}
+	
+	private static ServiceException getWrapped(Throwable throwable) {
+		while (throwable != null) {
+			if (throwable instanceof ServiceException && "VM-6".equals(((ServiceException) throwable).getCode())) {
+				return (ServiceException) throwable;
+			}
+			throwable = throwable.getCause();
+		}
+		fail("The exception was not wrapped");
+		return null;
+	}
+	
+	private static boolean hasFrame(Throwable throwable, String method) {
+		for (StackTraceElement element : throwable.getStackTrace()) {
+			if (element.getMethodName().equals(method)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
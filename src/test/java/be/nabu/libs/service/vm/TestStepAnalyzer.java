@@ -0,0 +1,145 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Invoke;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.StepAnalyzer;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestStepAnalyzer extends TestCase {
+
+	public void testRoots() {
+		assertEquals(set("customer"), StepAnalyzer.getRoots("/customer/id"));
+		assertEquals(set("input"), StepAnalyzer.getRoots("input/orders/customerId"));
+		// the field names in the filter are included, the absolute path in the filter starts at the pipeline
+		assertEquals(set("input", "customerId", "customer"), StepAnalyzer.getRoots("input/orders[customerId == /customer/id]"));
+		assertEquals(set("output", "i"), StepAnalyzer.getRoots("output/employees[/i]"));
+		// a division is not a path
+		assertEquals(set("a", "b"), StepAnalyzer.getRoots("a / b"));
+		assertEquals(set("b"), StepAnalyzer.getRoots("1/b"));
+		assertEquals(set("c"), StepAnalyzer.getRoots("'a/b' + c"));
+	}
+
+	public void testUnparseableRoots() {
+		assertNull(StepAnalyzer.getRoots("input/orders[customerId == 1"));
+		assertNull(StepAnalyzer.getRoots("input/orders]"));
+		assertNull(StepAnalyzer.getRoots("name == 'John"));
+	}
+
+	public void testAbsolutePathIsNotInvariant() {
+		Link absolute = new Link("/customer/name", "name");
+		Link invariant = new Link("/input/name", "original");
+		For loop = new For(
+			new Map(
+				new Link("contact", "customer"),
+				absolute,
+				invariant
+			)
+		).setQuery("input/contacts").setVariable("contact");
+
+		Set<Object> invariants = StepAnalyzer.getInvariants(loop);
+		assertFalse(invariants.contains(absolute));
+		assertTrue(invariants.contains(invariant));
+	}
+
+	public void testFilterIsNotInvariant() {
+		Link filter = new Link("input/contacts[name == /customer/name]", "matches");
+		Link unparseable = new Link("input/contacts[name == /customer/name", "matches");
+		For loop = new For(
+			new Map(
+				new Link("contact", "customer"),
+				filter,
+				unparseable
+			)
+		).setQuery("input/contacts").setVariable("contact");
+
+		Set<Object> invariants = StepAnalyzer.getInvariants(loop);
+		assertFalse(invariants.contains(filter));
+		assertFalse(invariants.contains(unparseable));
+	}
+
+	public void testFuseIndependentLoops() {
+		For first = new For(new Map(new Link("contact/name", "names[/i]"))).setQuery("input/contacts").setVariable("contact").setIndex("i");
+		For second = new For(new Map(new Link("contact/birthDate", "dates[/i]"))).setQuery("input/contacts").setVariable("contact").setIndex("i");
+		assertTrue(StepAnalyzer.canFuse(Arrays.asList(first), second));
+	}
+
+	public void testNoFusionOnAbsolutePath() {
+		For first = new For(new Map(new Link("contact", "last"))).setQuery("input/contacts").setVariable("contact");
+		// the second loop reads what the first one writes, fused it would see the value of the current iteration instead of the last one
+		For second = new For(new Map(new Link("/last/name", "names[/i]"))).setQuery("input/contacts").setVariable("contact").setIndex("i");
+		assertFalse(StepAnalyzer.canFuse(Arrays.asList(first), second));
+	}
+
+	public void testNoFusionOnFilter() {
+		For first = new For(new Map(new Link("contact", "last"))).setQuery("input/contacts").setVariable("contact");
+		For second = new For(new Map(new Link("input/contacts[name == /last/name]", "matches"))).setQuery("input/contacts").setVariable("contact");
+		assertFalse(StepAnalyzer.canFuse(Arrays.asList(first), second));
+		For unparseable = new For(new Map(new Link("input/contacts[name == 'John'", "matches"))).setQuery("input/contacts").setVariable("contact");
+		assertFalse(StepAnalyzer.canFuse(Arrays.asList(first), unparseable));
+	}
+
+	public void testPrefetchable() {
+		Invoke invoke = new Invoke(new Link("contact/name", "name"));
+		invoke.setServiceId("example.lookup");
+		For loop = new For(invoke).setQuery("input/contacts").setVariable("contact");
+		assertSame(invoke, StepAnalyzer.getPrefetchable(loop));
+	}
+
+	public void testNoPrefetchOnAbsolutePath() {
+		Invoke invoke = new Invoke(new Link("/last/name", "name"));
+		invoke.setServiceId("example.lookup");
+		// the input of the invoke depends on the iteration so it can not be mapped ahead of time
+		For loop = new For(new Map(new Link("contact", "last")), invoke).setQuery("input/contacts").setVariable("contact");
+		assertNull(StepAnalyzer.getPrefetchable(loop));
+	}
+
+	public void testNoPrefetchOnFilter() {
+		Invoke invoke = new Invoke(new Link("input/contacts[name == /last/name]", "matches"));
+		invoke.setServiceId("example.lookup");
+		For loop = new For(new Map(new Link("contact", "last")), invoke).setQuery("input/contacts").setVariable("contact");
+		assertNull(StepAnalyzer.getPrefetchable(loop));
+		Invoke unparseable = new Invoke(new Link("input/contacts[name == 'John'", "matches"));
+		unparseable.setServiceId("example.lookup");
+		assertNull(StepAnalyzer.getPrefetchable(new For(unparseable).setQuery("input/contacts").setVariable("contact")));
+	}
+
+	public void testPartitionable() {
+		ComplexType outer = new BeanType<Rolodex>(Rolodex.class);
+		For local = new For(new Map(new Link("contact/name", "name"))).setQuery("input/contacts").setVariable("contact");
+		assertTrue(StepAnalyzer.isPartitionable(local, outer));
+		// each partition has its own copy of the pipeline, changes to the outer variables would be lost
+		For absolute = new For(new Map(new Link("contact", "/contacts[0]"))).setQuery("input/contacts").setVariable("contact");
+		assertFalse(StepAnalyzer.isPartitionable(absolute, outer));
+		For unparseable = new For(new Map(new Link("contact", "[0]/name"))).setQuery("input/contacts").setVariable("contact");
+		assertFalse(StepAnalyzer.isPartitionable(unparseable, outer));
+	}
+
+	private static Set<String> set(String...values) {
+		return new HashSet<String>(Arrays.asList(values));
+	}
+}
@@ -0,0 +1,190 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.VMServiceInstance;
+import be.nabu.libs.services.vm.api.IntoSink;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestStreamInto extends TestCase {
+
+	// the chunks the collecting service received
+	private static List<List<String>> chunks = Collections.synchronizedList(new ArrayList<List<String>>());
+	
+	static {
+		SimpleVMServiceDefinition collect = new SimpleVMServiceDefinition(
+			new BeanType<Export>(Export.class),
+			new BeanType<Export>(Export.class)
+		) {
+			@Override
+			public VMServiceInstance newInstance() {
+				return new VMServiceInstance(this) {
+					@Override
+					public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+						// the chunk is passed to the first list input
+						Export export = TypeUtils.getAsBean(input, Export.class);
+						chunks.add(new ArrayList<String>(export.getNames() != null ? export.getNames() : export.getLines()));
+						return super.execute(executionContext, input);
+					}
+				};
+			}
+		};
+		collect.setId("test.stream.collect");
+		collect.setRoot(new Sequence(collect));
+		Services.register(collect);
+	}
+	
+	public void testSink() throws ServiceException {
+		Sink sink = new Sink();
+		Export export = new Export();
+		export.setNames(names(5));
+		export.setSink(sink);
+		// the loop runs in batches of 2, each batch is pushed through as a whole
+		For loop = new For(
+			new Map(
+				new Link("batch", "input/sink")
+			)
+		).setQuery("input/names").setVariable("batch");
+		loop.setBatchSize("2");
+		loop.setInto("input/sink");
+		export = execute(loop, export);
+		// every result was pushed through as it was produced and the sink is put back once the loop is done
+		assertSame(sink, export.getSink());
+		assertEquals(names(5), sink.added);
+		assertEquals(1, sink.flushed);
+	}
+	
+	public void testStreamInto() throws ServiceException {
+		chunks.clear();
+		For loop = newLoop();
+		loop.setStreamInto("test.stream.collect");
+		loop.setStreamIntoSize(2);
+		Export export = execute(loop, newExport(names(5), null));
+		// the results are passed on in chunks, the last one when the loop is done
+		assertEquals(Arrays.asList(Arrays.asList("line0", "line1"), Arrays.asList("line2", "line3"), Arrays.asList("line4")), chunks);
+		assertNull(export.getLines());
+	}
+	
+	public void testStreamIntoUnknownService() {
+		For loop = newLoop();
+		loop.setStreamInto("test.stream.unknown");
+		try {
+			execute(loop, newExport(names(2), null));
+			fail("The loop should fail if it can not find the service");
+		}
+		catch (ServiceException e) {
+			assertTrue(hasCode(e, "VM-3"));
+		}
+	}
+	
+	public void testPresized() throws ServiceException {
+		List<String> expected = names(1000);
+		// the list is presized when the size is known up front, whether the source is random access or not
+		assertEquals(expected, execute(newLoop(), newExport(names(1000), null)).getLines());
+		assertEquals(expected, execute(newLoop(), newExport(new LinkedList<String>(names(1000)), null)).getLines());
+		// the loop can produce fewer results than it has elements, the presized list should not contain anything else
+		For filter = newLoop();
+		filter.getChildren().get(0).setLabel("name != 'line3'");
+		expected.remove("line3");
+		assertEquals(expected, execute(filter, newExport(names(1000), null)).getLines());
+	}
+	
+	// maps each name to a line
+	private static For newLoop() {
+		For loop = new For(
+			new Map(
+				new Link("name", "input/lines")
+			)
+		).setQuery("input/names").setVariable("name");
+		loop.setInto("input/lines");
+		loop.setSpillThreshold(0);
+		return loop;
+	}
+	
+	private static List<String> names(int amount) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < amount; i++) {
+			names.add("line" + i);
+		}
+		return names;
+	}
+	
+	private static Export newExport(List<String> names, List<String> lines) {
+		Export export = new Export();
+		export.setNames(names);
+		export.setLines(lines);
+		return export;
+	}
+	
+	private static Export execute(For loop, Export export) throws ServiceException {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Export>(Export.class),
+			new BeanType<Export>(Export.class)
+		);
+		definition.setRoot(new Sequence(definition, loop, new Map(new Link("input", "output"))));
+		return TypeUtils.getAsBean(
+			definition.newInstance().execute(ServiceUtils.newExecutionContext(), new BeanInstance<Export>(export)),
+			Export.class
+		);
+	}
+	
+	private static boolean hasCode(Throwable throwable, String code) {
+		while (throwable != null) {
+			if (throwable instanceof ServiceException && code.equals(((ServiceException) throwable).getCode())) {
+				return true;
+			}
+			throwable = throwable.getCause();
+		}
+		return false;
+	}
+	
+	/**
+	 * Remembers what was pushed to it
+	 */
+	private static class Sink implements IntoSink {
+		private List<Object> added = new ArrayList<Object>();
+		private int flushed;
+		
+		@Override
+		public void add(Object element) {
+			added.add(element);
+		}
+		@Override
+		public void flush() {
+			flushed++;
+		}
+	}
+}
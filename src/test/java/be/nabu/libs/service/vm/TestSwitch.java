@@ -0,0 +1,83 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.api.Step;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.services.vm.step.Switch;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestSwitch extends TestCase {
+
+	public void testConstantCases() throws ServiceException {
+		Switch cases = newSwitch(
+			newCase("'Bob'", "bob"),
+			newCase("'John'", "john"),
+			newCase(null, "default")
+		);
+		assertEquals("john", execute(cases, "John"));
+		assertEquals("bob", execute(cases, "Bob"));
+		assertEquals("default", execute(cases, "Alice"));
+	}
+
+	public void testFirstMatchWins() throws ServiceException {
+		// a dynamic case before the constant one has to be evaluated first
+		assertEquals("dynamic", execute(newSwitch(newCase("input/name", "dynamic"), newCase("'John'", "john")), "John"));
+		assertEquals("john", execute(newSwitch(newCase("'John'", "john"), newCase("input/name", "dynamic")), "John"));
+		// of multiple identical constants, the first one is used
+		assertEquals("first", execute(newSwitch(newCase("'John'", "first"), newCase("'John'", "second")), "John"));
+		// the default ends the switch, later constants are not reached
+		assertEquals("default", execute(newSwitch(newCase(null, "default"), newCase("'John'", "john")), "John"));
+	}
+
+	private static Switch newSwitch(Step...steps) {
+		Switch cases = new Switch(steps);
+		cases.setQuery("input/name");
+		return cases;
+	}
+
+	private static Step newCase(String label, String value) {
+		Link link = new Link(value, "output/name");
+		link.setFixedValue(true);
+		Map map = new Map(link);
+		map.setLabel(label);
+		return map;
+	}
+
+	private static String execute(Switch cases, String name) throws ServiceException {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Person>(Person.class),
+			new BeanType<Company>(Company.class)
+		);
+		definition.setRoot(new Sequence(definition, cases));
+		return TypeUtils.getAsBean(
+			definition.newInstance().execute(ServiceUtils.newExecutionContext(), new BeanInstance<Person>(new Person(name, new Date()))),
+			Company.class
+		).getName();
+	}
+}
@@ -0,0 +1,200 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.CombinedServiceRunner.CombinedServiceResult;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.ThreadPoolExecutorProvider;
+import be.nabu.libs.services.vm.step.Invoke;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestThreadPools extends TestCase {
+
+	static {
+		SimpleVMServiceDefinition echo = newEcho();
+		echo.setId("test.pools.echo");
+		Services.register(echo);
+	}
+	
+	public void testConfiguration() {
+		ThreadPoolExecutorProvider provider = new ThreadPoolExecutorProvider("io = 4, cpu=2/10");
+		try {
+			assertEquals(Arrays.asList("io", "cpu"), provider.getTargets());
+			assertEquals(4, provider.getPool("io").getThreads());
+			assertEquals(2, provider.getPool("cpu").getThreads());
+			assertFalse(provider.isBatch("io"));
+		}
+		finally {
+			provider.close();
+		}
+	}
+	
+	public void testTarget() throws Exception {
+		ThreadPoolExecutorProvider provider = new ThreadPoolExecutorProvider();
+		try {
+			provider.addPool("io", 2, 0);
+			assertEquals("John", execute(newCaller(provider, "io"), "John"));
+			assertEquals(1, provider.getPool("io").getSubmitted());
+		}
+		finally {
+			provider.close();
+		}
+	}
+	
+	public void testQueueAndRejection() throws Exception {
+		ThreadPoolExecutorProvider provider = new ThreadPoolExecutorProvider();
+		try {
+			ThreadPoolExecutorProvider.Pool pool = provider.addPool("small", 1, 1);
+			CountDownLatch release = new CountDownLatch(1);
+			Service blocking = newBlocking(newEcho(), release);
+			// the first one takes the only thread, the second one waits in the queue
+			Future<ServiceResult> running = pool.run(blocking, ServiceUtils.newExecutionContext(), newInput("first"));
+			Future<ServiceResult> queued = pool.run(blocking, ServiceUtils.newExecutionContext(), newInput("second"));
+			// there is no room for the third one, it is not waited for
+			Future<ServiceResult> rejected = pool.run(blocking, ServiceUtils.newExecutionContext(), newInput("third"));
+			assertTrue(rejected.isDone());
+			assertEquals("VM-16", rejected.get().getException().getCode());
+			assertEquals(1, pool.getRejected());
+			assertEquals(2, pool.getSubmitted());
+			release.countDown();
+			assertNull(running.get(10, TimeUnit.SECONDS).getException());
+			assertNull(queued.get(10, TimeUnit.SECONDS).getException());
+		}
+		finally {
+			provider.close();
+		}
+	}
+	
+	public void testReentrant() throws Exception {
+		ThreadPoolExecutorProvider provider = new ThreadPoolExecutorProvider();
+		try {
+			ThreadPoolExecutorProvider.Pool pool = provider.addPool("single", 1, 0);
+			// the caller holds the only thread of the pool and invokes a service on that same pool
+			Future<ServiceResult> future = pool.run(newCaller(provider, "single"), ServiceUtils.newExecutionContext(), newInput("John"));
+			ServiceResult result = future.get(10, TimeUnit.SECONDS);
+			assertNull(result.getException());
+			assertEquals("John", result.getOutput().get("name"));
+			assertEquals(1, pool.getInline());
+		}
+		finally {
+			provider.close();
+		}
+	}
+	
+	public void testBatch() throws Exception {
+		ThreadPoolExecutorProvider provider = new ThreadPoolExecutorProvider();
+		try {
+			provider.addPool("first", 1, 0);
+			provider.addPool("second", 1, 0);
+			provider.addBatch("both", "first", "second");
+			assertTrue(provider.isBatch("both"));
+			ServiceResult result = provider.getRunner("both", null).run(newEcho(), ServiceUtils.newExecutionContext(), newInput("John")).get(10, TimeUnit.SECONDS);
+			assertTrue(result instanceof CombinedServiceResult);
+			// the service ran on each of the pools
+			assertEquals(2, ((CombinedServiceResult) result).getResults().size());
+			assertEquals(1, provider.getPool("first").getSubmitted());
+			assertEquals(1, provider.getPool("second").getSubmitted());
+		}
+		finally {
+			provider.close();
+		}
+	}
+	
+	private static SimpleVMServiceDefinition newEcho() {
+		SimpleVMServiceDefinition echo = new SimpleVMServiceDefinition(
+			new BeanType<Person>(Person.class),
+			new BeanType<Person>(Person.class)
+		);
+		echo.setRoot(new Sequence(echo, new Map(new Link("input/name", "output/name"))));
+		return echo;
+	}
+	
+	// invokes the echo service on the given target
+	private static SimpleVMServiceDefinition newCaller(ThreadPoolExecutorProvider provider, String target) {
+		SimpleVMServiceDefinition caller = new SimpleVMServiceDefinition(
+			new BeanType<Person>(Person.class),
+			new BeanType<Person>(Person.class)
+		);
+		caller.setExecutorProvider(provider);
+		Invoke invoke = new Invoke(new Link("input/name", "name"));
+		invoke.setServiceId("test.pools.echo");
+		invoke.setResultName("result");
+		invoke.setTarget(target);
+		caller.setRoot(new Sequence(caller, invoke, new Map(new Link("result/name", "output/name"))));
+		return caller;
+	}
+	
+	private static String execute(SimpleVMServiceDefinition definition, String name) throws Exception {
+		return TypeUtils.getAsBean(definition.newInstance().execute(ServiceUtils.newExecutionContext(), newInput(name)), Person.class).getName();
+	}
+	
+	private static BeanInstance<Person> newInput(String name) {
+		return new BeanInstance<Person>(new Person(name, new Date()));
+	}
+	
+	// the service waits for the latch before it runs
+	private static Service newBlocking(final Service service, final CountDownLatch release) {
+		return (Service) Proxy.newProxyInstance(TestThreadPools.class.getClassLoader(), new Class<?>[] { Service.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				final Object result = delegate(service, method, args);
+				if (!method.getName().equals("newInstance")) {
+					return result;
+				}
+				return Proxy.newProxyInstance(TestThreadPools.class.getClassLoader(), new Class<?>[] { ServiceInstance.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("execute")) {
+							release.await();
+						}
+						return delegate(result, method, args);
+					}
+				});
+			}
+		});
+	}
+	
+	private static Object delegate(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
+import be.nabu.libs.services.vm.AsynchronousRuntimeTracker;
+import be.nabu.libs.services.vm.Pipeline;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.VMContext;
+import be.nabu.libs.services.vm.VMServiceInstance;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestTracking extends TestCase {
+
+	public void testTrackerAttachedLater() throws ServiceException {
+		SimpleVMServiceDefinition definition = newService();
+		ServiceRuntime runtime = new ServiceRuntime(definition, ServiceUtils.newExecutionContext());
+		VMContext context = newContext(definition);
+		context.setRuntime(runtime);
+		// the tracker is attached after the context was created
+		RecordingTracker tracker = new RecordingTracker();
+		runtime.setRuntimeTracker(tracker);
+		definition.getRoot().execute(context);
+		assertTrue(tracker.events.contains("before:Map"));
+		assertTrue(tracker.events.contains("after:Map"));
+	}
+	
+	public void testExplicitTracker() throws ServiceException {
+		SimpleVMServiceDefinition definition = newService();
+		ServiceRuntime runtime = new ServiceRuntime(definition, ServiceUtils.newExecutionContext());
+		RecordingTracker runtimeTracker = new RecordingTracker();
+		runtime.setRuntimeTracker(runtimeTracker);
+		VMContext context = newContext(definition);
+		context.setRuntime(runtime);
+		// an explicit tracker wins over the one of the runtime, even if it is null
+		context.setRuntimeTracker(null);
+		definition.getRoot().execute(context);
+		assertTrue(runtimeTracker.events.isEmpty());
+		RecordingTracker explicit = new RecordingTracker();
+		context.setRuntimeTracker(explicit);
+		definition.getRoot().execute(context);
+		assertTrue(runtimeTracker.events.isEmpty());
+		assertTrue(explicit.events.contains("before:Map"));
+	}
+	
+	public void testAsynchronousOrder() throws InterruptedException {
+		RecordingTracker tracker = new RecordingTracker();
+		ServiceRuntimeTracker asynchronous = AsynchronousRuntimeTracker.wrap(tracker);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			asynchronous.before("step" + i);
+			asynchronous.after("step" + i);
+			expected.add("before:step" + i);
+			expected.add("after:step" + i);
+		}
+		await();
+		assertEquals(expected, tracker.events);
+		// the events are delivered on the thread of the buffer, not the one that reported them
+		assertFalse(tracker.threads.contains(Thread.currentThread()));
+	}
+	
+	public void testDropWhenFull() throws InterruptedException {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		// a tracker that holds up the delivery until we release it
+		RecordingTracker slow = new RecordingTracker() {
+			@Override
+			public void before(Object step) {
+				blocked.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		ServiceRuntimeTracker asynchronous = AsynchronousRuntimeTracker.wrap(slow);
+		long dropped = AsynchronousRuntimeTracker.getDropped();
+		asynchronous.before("first");
+		blocked.await();
+		// the default buffer holds 65536 events, the reporting thread is never held up: whatever does not fit is dropped
+		for (int i = 0; i < 70000; i++) {
+			asynchronous.report("report" + i);
+		}
+		assertTrue(AsynchronousRuntimeTracker.getDropped() - dropped >= 70000 - 65536);
+		release.countDown();
+		await();
+	}
+	
+	// waits until everything that was published is delivered
+	private static void await() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (AsynchronousRuntimeTracker.getDelivered() < AsynchronousRuntimeTracker.getPublished()) {
+			assertTrue("The events were not delivered in time", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+	
+	private static SimpleVMServiceDefinition newService() {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Rolodex>(Rolodex.class),
+			new BeanType<Company>(Company.class)
+		);
+		definition.setRoot(new Sequence(definition, new Map(new Link("input/contacts", "output/employees"))));
+		return definition;
+	}
+	
+	private static VMContext newContext(SimpleVMServiceDefinition definition) {
+		ComplexContent pipeline = definition.getPipeline().newInstance();
+		pipeline.set(Pipeline.INPUT, new BeanInstance<Rolodex>(new Rolodex()));
+		return new VMContext(ServiceUtils.newExecutionContext(), new VMServiceInstance(definition, pipeline));
+	}
+
+	private static class RecordingTracker implements ServiceRuntimeTracker {
+		private List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		private List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+		private void record(String event) {
+			events.add(event);
+			threads.add(Thread.currentThread());
+		}
+		@Override
+		public void start(Service service) {
+			// do nothing
+		}
+		@Override
+		public void stop(Service service) {
+			// do nothing
+		}
+		@Override
+		public void error(Service service, Exception exception) {
+			// do nothing
+		}
+		@Override
+		public void before(Object step) {
+			record("before:" + (step instanceof String ? step : step.getClass().getSimpleName()));
+		}
+		@Override
+		public void after(Object step) {
+			record("after:" + (step instanceof String ? step : step.getClass().getSimpleName()));
+		}
+		@Override
+		public void error(Object step, Exception exception) {
+			// do nothing
+		}
+		@Override
+		public void report(Object object) {
+			// do nothing
+		}
+		@Override
+		public void describe(Object object) {
+			// do nothing
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.service.vm;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
+import be.nabu.libs.services.impl.TransactionReport;
+import be.nabu.libs.services.vm.Pipeline;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.VMContext;
+import be.nabu.libs.services.vm.VMServiceInstance;
+import be.nabu.libs.services.vm.api.Step;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Map;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+public class TestTransactions extends TestCase {
+
+	public void testUnusedTransactionIsNotStarted() throws ServiceException {
+		Sequence sequence = new Sequence(new Map(new Link("input/contacts", "output/employees")));
+		sequence.setTransactionVariable("transaction");
+		assertEquals(0, execute(sequence).size());
+	}
+
+	public void testUsedTransactionIsCommitted() throws ServiceException {
+		Sequence sequence = new Sequence(
+			new Map(new Link("input/contacts", "output/employees")),
+			new Map(new Link("transaction", "output/name"))
+		);
+		sequence.setTransactionVariable("transaction");
+		List<Object> reports = execute(sequence);
+		assertEquals(1, reports.size());
+		assertTrue(reports.get(0) instanceof TransactionReport);
+	}
+
+	public void testUnusedDefaultTransactionIsNotStarted() throws ServiceException {
+		Sequence sequence = new Sequence(new Map(new Link("input/contacts", "output/employees")));
+		sequence.setScopeDefaultTransaction(true);
+		assertEquals(0, execute(sequence).size());
+	}
+
+	private static List<Object> execute(Step step) throws ServiceException {
+		SimpleVMServiceDefinition definition = new SimpleVMServiceDefinition(
+			new BeanType<Rolodex>(Rolodex.class),
+			new BeanType<Company>(Company.class)
+		);
+		definition.setRoot(new Sequence(definition, step));
+		Rolodex rolodex = new Rolodex();
+		rolodex.getContacts().add(new Employee("John", new Date()));
+		ComplexContent pipeline = definition.getPipeline().newInstance();
+		pipeline.set(Pipeline.INPUT, new BeanInstance<Rolodex>(rolodex));
+		VMContext context = new VMContext(ServiceUtils.newExecutionContext(), new VMServiceInstance(definition, pipeline));
+		ReportingTracker tracker = new ReportingTracker();
+		context.setRuntimeTracker(tracker);
+		definition.getRoot().execute(context);
+		return tracker.reports;
+	}
+
+	private static class ReportingTracker implements ServiceRuntimeTracker {
+		private List<Object> reports = new ArrayList<Object>();
+
+		@Override
+		public void start(Service service) {
+			// do nothing
+		}
+		@Override
+		public void stop(Service service) {
+			// do nothing
+		}
+		@Override
+		public void error(Service service, Exception exception) {
+			// do nothing
+		}
+		@Override
+		public void before(Object step) {
+			// do nothing
+		}
+		@Override
+		public void after(Object step) {
+			// do nothing
+		}
+		@Override
+		public void error(Object step, Exception exception) {
+			// do nothing
+		}
+		@Override
+		public void report(Object object) {
+			if (object instanceof TransactionReport) {
+				reports.add(object);
+			}
+		}
+		@Override
+		public void describe(Object object) {
+			// do nothing
+		}
+	}
+}